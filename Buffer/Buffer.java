@@ -1,27 +1,177 @@
 package Buffer;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
 import Exceptions.*;
 
+/**
+ * Lock-free single-producer/single-consumer byte ring shared by SenderBuffer and ReceiverBuffer. Exactly one
+ * thread puts bytes in (the producer) and exactly one thread takes them out (the consumer).
+ *
+ * head counts the bytes ever taken and is only written by the consumer; tail counts the bytes ever put and is only
+ * written by the producer. Each is published with a release store and read by the other side with an acquire load,
+ * so the bytes copied in before a tail (head) store are visible to the consumer (producer) that sees it. The two
+ * counters sit on separate cache lines so the threads do not invalidate each other's line on every update.
+ *
+ * A thread only parks when it cannot make progress: the consumer while the ring is empty, the producer while it is
+ * full (or has less free space than it needs). The other side unparks it after its next store.
+ *
+ * The ring lives off-heap in a direct buffer, so large windows do not grow the Java heap. Besides copying bytes
+ * out with read(), the consumer can lend() views of the ready bytes, hand them to a channel as they are, and
+ * commit() them once it is done; the bytes stay put until then.
+ */
 public class Buffer {
-    protected byte[] buf;
+    private static final VarHandle COUNTER = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int HEAD = 8;  // indices into `counters`, 64 bytes apart and away from the array's neighbours
+    private static final int TAIL = 16;
+
+    protected final ByteBuffer buf;
     protected final int bufferSize; // in byte
     protected final int mtu; // segment count
     protected final int windowSize; // in segment
 
-    protected boolean empty, full;
+    private final long[] counters = new long[24];
+    private volatile Thread parkedProducer;
+    private volatile Thread parkedConsumer;
+    private volatile boolean closed; // the producer will not put anything more
 
     public Buffer(int bufferSize, int mtu, int windowSize) throws BufferSizeException {
-        if (bufferSize - 1 <= 0 || windowSize <= 0 || mtu <= 0 ){
+        if (bufferSize <= 0 || windowSize <= 0 || mtu <= 0 ){
             throw new BufferSizeException("Buffer size, mtu, and window size should be positive integer");
         }
-        if (bufferSize - 1 <= mtu * windowSize){
+        if (bufferSize <= mtu * windowSize){
             throw new BufferSizeException("Buffer is too small for window to slide");
         }
         this.bufferSize = bufferSize;
         this.windowSize = windowSize;
         this.mtu = mtu;
-        this.buf = new byte[bufferSize];
-        this.empty = true;
-        this.full = false;
+        this.buf = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /********************** Either side **********************/
+
+    /** Bytes that can be put. Exact for the producer, a lower bound for anyone else. */
+    protected int freeSpace(){
+        return bufferSize - (int) ((long) COUNTER.getAcquire(counters, TAIL) - (long) COUNTER.getAcquire(counters, HEAD));
+    }
+
+    /** Bytes that can be taken. Exact for the consumer, a lower bound for anyone else. */
+    protected int available(){
+        return (int) ((long) COUNTER.getAcquire(counters, TAIL) - (long) COUNTER.getAcquire(counters, HEAD));
+    }
+
+    protected boolean isClosed(){
+        return closed;
+    }
+
+    /********************** Producer **********************/
+
+    /** Copy data[offset, offset + length) in. The caller has checked freeSpace(). */
+    protected void write(byte[] data, int offset, int length){
+        long tail = (long) COUNTER.getOpaque(counters, TAIL);
+        int index = (int) (tail % bufferSize);
+        int first = Math.min(length, bufferSize - index);
+        buf.put(index, data, offset, first);
+        buf.put(0, data, offset + first, length - first);
+        COUNTER.setRelease(counters, TAIL, tail + length);
+        wakeConsumer();
+    }
+
+    /**
+     * Park until more than `free` bytes are free.
+     * @return the free space
+     */
+    protected int awaitFreeSpaceAbove(int free){
+        int fs;
+        while ((fs = freeSpace()) <= free) {
+            parkedProducer = Thread.currentThread();
+            VarHandle.fullFence();
+            if (freeSpace() <= free) {
+                LockSupport.park(this);
+            }
+            parkedProducer = null;
+        }
+        return fs;
+    }
+
+    /** No more data will be put. Wakes up a parked consumer. */
+    protected void close(){
+        closed = true;
+        wakeConsumer();
+    }
+
+    /********************** Consumer **********************/
+
+    /** Copy `length` bytes out into dst[offset, offset + length). The caller has checked available(). */
+    protected void read(byte[] dst, int offset, int length){
+        long head = (long) COUNTER.getOpaque(counters, HEAD);
+        int index = (int) (head % bufferSize);
+        int first = Math.min(length, bufferSize - index);
+        buf.get(index, dst, offset, first);
+        buf.get(0, dst, offset + first, length - first);
+        commit(length);
+    }
+
+    /**
+     * Lend read-only views of the next `length` ready bytes: one view, or two if they wrap around the end of the
+     * ring. Nothing is copied and the bytes are not taken until commit(). The caller has checked available().
+     */
+    protected ByteBuffer[] lend(int length){
+        long head = (long) COUNTER.getOpaque(counters, HEAD);
+        int index = (int) (head % bufferSize);
+        int first = Math.min(length, bufferSize - index);
+        ByteBuffer firstView = buf.slice(index, first).asReadOnlyBuffer();
+        if (first == length) {
+            return new ByteBuffer[] { firstView };
+        }
+        return new ByteBuffer[] { firstView, buf.slice(0, length - first).asReadOnlyBuffer() };
+    }
+
+    /** Take `length` bytes, e.g. lent ones that have been used up. Their room is free for the producer again. */
+    protected void commit(int length){
+        long head = (long) COUNTER.getOpaque(counters, HEAD);
+        COUNTER.setRelease(counters, HEAD, head + length);
+        wakeProducer();
+    }
+
+    /**
+     * Park while the ring is empty and not closed.
+     * @return available bytes. 0 only if the ring is closed and drained.
+     */
+    protected int awaitData(){
+        int n;
+        while ((n = available()) == 0 && !closed) {
+            parkedConsumer = Thread.currentThread();
+            VarHandle.fullFence();
+            if (available() == 0 && !closed) {
+                LockSupport.park(this);
+            }
+            parkedConsumer = null;
+        }
+        return n > 0 ? n : available();
+    }
+
+    /**
+     * Unpark the consumer if it is parked. The fence orders our counter store before reading its parked flag, 
+     * pairing with the fence in awaitData(), so the consumer never sleeps through a store it has not seen.
+     */
+    private void wakeConsumer(){
+        VarHandle.fullFence();
+        Thread t = parkedConsumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /** Same as wakeConsumer(), for the producer. */
+    private void wakeProducer(){
+        VarHandle.fullFence();
+        Thread t = parkedProducer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
     }
 }
@@ -0,0 +1,115 @@
+package Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Receiver, resume mode: remembers how much of the output file is safely on disk, so that a transfer that died can
+ * continue where it stopped instead of from byte 0. The journal is a file next to the output file (its name plus
+ * SUFFIX) holding one RECORD_LENGTH-byte record, rewritten in place:
+ *
+ *   4 bytes   MAGIC
+ *   8 bytes   length of the file being received (the sender's, from the handshake)
+ *   8 bytes   its last modification time, in ms
+ *   8 bytes   committed: every byte of the output file before this offset is on disk
+ *   4 bytes   CRC32 of the bytes above. A torn record does not match and counts as no journal
+ *
+ * At most every CHECKPOINT_INTERVAL the output file is fsynced, then the new committed offset is written and the
+ * journal fsynced, so the journal never runs ahead of the data. Only a contiguous prefix of the file is recorded:
+ * data received beyond a gap is received again after a resume. The journal is deleted once the file is complete.
+ */
+public class CheckpointJournal {
+    public static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x544A524E; // "TJRN"
+    private static final int RECORD_LENGTH = 32;
+    private static final long CHECKPOINT_INTERVAL = 1000000000L; // in nanosecond
+
+    private final Path path;
+    private FileChannel journal;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+    private long fileLength, fileTime;
+    private long committed = 0;     // as last written to the journal
+    private long lastCheckpoint = System.nanoTime();
+
+    /** The journal of the output file `fileName`. Nothing is read or written before open(). */
+    public CheckpointJournal(String fileName){
+        this.path = Paths.get(fileName + SUFFIX);
+    }
+
+    /**
+     * Start journaling the transfer of the file identified by `fileLength` and `fileTime`.
+     * @param existing bytes already in the output file
+     * @return the offset to resume at: the committed offset of the journal if it is of the same file, else 0
+     */
+    public synchronized long open(long fileLength, long fileTime, long existing) throws IOException {
+        long resumeAt = 0;
+        if (Files.exists(path)) {
+            ByteBuffer old = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (old.remaining() >= RECORD_LENGTH && old.getInt(0) == MAGIC && old.getInt(28) == (int) crc(old)
+                    && old.getLong(4) == fileLength && old.getLong(12) == fileTime) {
+                // at least a byte is left to send, so the connection still carries data
+                resumeAt = Math.min(Math.min(old.getLong(20), existing), Math.max(fileLength - 1, 0));
+            }
+        }
+        if (journal != null) {
+            journal.close(); // opened by an earlier SYN
+        }
+        this.fileLength = fileLength;
+        this.fileTime = fileTime;
+        journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        write(resumeAt);
+        return resumeAt;
+    }
+
+    /**
+     * Bytes up to `offset` of the output file have been written to `data`. Checkpoint them if the last checkpoint
+     * is old enough. Cheap otherwise; call after every write.
+     */
+    public synchronized void progress(FileChannel data, long offset) throws IOException {
+        if (journal == null || offset <= committed || System.nanoTime() - lastCheckpoint < CHECKPOINT_INTERVAL) {
+            return;
+        }
+        data.force(false); // the data first: the journal never claims what is not on disk
+        write(offset);
+    }
+
+    /** The file is complete: the journal is of no more use. */
+    public synchronized void complete(){
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("CheckpointJournal: cannot delete " + path + ": " + e);
+        }
+    }
+
+    private void write(long offset) throws IOException {
+        record.clear();
+        record.putInt(MAGIC).putLong(fileLength).putLong(fileTime).putLong(offset);
+        record.putInt((int) crc(record));
+        record.flip();
+        long position = 0;
+        while (record.hasRemaining()) {
+            position += journal.write(record, position);
+        }
+        journal.force(false);
+        committed = offset;
+        lastCheckpoint = System.nanoTime();
+    }
+
+    /** CRC32 of the first 28 bytes of a record. */
+    private static long crc(ByteBuffer rec){
+        CRC32 crc = new CRC32();
+        crc.update(rec.array(), rec.arrayOffset(), 28);
+        return crc.getValue();
+    }
+}
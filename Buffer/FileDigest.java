@@ -0,0 +1,98 @@
+package Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Streaming digest of the data of a transfer: the CRC32C of its bytes and their count, updated piece by piece as the
+ * data goes by. The sender digests what it reads from the file and sends the digest in its FIN; the receiver digests
+ * what it writes and compares the two, so the file is checked end to end and not only segment by segment.
+ *
+ * Wire format (LENGTH bytes, big endian): the byte count in 8 bytes, then the CRC32C in 4.
+ */
+public class FileDigest {
+    public static final int LENGTH = 12;
+    private static final int READ_BACK_CHUNK = 1 << 20; // in byte. See of()
+
+    private final CRC32C crc = new CRC32C();
+    private long length = 0;
+
+    public synchronized void update(byte[] data, int offset, int length){
+        crc.update(data, offset, length);
+        this.length += length;
+    }
+
+    /** Digest the bytes between src's position and limit. src is not changed. */
+    public synchronized void update(ByteBuffer src){
+        length += src.remaining();
+        crc.update(src.duplicate());
+    }
+
+    /** Digest of the `length` bytes of channel from `offset`, read back from the file. */
+    public static FileDigest of(FileChannel channel, long offset, long length) throws IOException {
+        FileDigest digest = new FileDigest();
+        ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(READ_BACK_CHUNK, Math.max(length, 1)));
+        while (length > 0) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), length));
+            int read = channel.read(chunk, offset);
+            if (read < 0) {
+                break; // the file is shorter. The count tells
+            }
+            chunk.flip();
+            digest.update(chunk);
+            offset += read;
+            length -= read;
+        }
+        return digest;
+    }
+
+    public synchronized long getLength(){
+        return length;
+    }
+
+    public synchronized int getCRC(){
+        return (int) crc.getValue();
+    }
+
+    public byte[] toBytes(){
+        return ByteBuffer.allocate(LENGTH).putLong(getLength()).putInt(getCRC()).array();
+    }
+
+    /** The digest in the first LENGTH bytes of data, or null if there are fewer. */
+    public static Digest fromBytes(byte[] data, int length){
+        if (data == null || length < LENGTH) {
+            return null;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        return new Digest(bb.getLong(0), bb.getInt(8));
+    }
+
+    public boolean matches(Digest other){
+        return other != null && other.length == getLength() && other.crc == getCRC();
+    }
+
+    public String toString(){
+        return Digest.toString(getLength(), getCRC());
+    }
+
+    /** A digest received from the other end. */
+    public static class Digest {
+        public final long length;
+        public final int crc;
+
+        Digest(long length, int crc){
+            this.length = length;
+            this.crc = crc;
+        }
+
+        static String toString(long length, int crc){
+            return length + " bytes, CRC32C " + String.format("%08x", crc);
+        }
+
+        public String toString(){
+            return toString(length, crc);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package Buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sender file source for mmap mode: the file is memory-mapped and every segment is a read-only slice of the
+ * mapping, handed to Packet.setDataAndLength(Packet, ByteBuffer). The only copy of the file data is the one into
+ * the datagram when a segment is (re)transmitted. It replaces FileToBuffer and SenderBuffer.
+ *
+ * Large files are mapped REGION_SIZE bytes at a time. A segment never spans two regions, so the last segment of a
+ * region may be short. A region is unmapped by the GC once no packet holds a slice of it.
+ *
+ * Only used by the packetizer thread.
+ */
+public class MappedFileSource {
+    private static final long REGION_SIZE = 1L << 30; // in byte
+
+    private final FileChannel channel;
+    private final long end;         // file offset after the last byte to slice
+    private long position = 0;      // next file byte to slice
+    private MappedByteBuffer region; // the region `position` is in. null before the first slice
+    private long regionStart;
+
+    public MappedFileSource(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        end = channel.size();
+    }
+
+    /** Slice only the `length` bytes of the file from `offset` (one stripe of a striped transfer). */
+    public MappedFileSource(Path path, long offset, long length) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        position = offset;
+        end = Math.min(offset + length, channel.size());
+    }
+
+    public boolean hasRemaining(){
+        return position < end;
+    }
+
+    /**
+     * The next up to `length` bytes of the file, as a slice from index 0 to its limit.
+     * @return null at the end of the file
+     */
+    public ByteBuffer next(int length) throws IOException {
+        if (position >= end) {
+            return null;
+        }
+        if (region == null || position >= regionStart + region.capacity()) {
+            regionStart = position;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(REGION_SIZE, end - regionStart));
+        }
+        int k = (int) Math.min(length, regionStart + region.capacity() - position);
+        ByteBuffer slice = region.slice((int) (position - regionStart), k);
+        position += k;
+        return slice;
+    }
+
+    /** Close the file. Slices handed out stay readable. */
+    public void close(){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("MappedFileSource: close(): " + e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package Buffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted byte array handed out by PayloadPool. The array may be longer than the data it holds;
+ * the valid bytes are [0, length).
+ *
+ * Whoever gets a Payload from the pool owns one reference. Every additional holder (e.g. a retransmitted copy
+ * of a Packet) calls retain(), and every holder calls release() exactly once when done. The array goes back to
+ * the pool when the last reference is released and must not be touched afterwards.
+ */
+public class Payload {
+    private final byte[] array;
+    private final PayloadPool pool; // null if the array is too large to be pooled
+    private final AtomicInteger refCount = new AtomicInteger();
+    private int length;
+
+    Payload(byte[] array, PayloadPool pool) {
+        this.array = array;
+        this.pool = pool;
+    }
+
+    /** Called by PayloadPool when the payload is handed out. */
+    void reset(int length) {
+        this.length = length;
+        this.refCount.set(1);
+    }
+
+    /** Shrink the valid bytes to [0, length) after the array has been filled. At most the acquired length. */
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    public byte[] array() {
+        return this.array;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public Payload retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Payload: retain() after the last reference was released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remain = refCount.decrementAndGet();
+        if (remain == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        }
+        else if (remain < 0) {
+            throw new IllegalStateException("Payload: released more times than retained");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package Buffer;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of Payload arrays in power-of-two size classes, shared by all threads of one TCPSend or TCPRcv
+ * (see PacketManager.getPayloadPool()). In steady state every segment reuses an array released by an
+ * acknowledged (sender) or consumed (receiver) segment, so no payload arrays are allocated.
+ *
+ * Requests larger than the largest size class get a fresh, unpooled array.
+ */
+public class PayloadPool {
+    private static final int MIN_CLASS_SHIFT = 6;   // 64 bytes
+    private static final int MAX_CLASS_SHIFT = 16;  // 64 KiB
+    private static final int MAX_FREE_PER_CLASS = 4096;
+
+    private final ArrayDeque<Payload>[] free;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PayloadPool() {
+        free = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < free.length; ++i) {
+            free[i] = new ArrayDeque<Payload>();
+        }
+    }
+
+    /**
+     * Get a payload that can hold at least `length` bytes, with its length set to `length` and one reference
+     * owned by the caller.
+     */
+    public Payload acquire(int length) {
+        int sizeClass = sizeClass(length);
+        Payload p = null;
+        if (sizeClass < 0) {
+            p = new Payload(new byte[length], null);
+        }
+        else {
+            ArrayDeque<Payload> q = free[sizeClass];
+            synchronized (q) {
+                p = q.pollLast();
+            }
+            if (p == null) {
+                p = new Payload(new byte[1 << (sizeClass + MIN_CLASS_SHIFT)], this);
+            }
+        }
+        p.reset(length);
+        return p;
+    }
+
+    /** Called by Payload.release() when the last reference is gone. */
+    void recycle(Payload p) {
+        ArrayDeque<Payload> q = free[sizeClass(p.array().length)];
+        synchronized (q) {
+            if (q.size() < MAX_FREE_PER_CLASS) {
+                q.addLast(p);
+            }
+        }
+    }
+
+    /** Index of the smallest size class that fits `length` bytes, or -1 if none does. */
+    private static int sizeClass(int length) {
+        if (length <= (1 << MIN_CLASS_SHIFT)) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        if (shift > MAX_CLASS_SHIFT) return -1;
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
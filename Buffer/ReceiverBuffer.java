@@ -1,136 +1,80 @@
 package Buffer;
 
+import java.nio.ByteBuffer;
+
 import Exceptions.*;
 
 //receiver: java TCPend -p <port> -m <mtu> -c <sws> -f <file name>
 
-
+/**
+ * Ring of in-order file data between PacketToBuffer (the producer) and BufferToFile (the consumer).
+ */
 public class ReceiverBuffer extends Buffer {
-    /* "Pointers" that are indices of the buffer. Check validility by AssertValidPointers() */
-    private int lastByteRead;
-    private int nextByteExpected;
-    private boolean noMoreNewByte;
-    // private int lastByteRcvd;
-
-    /* obsolete */
-    // private boolean allDataReceived = false;     // If set, `DataReceiver` has put all data into buffer
-    
     public ReceiverBuffer(int bufferSize, int mtu, int windowSize) throws BufferSizeException {
-        super(++bufferSize, mtu, windowSize); // We add one additional byte to avoid ambiguity when wrapping.
-        // The `lastByteRead` byte cannot be written even if `lastByteRead == nextByteExpected`. 
-        // If `lastByteRead == nextByteExpected`, the free space is 0 and getData() must be called.
-        lastByteRead = bufferSize - 1;
-        nextByteExpected = 0;
-    }
-
-    public int getLastByteRead(){
-        return this.lastByteRead;
-    }
-
-    public int getNextByteExpected(){
-        return this.nextByteExpected;
+        super(bufferSize, mtu, windowSize);
     }
 
     public boolean getNoMoreNewByte() {
-        return this.noMoreNewByte;
+        return isClosed();
     }
 
-    public synchronized void notifyAllWrapper(){
-        this.notifyAll();
+    /** Producer: all data has been put. Wakes up BufferToFile if it is waiting. */
+    public void setNoMoreNewByteToTrue() {
+        close();
     }
 
-    public synchronized void setNoMoreNewByteToTrue() {
-        this.noMoreNewByte = true;
-        notifyAll();
+    public int checkFreeSpace(){
+        return freeSpace();
     }
 
-    public int checkFreeSpace(){ // `lastByteRead` is NOT free
-        if (nextByteExpected == lastByteRead){ 
-            return 0;
-        }
-        else if (nextByteExpected > lastByteRead) { // not wrapped
-            return bufferSize - (nextByteExpected - lastByteRead);
-        }
-        else {   // wrapped
-            return (lastByteRead - nextByteExpected);
-        }
+    /** Producer: park until more than `free` bytes are free. */
+    public int waitForFreeSpaceAbove(int free){
+        return awaitFreeSpaceAbove(free);
     }
 
-    /* Design: You can only put continuous data in the buffer. All non-continuous data are 
-     * stored in and managed by PacketManager as packets. Therefore, ReceiverBuffer does not 
+    /* Design: You can only put continuous data in the buffer. All non-continuous data are
+     * stored in and managed by PacketManager as packets. Therefore, ReceiverBuffer does not
      * need to maintain lastByteRcvd.
      */
-    public synchronized void put(byte[] data) throws BufferInsufficientSpaceException{
-        if (data.length == 0) return;
-        
-        if (checkFreeSpace() < data.length) throw new BufferInsufficientSpaceException();
-        
-        int endByteCount = bufferSize - nextByteExpected;
-        boolean wrapped = data.length > endByteCount;
-        
-        if (!wrapped){ // not wrapped
-            System.arraycopy(data, 0, this.buf, nextByteExpected, data.length);
-            nextByteExpected += data.length;
-        }
-        else{ // wrapped
-            System.arraycopy(data, 0, this.buf, nextByteExpected, endByteCount);
-            System.arraycopy(data, endByteCount, this.buf, 0, data.length - endByteCount);
-            nextByteExpected = data.length - endByteCount;
-        }
+    public void put(byte[] data) throws BufferInsufficientSpaceException{
+        put(data, 0, data.length);
+    }
 
-        this.notifyAll();
+    /*
+     * Producer: put data[offset, offset + length). Lets callers put a (possibly oversized) pooled payload array directly.
+     */
+    public void put(byte[] data, int offset, int length) throws BufferInsufficientSpaceException{
+        if (length == 0) return;
+        if (freeSpace() < length) throw new BufferInsufficientSpaceException();
+        write(data, offset, length);
     }
 
     /*
-     * Get as much data as possible.
+     * Consumer: lend views of all ready data without waiting. See Buffer.lend(). 
+     * The data stays in the buffer until commitData() is called.
+     * @return null if the buffer is empty
      */
-    public synchronized byte[] getData() {
-        int lastContinuousByte = (nextByteExpected == 0) ? (bufferSize - 1) : (nextByteExpected - 1);
-        if (lastByteRead == lastContinuousByte) { 
-            // No more data
+    public ByteBuffer[] lendData() {
+        int dataLength = available();
+        if (dataLength == 0) {
             return null;
         }
-        
-        int dataLength;
-        boolean wrapped = lastByteRead > lastContinuousByte;
-
-        if (!wrapped) { // Not wrapped
-            dataLength = lastContinuousByte - lastByteRead;
-        }
-        else { // wrapped
-            dataLength = bufferSize - lastByteRead + lastContinuousByte;
-        }
-        
-        byte[] returnData = new byte[dataLength];
-        if(!wrapped) {
-            System.arraycopy(this.buf, lastByteRead + 1, returnData, 0, dataLength);
-            lastByteRead += dataLength;
-        }
-        else {
-            int nextByteToBeRead = (lastByteRead + 1) % bufferSize;
-            int endByteCount = bufferSize - lastByteRead - 1;
-            System.arraycopy(this.buf, nextByteToBeRead, returnData, 0, endByteCount);
-            System.arraycopy(this.buf, 0, returnData, endByteCount, dataLength - endByteCount);
-            lastByteRead = dataLength - endByteCount - 1;
-        }
-        if (lastByteRead != lastContinuousByte) {
-            throw new RuntimeException();
-        }
-        return returnData; // Caller needs to confirm the return length. May not be `length`.
+        return lend(dataLength);
     }
 
-    public synchronized byte[] waitAndGetData() {
-        byte[] b = this.getData();
-                    
-        // if there is no data, wait(). when wake up, go back to start of while loop.
-        while (b == null && this.noMoreNewByte == false) {
-            this.notifyAll();
-            try{
-                this.wait();
-            } catch (InterruptedException e) {}
-            b = this.getData();
+    /*
+     * Consumer: same as lendData(), parking while the buffer is empty and more data may come.
+     * @return null if all data has been taken
+     */
+    public ByteBuffer[] waitAndLendData() {
+        if (awaitData() == 0) {
+            return null;
         }
+        return lendData();
+    }
 
-        return b;
+    /** Consumer: give back the first `length` lent bytes. */
+    public void commitData(int length) {
+        commit(length);
     }
 }
@@ -0,0 +1,145 @@
+package Buffer;
+
+import java.util.zip.Deflater;
+
+
+/**
+ * Optional compression stage between SenderBuffer and the packetizer, used when compression was negotiated at the
+ * handshake. See SegmentDecompressor for the receiving side.
+ *
+ * Data is taken from the SenderBuffer in blocks. The order-0 entropy of a sample of each block decides whether it
+ * is worth compressing: already-compressed content (pdf, docx, ...) is sent as is, anything else goes through one
+ * deflate stream shared by the whole connection and sync-flushed at the end of every block. Every segment payload
+ * starts with a tag byte:
+ *
+ *   RAW       the rest of the payload is file data
+ *   DEFLATE   the rest of the payload is the next piece of the deflate stream
+ *
+ * A DEFLATE segment may end in the middle of a block; the receiver inflates the pieces in sequence order. RAW
+ * segments only start at block boundaries, where the stream is flushed, so they never split a deflate block.
+ * Sequence numbers count payload bytes as sent, i.e. compressed bytes.
+ *
+ * Only used by the packetizer thread.
+ */
+public class SegmentCompressor {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;    // in byte
+    private static final int BLOCK_SEGMENTS = 16;           // a block is this many segments of raw data, at most MAX_BLOCK_SIZE
+    private static final int SAMPLE_LENGTH = 4096;           // in byte. bytes of a block the entropy is estimated from
+    private static final double INCOMPRESSIBLE_BITS_PER_BYTE = 7.5;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final int segmentSize;
+    private final int blockSize;
+    private Payload block;      // the block being sent. null between blocks
+    private boolean blockRaw;
+    private int blockOffset;    // RAW blocks: bytes of the block already sent
+
+    /**
+     * @param segmentSize largest segment payload in bytes, tag byte included
+     */
+    public SegmentCompressor(int segmentSize){
+        this.segmentSize = segmentSize;
+        this.blockSize = Math.min(MAX_BLOCK_SIZE, BLOCK_SEGMENTS * segmentSize);
+    }
+
+    /** Whether a block is not completely packetized yet. */
+    public boolean hasPending(){
+        return block != null;
+    }
+
+    /**
+     * The payload of the next segment, at most segmentSize bytes. Waits for the SenderBuffer like
+     * SenderBuffer.getDataToSend() as long as the segment is empty; a partly filled segment is returned as soon as
+     * the SenderBuffer runs dry.
+     * @return null if the SenderBuffer is finished and drained and nothing is pending
+     */
+    public Payload next(SenderBuffer src, PayloadPool pool) {
+        Payload segment = pool.acquire(segmentSize);
+        byte[] out = segment.array();
+        int room = segmentSize - 1;
+        int n = 0; // bytes after the tag
+        while (n < room) {
+            if (block == null) {
+                if (n > 0 && src.getAvailableDataSize() == 0) {
+                    break; // do not hold back what we have
+                }
+                block = src.getDataToSend(blockSize, pool);
+                if (block == null) {
+                    break; // no more data
+                }
+                blockRaw = !isCompressible(block);
+                blockOffset = 0;
+                if (blockRaw && n > 0) {
+                    break; // RAW data starts a new segment
+                }
+                if (!blockRaw) {
+                    deflater.setInput(block.array(), 0, block.length());
+                }
+            }
+            if (n == 0) {
+                out[0] = blockRaw ? RAW : DEFLATE;
+            }
+            if (blockRaw) {
+                int k = Math.min(room - n, block.length() - blockOffset);
+                System.arraycopy(block.array(), blockOffset, out, 1 + n, k);
+                n += k;
+                blockOffset += k;
+                if (blockOffset == block.length()) {
+                    releaseBlock();
+                }
+                break; // a RAW segment carries one block at most
+            }
+            int space = room - n;
+            int k = deflater.deflate(out, 1 + n, space, Deflater.SYNC_FLUSH);
+            n += k;
+            if (k < space) {
+                releaseBlock(); // the whole block is consumed and flushed
+            }
+        }
+        if (n == 0) {
+            segment.release();
+            return null;
+        }
+        segment.setLength(1 + n);
+        return segment;
+    }
+
+    /** Free the deflater. The compressor cannot be used afterwards. */
+    public void close(){
+        if (block != null) {
+            releaseBlock();
+        }
+        deflater.end();
+    }
+
+    private void releaseBlock(){
+        block.release();
+        block = null;
+    }
+
+    /** Order-0 entropy of an evenly spread sample of the block, against INCOMPRESSIBLE_BITS_PER_BYTE. */
+    static boolean isCompressible(Payload block){
+        byte[] data = block.array();
+        int length = block.length();
+        int step = Math.max(1, length / SAMPLE_LENGTH);
+        int[] count = new int[256];
+        int samples = 0;
+        for (int i = 0; i < length; i += step) {
+            ++count[data[i] & 0xFF];
+            ++samples;
+        }
+        double bits = 0;
+        for (int c : count) {
+            if (c > 0) {
+                double p = (double) c / samples;
+                bits -= p * Math.log(p);
+            }
+        }
+        bits /= Math.log(2);
+        // a small sample cannot show more than log2(samples) bits per byte
+        return bits < Math.min(INCOMPRESSIBLE_BITS_PER_BYTE, 0.9 * Math.log(samples) / Math.log(2));
+    }
+}
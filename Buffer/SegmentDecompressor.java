@@ -0,0 +1,83 @@
+package Buffer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import Packet.Packet;
+
+/**
+ * Receiving side of SegmentCompressor. Segments must be offer()ed in sequence order; read() then yields the file
+ * data they stand for. One DEFLATE segment can inflate to many times its size, so its data is read out in pieces
+ * as the caller has room for it.
+ *
+ * Only used by the thread that moves in-order packets into the ReceiverBuffer.
+ */
+public class SegmentDecompressor {
+    private final Inflater inflater = new Inflater(true);
+    private Packet current;     // segment being read. null if all offered segments are read out
+    private boolean currentRaw;
+    private int rawOffset;      // RAW segments: next payload byte to read
+
+    /** Whether the last offer()ed segment still has data to read. Only offer() the next segment if not. */
+    public boolean hasPending(){
+        return current != null;
+    }
+
+    /**
+     * Take the next in-order segment. Its payload is released once it is read out.
+     */
+    public void offer(Packet pkt){
+        current = pkt;
+        currentRaw = pkt.getData()[0] == SegmentCompressor.RAW;
+        if (currentRaw) {
+            rawOffset = 1;
+        }
+        else {
+            inflater.setInput(pkt.getData(), 1, pkt.getDataLength() - 1);
+        }
+        if (pkt.getDataLength() <= 1) {
+            done(); // nothing but the tag
+        }
+    }
+
+    /**
+     * Read up to `length` bytes of file data into dst[offset, offset + length).
+     * @return number of bytes read. 0 if there is no pending segment.
+     * @throws DataFormatException if the deflate stream is corrupted
+     */
+    public int read(byte[] dst, int offset, int length) throws DataFormatException {
+        if (current == null || length == 0) {
+            return 0;
+        }
+        if (currentRaw) {
+            int k = Math.min(length, current.getDataLength() - rawOffset);
+            System.arraycopy(current.getData(), rawOffset, dst, offset, k);
+            rawOffset += k;
+            if (rawOffset == current.getDataLength()) {
+                done();
+            }
+            return k;
+        }
+        int k = inflater.inflate(dst, offset, length);
+        if (k < length && inflater.needsInput()) {
+            done(); // input used up and no output held back
+        }
+        else if (k == 0) {
+            throw new DataFormatException("deflate stream ended or stalled");
+        }
+        return k;
+    }
+
+    /** Free the inflater. The decompressor cannot be used afterwards. */
+    public void close(){
+        if (current != null) {
+            done();
+        }
+        inflater.end();
+    }
+
+    private void done(){
+        current.release();
+        current = null;
+    }
+}
@@ -2,198 +2,78 @@ package Buffer;
 
 import Exceptions.*;
 
+/**
+ * Ring of file data between FileToBuffer (the producer) and NewPacketSender (the consumer). Retransmissions never
+ * come from here: once data is taken by getDataToSend(), PacketManager keeps it.
+ */
 public class SenderBuffer extends Buffer {
-    /* "Pointers" that are indices of the buffer. Check validility by AssertValidPointers() */
-    private int lastByteACK;
-    private int lastByteSent;
-    private int lastByteWritten;
-
-    /* Indicators of thread `FileToBuffer` finishing putting data into buffer */
-    private boolean fileToBufferFinish = false;     // If set, `FileToBuffer` has put all data into buffer.
-    
     public SenderBuffer(int bufferSize, int mtu, int windowSize) throws BufferSizeException {
-        super(++bufferSize, mtu, windowSize);  // We add one additional byte to avoid ambiguity when wrapping.
-        // The `lastByteACK` byte cannot be written even if `lastByteACK == nextByteExpected`, where `nextByteExpected = (lastByteWritten + 1) % bufferSize`. 
-        // If `lastByteRead == nextByteExpected`, the free space is 0 and getDataToSend() must be called.
-        lastByteACK = lastByteSent = 0; // Apr 12: The first sending byte's sequence number is 1
-        lastByteWritten = 0;
-    }
-
-    public synchronized int getLastByteACK(){
-        return this.lastByteACK;
-    }
-
-    public synchronized int getLastByteSent(){
-        return this.lastByteSent;
+        super(bufferSize, mtu, windowSize);
     }
 
-    
-
-    public synchronized int getLastByteWritten(){
-        return this.lastByteWritten;
+    /** If set, `FileToBuffer` has put all data into buffer. */
+    public void setFileToBufferFinished() {
+        close();
     }
 
-    public synchronized void setFileToBufferFinished() {
-        fileToBufferFinish = true;
-    }
-    
-    public synchronized boolean isFileToBufferFinished() {
-        return fileToBufferFinish;
+    public boolean isFileToBufferFinished() {
+        return isClosed();
     }
 
-    private synchronized int checkFreeSpace(){ // `lastByteACK` is NOT free
-        int nextByteExpected = (lastByteWritten + 1) % bufferSize;
-        if (nextByteExpected == lastByteSent) {
-            return 0;
-            
-        }
-        else if (nextByteExpected > lastByteSent) { // not wrapped
-            return bufferSize - (nextByteExpected - lastByteSent);
-        }
-        else{   // wrapped
-            return (lastByteSent - nextByteExpected);
-        }
-    }
-
-    public synchronized int waitForFreeSpace() throws DebugException{
-        int fs; 
-        while((fs = this.checkFreeSpace()) == 0){
-            full = true;
-            notifyAll();
-            try{
-                // System.out.println("Thread: " + Thread.currentThread().getName() + " is now going to sleep at " + this.getClass().getName() + "::waitForFreeSpace()" );
-                wait();
-            } catch (InterruptedException e) {}
-            // System.out.println("Thread: " + Thread.currentThread().getName() + " is now woken up from " + this.getClass().getName() + "::waitForFreeSpace()" );
-        }
+    /** Producer: park while the buffer is full. */
+    public int waitForFreeSpace() throws DebugException{
+        int fs = awaitFreeSpaceAbove(0);
         if (fs <= 0) {
             throw new DebugException();
         }
-        
         return fs;
     }
 
-    public synchronized void put(byte[] data) throws BufferInsufficientSpaceException {
-        if (data.length == 0) return;
-        
-        if (checkFreeSpace() < data.length){
-            throw new BufferInsufficientSpaceException();
-        }
-        
-        int endByteCount = bufferSize - lastByteWritten - 1;
-        boolean wrapped = data.length > endByteCount;
+    /** Producer */
+    public void put(byte[] data) throws BufferInsufficientSpaceException {
+        put(data, 0, data.length);
+    }
 
-        // wrap check
-        if (!wrapped) { // not wrapped
-            System.arraycopy(data, 0, this.buf, lastByteWritten + 1, data.length);
-            lastByteWritten += data.length;
-        }
-        else{ // wrapped
-            System.arraycopy(data, 0, this.buf, lastByteWritten + 1, endByteCount);
-            System.arraycopy(data, endByteCount, this.buf, 0, data.length - endByteCount);   
-            lastByteWritten = data.length - endByteCount - 1;
+    /** Producer: put the `length` bytes of data from `offset`, e.g. the part of an array a short read filled. */
+    public void put(byte[] data, int offset, int length) throws BufferInsufficientSpaceException {
+        if (length == 0) return;
+        if (freeSpace() < length){
+            throw new BufferInsufficientSpaceException();
         }
-
-        empty = false;
-        this.notifyAll();
+        write(data, offset, length);
     }
 
-    public synchronized void put(byte[] data, boolean finish) throws BufferInsufficientSpaceException, InvalidPointerException {
+    /** Producer */
+    public void put(byte[] data, boolean finish) throws BufferInsufficientSpaceException {
         put(data);
         if(finish){
-            this.fileToBufferFinish = true;
+            setFileToBufferFinished();
         }
     }
 
     /**
-     * Get [lastByteSent + 1, lastByteSent + 1 + length) data from buffer.
-     * Advance `lastByteSent` by length.
-     * Note this get function DOES advance the lastByteSent pointer, which is different 
-     * from the handwritten draft. The thread that resend packet should NEVER get data 
-     * by calling this function. It should retrieve data from "PacketManager".
+     * Consumer: take up to `length` bytes, parking while the buffer is empty and FileToBuffer is not finished.
+     * The thread that resends packets should NEVER get data by calling this function. It should retrieve data from
+     * "PacketManager".
+     * The data is copied into an array taken from pool. The caller owns the returned Payload's reference.
+     * @return null if FileToBuffer is finished and everything has been taken
      */
-    public synchronized byte[] getDataToSend(int length) throws InvalidPointerException {
+    public Payload getDataToSend(int length, PayloadPool pool) {
         if (length <= 0) return null;
-        
-        while (lastByteWritten == lastByteSent) { 
-            // Buffer empty. No more data to send. 
-            empty = true;
-
-            // Does app still want to send data? Maybe it's finished?
-            if(this.fileToBufferFinish) { return null; }
-
-            // The app still has data wishes to send. Notify it 
-            notifyAll();
-            try{
-                // System.out.println("Thread: " + Thread.currentThread().getName() + " is now going to sleep at " + this.getClass().getName() + "::getDataToSend()" );
-                wait();
-            } catch (InterruptedException e) {}
-            // System.out.println("Thread: " + Thread.currentThread().getName() + " is now woken up from " + this.getClass().getName() + "::getDataToSend()" );
-        }
-        
-        int byteToBeSent;
-        boolean wrapped = !(lastByteWritten > lastByteSent);
-
-        if (!wrapped) { // Not wrapped
-            byteToBeSent = Math.min(length, lastByteWritten - lastByteSent);
-        }
-        else { // wrapped
-            byteToBeSent = Math.min(length, lastByteWritten + bufferSize - lastByteSent);
+        int available = awaitData();
+        if (available == 0) {
+            return null;
         }
-
-        wrapped = (lastByteSent + byteToBeSent) >= (bufferSize);
-        
-        byte[] returnData = new byte[byteToBeSent];
-        if(!wrapped) {
-            System.arraycopy(this.buf, lastByteSent + 1, returnData, 0, byteToBeSent);
-            lastByteSent += byteToBeSent;
-        }
-        else {
-            int endByteCount = bufferSize - lastByteSent - 1;
-            System.arraycopy(this.buf, lastByteSent + 1, returnData, 0, endByteCount);
-            System.arraycopy(this.buf, 0, returnData, endByteCount, byteToBeSent - endByteCount);
-            lastByteSent = byteToBeSent - endByteCount - 1;
-        }
-        
-        //AssertValidSentPointer();
-        this.full = false;
-        notifyAll();
-
+        int byteToBeSent = Math.min(length, available);
+        Payload returnData = pool.acquire(byteToBeSent);
+        read(returnData.array(), 0, byteToBeSent);
         return returnData; // Caller needs to confirm the return length. May not be `length`.
     }
 
     /**
-    This function checks how many bytes of data are ready to be sent to packet manager 
-    */    
-    public synchronized int getAvailableDataSize(){
-        int availableByte; 
-        boolean wrapped = (lastByteWritten < lastByteSent);
-
-        if (!wrapped) { // Not wrapped
-            availableByte = lastByteWritten - lastByteSent; 
-        }
-        else { // wrapped
-            availableByte = lastByteWritten + bufferSize - lastByteSent; 
-        }
-
-        return availableByte; 
-    }
-
-    private synchronized void AssertValidSentPointer() throws InvalidPointerException{
-        if (lastByteACK < lastByteWritten){
-            if (lastByteSent < lastByteACK || lastByteSent > lastByteWritten) {
-                throw new InvalidPointerException();
-            }
-        }
-        else if (lastByteACK > lastByteWritten){
-            if (lastByteSent < lastByteACK && lastByteSent > lastByteWritten) {
-                throw new InvalidPointerException();
-            }
-        }
-        else {
-            if (lastByteSent != lastByteACK){
-                throw new InvalidPointerException();
-            }
-        }
+    This function checks how many bytes of data are ready to be sent to packet manager
+    */
+    public int getAvailableDataSize(){
+        return available();
     }
 }
@@ -0,0 +1,156 @@
+package Congestion;
+
+/**
+ * Model-based, after BBR: instead of reacting to loss, keep an estimate of the bottleneck bandwidth (the highest
+ * delivery rate of the last BW_ROUNDS round trips) and of the propagation delay (the lowest RTT of the last
+ * MIN_RTT_WINDOW), and size the window to a multiple of their product, the BDP.
+ *
+ *   STARTUP    the window grows like slow start until the bandwidth stops growing by 25% for 3 rounds
+ *   DRAIN      the window is cut to one BDP until the queue built in STARTUP is gone
+ *   PROBE_BW   the window cycles through PROBE_GAINS, one round each: probe for more bandwidth, drain what that
+ *              queued, cruise
+ *
+ * With a Pacer, data is also sent at the estimated bandwidth times the same gain (HIGH_GAIN in STARTUP, its inverse
+ * in DRAIN), which is how BBR itself probes and drains; the window then only bounds what is in flight.
+ *
+ * A round is a min RTT worth of ACKs. Without per-packet delivery tracking the delivery rate of a round is the
+ * segments ACKed in it over its length. Losses are ignored; a timeout restarts the window from one segment, and it
+ * grows back to the model's window like slow start.
+ */
+public class BBRController implements CongestionController {
+    private enum State { STARTUP, DRAIN, PROBE_BW }
+
+    private static final double HIGH_GAIN = 2 / Math.log(2); // STARTUP doubles the delivery rate every round
+    private static final double CWND_GAIN = 2;               // room for delayed and stretched ACKs
+    private static final double[] PROBE_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+    private static final int BW_ROUNDS = 10;
+    private static final long MIN_RTT_WINDOW = 10_000_000_000L; // 10 s
+    private static final int MIN_WINDOW = 4;
+
+    private final int maxWindow;
+    private State state = State.STARTUP;
+    private double cwnd = INITIAL_WINDOW; // in segment
+
+    private final double[] bwSamples = new double[BW_ROUNDS]; // delivery rate of the last rounds, in segment per ns
+    private long round = 0;
+    private long roundStart = -1;       // -1 until the first ACK
+    private long deliveredAtRoundStart = 0;
+    private long delivered = 0;         // segments ACKed so far
+
+    private long minRtt = Long.MAX_VALUE;
+    private long minRttStamp = 0;       // when minRtt was measured
+
+    private double fullBw = 0;          // STARTUP: bandwidth at the last 25% growth
+    private int fullBwRounds = 0;       // STARTUP: rounds since then
+    private int cycleIndex = 0;         // PROBE_BW: index into PROBE_GAINS
+
+    public BBRController(int maxWindow){
+        this.maxWindow = maxWindow;
+    }
+
+    public int getWindow(){
+        return Math.max(1, (int) cwnd);
+    }
+
+    public double getPacingRate(){
+        double gain;
+        switch (state) {
+            case STARTUP:
+                gain = HIGH_GAIN;
+                break;
+            case DRAIN:
+                gain = 1 / HIGH_GAIN;
+                break;
+            default:
+                gain = PROBE_GAINS[cycleIndex];
+                break;
+        }
+        return gain * bandwidth() * 1e9;
+    }
+
+    public void onACK(int acked, int inFlight, long now){
+        delivered += acked;
+        if (roundStart < 0) {
+            roundStart = now;
+        }
+        else if (minRtt != Long.MAX_VALUE && now - roundStart >= minRtt) {
+            endRound(now, inFlight - acked);
+        }
+
+        // grow towards the model's window, or shrink to it at once
+        double target = targetWindow();
+        cwnd = (cwnd < target) ? Math.min(cwnd + acked, target) : target;
+        cwnd = Math.min(Math.max(cwnd, MIN_WINDOW), maxWindow);
+    }
+
+    public void onRecoveryEnd(long now){}
+
+    public void onDupACK(long now){}
+
+    public void onRTTSample(long rtt, long now){
+        if (rtt <= minRtt || now - minRttStamp > MIN_RTT_WINDOW) {
+            minRtt = rtt;
+            minRttStamp = now;
+        }
+    }
+
+    public void onLoss(int inFlight, long now){}
+
+    public void onTimeout(int inFlight, long now){
+        cwnd = 1;
+    }
+
+    private void endRound(long now, int inFlight){
+        bwSamples[(int) (round++ % BW_ROUNDS)] = (double) (delivered - deliveredAtRoundStart) / (now - roundStart);
+        deliveredAtRoundStart = delivered;
+        roundStart = now;
+
+        double bw = bandwidth();
+        switch (state) {
+            case STARTUP:
+                if (bw >= fullBw * 1.25) {
+                    fullBw = bw;
+                    fullBwRounds = 0;
+                }
+                else if (++fullBwRounds >= 3) {
+                    state = State.DRAIN; // the pipe is full
+                }
+                break;
+            case DRAIN:
+                if (inFlight <= bdp()) {
+                    state = State.PROBE_BW;
+                    cycleIndex = 0;
+                }
+                break;
+            case PROBE_BW:
+                cycleIndex = (cycleIndex + 1) % PROBE_GAINS.length;
+                break;
+        }
+    }
+
+    /** The window the model asks for, in segment. */
+    private double targetWindow(){
+        switch (state) {
+            case STARTUP:
+                return (bandwidth() == 0) ? Double.MAX_VALUE : HIGH_GAIN * bdp();
+            case DRAIN:
+                return bdp();
+            default:
+                return CWND_GAIN * PROBE_GAINS[cycleIndex] * bdp();
+        }
+    }
+
+    /** Bandwidth-delay product, in segment. */
+    private double bdp(){
+        return bandwidth() * minRtt;
+    }
+
+    /** The bottleneck bandwidth estimate, in segment per ns. */
+    private double bandwidth(){
+        double max = 0;
+        for (double sample : bwSamples) {
+            max = Math.max(max, sample);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,71 @@
+package Congestion;
+
+/**
+ * Sender: decides how many segments may be in flight. The window actually used is the smaller of the congestion
+ * window and the sliding window given with -c.
+ *
+ * PacketManager reports the events below under its lock, so implementations need not be thread safe. A loss is
+ * reported at most once per window of data: segments sent before the last onLoss() or onTimeout() do not trigger
+ * another one. Times are System.nanoTime() values, durations are in nanosecond.
+ */
+public interface CongestionController {
+    /** Initial congestion window in segments (RFC 6928). */
+    int INITIAL_WINDOW = 10;
+
+    /** The congestion window, in segments. At least 1. */
+    int getWindow();
+
+    /**
+     * The rate a Pacer should send at, in segments per second. 0 (the default) lets PacketManager derive it from
+     * the window and the RTT.
+     */
+    default double getPacingRate(){
+        return 0;
+    }
+
+    /**
+     * A new cumulative ACK retired `acked` segments, outside of fast recovery (the ACK that ends it is reported
+     * with onRecoveryEnd() instead).
+     * @param inFlight segments in flight before the ACK
+     */
+    void onACK(int acked, int inFlight, long now);
+
+    /** An ACK that did not move the cumulative ACK. */
+    void onDupACK(long now);
+
+    /** An RTT sample, from a segment that was sent only once. */
+    void onRTTSample(long rtt, long now);
+
+    /**
+     * A segment was found lost by duplicate ACKs or SACK, and is being fast retransmitted. Fast recovery starts.
+     * @param inFlight segments in flight
+     */
+    void onLoss(int inFlight, long now);
+
+    /** Everything that was in flight when fast recovery started has been ACKed. */
+    void onRecoveryEnd(long now);
+
+    /**
+     * A retransmission timer expired.
+     * @param inFlight segments in flight
+     */
+    void onTimeout(int inFlight, long now);
+
+    /**
+     * The controller called `name`: reno, cubic or bbr.
+     * @param maxWindow the sliding window. The congestion window does not grow beyond it.
+     * @return null if there is no such controller
+     */
+    static CongestionController create(String name, int maxWindow){
+        switch (name) {
+            case "reno":
+                return new RenoController(maxWindow);
+            case "cubic":
+                return new CubicController(maxWindow);
+            case "bbr":
+                return new BBRController(maxWindow);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package Congestion;
+
+/**
+ * CUBIC (RFC 8312). After a loss the window follows W(t) = C (t - K)^3 + Wmax, where Wmax is the window before the
+ * loss and K the time it takes to get back there: fast growth far from Wmax, a plateau around it, then probing
+ * beyond it. The window never grows slower than Reno's would (the TCP-friendly region). Slow start and fast
+ * recovery are as in RenoController.
+ */
+public class CubicController implements CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;    // multiplicative decrease
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA); // Reno-equivalent additive increase
+
+    private final int maxWindow;
+    private double cwnd = INITIAL_WINDOW; // in segment
+    private double ssthresh = Double.MAX_VALUE;
+    private boolean inRecovery = false;
+
+    private double wMax = 0;        // window before the last reduction
+    private long epochStart = -1;   // when the current cubic epoch started. -1: none yet since the last reduction
+    private double k;               // in second
+    private double origin;          // the plateau of the cubic function
+    private double wEst;            // the window Reno would have
+    private long srtt = 0;          // smoothed RTT
+
+    public CubicController(int maxWindow){
+        this.maxWindow = maxWindow;
+    }
+
+    public int getWindow(){
+        return Math.max(1, (int) cwnd);
+    }
+
+    public void onACK(int acked, int inFlight, long now){
+        if (inRecovery) {
+            cwnd = Math.max(cwnd - acked + 1, 1);
+        }
+        else if (cwnd < ssthresh) {
+            cwnd += acked;
+        }
+        else {
+            congestionAvoidance(acked, now);
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    private void congestionAvoidance(int acked, long now){
+        if (epochStart < 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+                origin = wMax;
+            }
+            else {
+                k = 0;
+                origin = cwnd;
+            }
+            wEst = cwnd;
+        }
+        double t = (now - epochStart + srtt) / 1e9; // where the window should be one RTT from now
+        double target = origin + C * Math.pow(t - k, 3);
+        if (target > cwnd) {
+            cwnd += acked * (target - cwnd) / cwnd;
+        }
+        else {
+            cwnd += acked * 0.01 / cwnd; // plateau: grow very slowly
+        }
+        wEst += acked * ALPHA / cwnd;
+        if (wEst > cwnd) {
+            cwnd = wEst; // TCP-friendly region
+        }
+    }
+
+    public void onDupACK(long now){
+        if (inRecovery) {
+            cwnd = Math.min(cwnd + 1, maxWindow);
+        }
+    }
+
+    public void onRTTSample(long rtt, long now){
+        srtt = (srtt == 0) ? rtt : (7 * srtt + rtt) / 8;
+    }
+
+    public void onLoss(int inFlight, long now){
+        reduce();
+        cwnd = ssthresh + 3;
+        inRecovery = true;
+    }
+
+    public void onRecoveryEnd(long now){
+        cwnd = ssthresh;
+        inRecovery = false;
+    }
+
+    public void onTimeout(int inFlight, long now){
+        reduce();
+        cwnd = 1;
+        inRecovery = false;
+    }
+
+    /** Remember the window the loss happened at and start a new epoch below it. */
+    private void reduce(){
+        // fast convergence: a flow losing below its last Wmax gives up some of it to newer flows
+        wMax = (cwnd < wMax) ? cwnd * (1 + BETA) / 2 : cwnd;
+        ssthresh = Math.max(cwnd * BETA, 2);
+        epochStart = -1;
+    }
+}
@@ -0,0 +1,79 @@
+package Congestion;
+
+/**
+ * Sender: token bucket that spreads new data packets out at a target rate, instead of sending everything the window
+ * allows back to back. Tokens are payload bytes. They accumulate at the rate up to a burst of BURST_TIME worth of
+ * data (at least two segments), so a late wake-up does not lose throughput and a short idle period does not turn
+ * into a window-sized burst. A packet may go as soon as the bucket is not in debt; its bytes are then taken, possibly
+ * putting the bucket in debt until the tokens catch up.
+ *
+ * The target rate is set from outside (see PacketManager) and is capped by the maximum rate, if there is one.
+ *
+ * Not thread safe. Used by PacketManager under its lock.
+ */
+public class Pacer {
+    private static final long BURST_TIME = 1000000; // in nanosecond
+
+    private final double maxRate;   // in byte per nanosecond. 0: no cap
+    private final int segmentSize;
+    private double rate = 0;        // in byte per nanosecond. 0: not paced
+    private double tokens = 0;      // in byte. negative while in debt
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param maxRate in byte per second. 0 for no cap
+     * @param segmentSize largest segment payload in bytes
+     */
+    public Pacer(long maxRate, int segmentSize){
+        this.maxRate = maxRate / 1e9;
+        this.segmentSize = segmentSize;
+    }
+
+    public int getSegmentSize(){
+        return segmentSize;
+    }
+
+    /**
+     * Set the target rate. Without a cap, a rate of 0 disables pacing.
+     * @param bytesPerSecond target rate
+     */
+    public void setRate(double bytesPerSecond){
+        rate = bytesPerSecond / 1e9;
+        if (maxRate > 0 && (rate <= 0 || rate > maxRate)) {
+            rate = maxRate;
+        }
+    }
+
+    /**
+     * Take the tokens for a packet of `bytes` payload bytes if it may be sent now.
+     * @return true if it may be sent
+     */
+    public boolean tryAcquire(int bytes, long now){
+        if (rate <= 0) {
+            return true;
+        }
+        refill(now);
+        if (tokens < 0) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+
+    /**
+     * @return nanoseconds until a packet may be sent, 0 if one may be sent now
+     */
+    public long delay(long now){
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(now);
+        return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / rate);
+    }
+
+    private void refill(long now){
+        double burst = Math.max(2 * segmentSize, rate * BURST_TIME);
+        tokens = Math.min(burst, tokens + rate * (now - lastRefill));
+        lastRefill = now;
+    }
+}
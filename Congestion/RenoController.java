@@ -0,0 +1,60 @@
+package Congestion;
+
+/**
+ * NewReno (RFC 5681, RFC 6582): slow start up to ssthresh, then one more segment per window of ACKs. A loss
+ * halves the window and starts fast recovery, where every duplicate ACK lets one more segment out and partial ACKs
+ * deflate the window again; a timeout goes back to slow start from one segment.
+ */
+public class RenoController implements CongestionController {
+    private final int maxWindow;
+    private double cwnd = INITIAL_WINDOW;   // in segment. fractional in congestion avoidance
+    private double ssthresh = Double.MAX_VALUE;
+    private boolean inRecovery = false;
+
+    public RenoController(int maxWindow){
+        this.maxWindow = maxWindow;
+    }
+
+    public int getWindow(){
+        return Math.max(1, (int) cwnd);
+    }
+
+    public void onACK(int acked, int inFlight, long now){
+        if (inRecovery) {
+            // partial ACK: deflate by what it ACKed, and let one new segment out
+            cwnd = Math.max(cwnd - acked + 1, 1);
+        }
+        else if (cwnd < ssthresh) {
+            cwnd += acked; // slow start
+        }
+        else {
+            cwnd += (double) acked / cwnd; // congestion avoidance
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    public void onDupACK(long now){
+        if (inRecovery) {
+            cwnd = Math.min(cwnd + 1, maxWindow); // a segment has left the network
+        }
+    }
+
+    public void onRTTSample(long rtt, long now){}
+
+    public void onLoss(int inFlight, long now){
+        ssthresh = Math.max(inFlight / 2, 2);
+        cwnd = ssthresh + 3; // the three duplicate ACKs
+        inRecovery = true;
+    }
+
+    public void onRecoveryEnd(long now){
+        cwnd = ssthresh; // deflate
+        inRecovery = false;
+    }
+
+    public void onTimeout(int inFlight, long now){
+        ssthresh = Math.max(inFlight / 2, 2);
+        cwnd = 1;
+        inRecovery = false;
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import Transport.ConnectionThreads;
+import Transport.TransportOptions;
+
+/**
+ * Benchmark: how the transport scales with the number of concurrent connections in one JVM. For each count N, N
+ * TCPRcv/TCPSend pairs send the same file over loopback at the same time. Every receiver is bound before the first
+ * sender starts. Reports the wall time, the aggregate goodput and the peak number of platform threads (virtual
+ * threads are not counted, see ConnectionThreads). Compare a sweep with -vthreads to one without.
+ *
+ * Pair i uses ports basePort + 2i (sender) and basePort + 2i + 1 (receiver), and writes <outDir>/sweep-<i>.out.
+ * The connections' own output is discarded during a run.
+ *
+ * usage: java ConnectionSweep -f <file> [-n <count>,<count>,...] [-m <mtu>] [-c <sws>] [-p <base port>]
+ *        [-d <output dir>] [-vthreads]
+ */
+public class ConnectionSweep {
+    public static void main(String[] args) throws Exception {
+        String fileName = null;
+        String counts = "1,10,100";
+        int mtu = 1400, sws = 30, basePort = 20000;
+        String outDir = System.getProperty("java.io.tmpdir");
+        TransportOptions transportOptions = new TransportOptions();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-f": fileName = args[++i]; break;
+                case "-n": counts = args[++i]; break;
+                case "-m": mtu = Integer.parseInt(args[++i]); break;
+                case "-c": sws = Integer.parseInt(args[++i]); break;
+                case "-p": basePort = Integer.parseInt(args[++i]); break;
+                case "-d": outDir = args[++i]; break;
+                case "-vthreads": transportOptions.virtualThreads = true; break;
+                default:
+                    System.err.println("ConnectionSweep: wrong option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (fileName == null || !new File(fileName).isFile()) {
+            System.err.println("usage: java ConnectionSweep -f <file> [-n <count>,<count>,...] [-m <mtu>] [-c <sws>] [-p <base port>] [-d <output dir>] [-vthreads]");
+            System.exit(1);
+        }
+        long fileLength = new File(fileName).length();
+
+        PrintStream report = System.out;
+        report.println("ConnectionSweep: " + fileName + " (" + fileLength + " bytes), mtu " + mtu + ", sws " + sws + ", "
+                + (transportOptions.virtualThreads && ConnectionThreads.hasVirtualThreads() ? "virtual" : "platform") + " threads, JDK " + System.getProperty("java.version"));
+        report.println("connections\twall ms\tMB/s\tpeak platform threads\tincomplete");
+        for (String count : counts.split(",")) {
+            int n = Integer.parseInt(count.trim());
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Result result = run(n, fileName, mtu, sws, basePort, outDir, transportOptions);
+            System.setOut(report);
+            report.printf("%d\t%d\t%.1f\t%d\t%d%n", n, result.wallNanos / 1000000, (double) n * fileLength / result.wallNanos * 1000,
+                    result.peakThreads, result.incomplete);
+        }
+        System.exit(0);
+    }
+
+    private static class Result {
+        long wallNanos;
+        int peakThreads;
+        int incomplete; // received files whose length is not the sent file's
+    }
+
+    /** Run n transfers at once and wait for all of them. */
+    private static Result run(int n, String fileName, int mtu, int sws, int basePort, String outDir, TransportOptions transportOptions) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long initTime = System.currentTimeMillis();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        List<Thread> drivers = new ArrayList<Thread>();
+        String[] outputs = new String[n];
+
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            outputs[i] = new File(outDir, "sweep-" + i + ".out").getPath();
+            TCPRcv rcv = new TCPRcv(basePort + 2 * i + 1, mtu, sws, outputs[i], initTime, transportOptions);
+            rcv.bind(); // before any sender's SYN
+            drivers.add(ConnectionThreads.newThread(transportOptions, () -> {
+                try {
+                    rcv.work();
+                } catch (Exception e) {
+                    System.err.println("ConnectionSweep: receiver: " + e);
+                }
+            }, "sweep-rcv-" + i));
+        }
+        for (int i = 0; i < n; ++i) {
+            TCPSend send = new TCPSend(basePort + 2 * i, loopback, basePort + 2 * i + 1, fileName, mtu, sws, initTime, transportOptions);
+            drivers.add(ConnectionThreads.newThread(transportOptions, () -> {
+                try {
+                    send.work();
+                } catch (InterruptedException e) {
+                    System.err.println("ConnectionSweep: sender: " + e);
+                }
+            }, "sweep-send-" + i));
+        }
+        for (Thread t : drivers) {
+            t.start();
+        }
+        for (Thread t : drivers) {
+            t.join();
+        }
+
+        Result result = new Result();
+        result.wallNanos = System.nanoTime() - start;
+        result.peakThreads = threads.getPeakThreadCount();
+        long fileLength = new File(fileName).length();
+        for (String output : outputs) {
+            File f = new File(output);
+            if (f.length() != fileLength) {
+                ++result.incomplete;
+            }
+            f.delete();
+        }
+        return result;
+    }
+}
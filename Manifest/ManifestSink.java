@@ -0,0 +1,183 @@
+package Manifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receiver, manifest mode: takes the byte stream of a ManifestSource in whatever pieces it arrives and writes the
+ * files it carries under a root directory. Used by BufferToFile in place of the single output file.
+ *
+ * Stream format (big endian):
+ *
+ *   4 bytes   MAGIC
+ *   4 bytes   number of files
+ *   per file  its path relative to the root, '/' separated, as DataOutputStream.writeUTF() writes it (2-byte length
+ *             then modified UTF-8), then its length in 8 bytes
+ *   then      the data of every file, in manifest order, back to back
+ *
+ * Paths that are absolute or climb out of the root with ".." are refused. Files are created as their data starts
+ * (empty files once the manifest is read), with any missing parent directories.
+ *
+ * Not thread safe. Only used by the receiver's writer thread.
+ */
+public class ManifestSink {
+    public static final int MAGIC = 0x544D4E46; // "TMNF"
+
+    private final Path root;
+    private ByteBuffer manifest = ByteBuffer.allocate(1024); // manifest bytes not parsed yet. In write mode
+    private int fileCount = -1;    // -1 until read
+    private final List<Path> files = new ArrayList<Path>();
+    private final List<Long> lengths = new ArrayList<Long>();
+
+    private int index = -1;        // the file being written. -1 while reading the manifest
+    private FileChannel current;
+    private long remaining = 0;    // bytes of the current file still to come
+
+    public ManifestSink(Path root){
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public int getFileCount(){
+        return Math.max(fileCount, 0);
+    }
+
+    /**
+     * Take all the bytes remaining in `views`.
+     * @return number of bytes taken
+     */
+    public long write(ByteBuffer[] views) throws IOException {
+        long taken = 0;
+        for (ByteBuffer view : views) {
+            taken += view.remaining();
+            write(view);
+        }
+        return taken;
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        if (index < 0) {
+            if (manifest.remaining() < src.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * manifest.capacity(), manifest.position() + src.remaining()));
+                manifest.flip();
+                manifest = grown.put(manifest);
+            }
+            manifest.put(src);
+            manifest.flip();
+            boolean done = parse();
+            if (!done) {
+                manifest.compact();
+                return;
+            }
+            // the rest is file data
+            src = manifest;
+            manifest = null;
+            index = 0;
+            openCurrent();
+        }
+        while (src.hasRemaining()) {
+            if (current == null) {
+                throw new IOException("Manifest: " + src.remaining() + " bytes beyond the last file");
+            }
+            int k = (int) Math.min(src.remaining(), remaining);
+            int limit = src.limit();
+            src.limit(src.position() + k);
+            while (src.hasRemaining()) {
+                current.write(src);
+            }
+            src.limit(limit);
+            remaining -= k;
+            if (remaining == 0) {
+                ++index;
+                openCurrent();
+            }
+        }
+    }
+
+    /**
+     * Parse as much of the manifest as `manifest` (in read mode) holds, leaving the rest in it.
+     * @return true once the whole manifest is parsed
+     */
+    private boolean parse() throws IOException {
+        if (fileCount < 0) {
+            if (manifest.remaining() < 8) {
+                return false;
+            }
+            if (manifest.getInt() != MAGIC) {
+                throw new IOException("Manifest: not a manifest stream");
+            }
+            fileCount = manifest.getInt();
+            if (fileCount < 0) {
+                throw new IOException("Manifest: " + fileCount + " files");
+            }
+        }
+        while (files.size() < fileCount) {
+            if (manifest.remaining() < 2) {
+                return false;
+            }
+            int nameLength = manifest.getShort(manifest.position()) & 0xFFFF;
+            if (manifest.remaining() < 2 + nameLength + 8) {
+                return false;
+            }
+            byte[] name = new byte[2 + nameLength];
+            manifest.get(name);
+            long length = manifest.getLong();
+            if (length < 0) {
+                throw new IOException("Manifest: negative length");
+            }
+            files.add(resolve(new DataInputStream(new ByteArrayInputStream(name)).readUTF()));
+            lengths.add(length);
+        }
+        System.out.println("Manifest: " + fileCount + " files");
+        return true;
+    }
+
+    /** The path of `name` under root, refused if it is not under it. */
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (name.isEmpty() || name.startsWith("/") || !path.startsWith(root) || path.equals(root)) {
+            throw new IOException("Manifest: refused path \"" + name + "\"");
+        }
+        return path;
+    }
+
+    /** Close the finished file and create the file `index` and any empty ones after it. */
+    private void openCurrent() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        for (; index < fileCount; ++index) {
+            Path path = files.get(index);
+            Files.createDirectories(path.getParent());
+            current = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            remaining = lengths.get(index);
+            if (remaining > 0) {
+                return;
+            }
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * The stream ended. Closes the last file.
+     * @throws IOException if the stream ended before the last file did
+     */
+    public void finish() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (index < 0 || index < fileCount) {
+            throw new IOException("Manifest: the stream ended before the last file (" + Math.max(index, 0) + " of " + getFileCount() + " complete)");
+        }
+    }
+}
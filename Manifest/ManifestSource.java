@@ -0,0 +1,121 @@
+package Manifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sender, manifest mode: a directory tree as one byte stream, read by FileToBuffer in place of a single file. The
+ * stream is the manifest (see ManifestSink for the format) followed by the data of every file back to back, so the
+ * whole tree goes over one connection and the next file's data follows the last one's without a pause.
+ *
+ * Files are opened one at a time, as the stream reaches them. Each contributes exactly the length the manifest gives
+ * it: a file that grew meanwhile is cut, one that shrank is an error.
+ */
+public class ManifestSource extends InputStream {
+    private final List<Path> files;
+    private final long[] lengths;
+    private final byte[] manifest;
+    private long totalLength;   // in byte. the manifest and every file
+
+    private int manifestPosition = 0;
+    private int index = -1;     // the file being read. -1 while reading the manifest
+    private InputStream current;
+    private long remaining = 0; // bytes of the current file still to be read
+
+    /** List every regular file under root, in path order. */
+    public ManifestSource(Path root) throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+        lengths = new long[files.size()];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ManifestSink.MAGIC);
+        out.writeInt(files.size());
+        totalLength = 0;
+        for (int i = 0; i < files.size(); ++i) {
+            lengths[i] = Files.size(files.get(i));
+            // '/' separated, relative to root
+            StringBuilder name = new StringBuilder();
+            for (Path part : root.relativize(files.get(i))) {
+                if (name.length() > 0) name.append('/');
+                name.append(part);
+            }
+            out.writeUTF(name.toString());
+            out.writeLong(lengths[i]);
+            totalLength += lengths[i];
+        }
+        out.flush();
+        manifest = bytes.toByteArray();
+        totalLength += manifest.length;
+    }
+
+    public int getFileCount(){
+        return files.size();
+    }
+
+    /** Bytes in the stream, manifest included. */
+    public long getTotalLength(){
+        return totalLength;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (manifestPosition < manifest.length) {
+            int k = Math.min(len, manifest.length - manifestPosition);
+            System.arraycopy(manifest, manifestPosition, b, off, k);
+            manifestPosition += k;
+            return k;
+        }
+        while (remaining == 0) {
+            if (!nextFile()) {
+                return -1;
+            }
+        }
+        int k = current.read(b, off, (int) Math.min(len, remaining));
+        if (k < 0) {
+            throw new IOException(files.get(index) + " is shorter than the " + lengths[index] + " bytes in the manifest");
+        }
+        remaining -= k;
+        return k;
+    }
+
+    /** Close the current file and open the next one. @return false after the last file */
+    private boolean nextFile() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (++index >= files.size()) {
+            index = files.size();
+            return false;
+        }
+        remaining = lengths[index];
+        if (remaining > 0) {
+            current = Files.newInputStream(files.get(index));
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package Packet;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 16-bit ones' complement checksum engine used by Packet and PacketView.
+ *
+ * Partial sums are accumulated 64 bits at a time into a long and only folded to 16 bits at the end
+ * (see RFC 1071: since 2^16 == 1 mod 0xFFFF, summing 32-bit chunks and folding gives the same result as
+ * summing 16-bit words with end-around carry). A trailing odd byte is not summed, which matches the original
+ * ShortBuffer-based implementation.
+ *
+ * The value stored in Packet.paddedChecksum is the folded sum itself (not its complement), so update()
+ * follows RFC 1624 eqn. 3 in its non-complemented form: S' = S + ~m + m'.
+ */
+public class Checksum {
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final long MASK_32 = 0xFFFFFFFFL;
+
+    /**
+     * Unfolded sum of the 16-bit big-endian words in data[offset, offset + length).
+     */
+    public static long sum(byte[] data, int offset, int length){
+        long acc = 0;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            long v = (long) LONG_BE.get(data, i);
+            acc += (v >>> 32) + (v & MASK_32);
+        }
+        for (; i + 2 <= end; i += 2) {
+            acc += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        return acc;
+    }
+
+    /**
+     * Unfolded sum of the 16-bit words in buf[offset, offset + length), read in place with absolute gets.
+     * buf must be big-endian (the ByteBuffer default).
+     */
+    public static long sum(ByteBuffer buf, int offset, int length){
+        if (buf.hasArray()) {
+            return sum(buf.array(), buf.arrayOffset() + offset, length);
+        }
+        long acc = 0;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            long v = buf.getLong(i);
+            acc += (v >>> 32) + (v & MASK_32);
+        }
+        for (; i + 2 <= end; i += 2) {
+            acc += buf.getShort(i) & 0xFFFF;
+        }
+        return acc;
+    }
+
+    /** Partial sum of a 32-bit header field. */
+    public static long sum(int v){
+        return v & MASK_32;
+    }
+
+    /** Partial sum of a 64-bit header field. */
+    public static long sum(long v){
+        return (v >>> 32) + (v & MASK_32);
+    }
+
+    /**
+     * Fold an unfolded sum to 16 bits with end-around carry. The result is 0 only if every summed word was 0.
+     */
+    public static int fold(long acc){
+        while ((acc >>> 16) != 0) {
+            acc = (acc & 0xFFFF) + (acc >>> 16);
+        }
+        return (int) acc;
+    }
+
+    /**
+     * RFC 1624 incremental update of a folded checksum when a 32-bit field changes from oldValue to newValue.
+     */
+    public static int update(int checksum, int oldValue, int newValue){
+        if (oldValue == newValue) return checksum;
+        return fold(checksum + sum(~oldValue) + sum(newValue));
+    }
+
+    /**
+     * RFC 1624 incremental update of a folded checksum when a 64-bit field changes from oldValue to newValue.
+     */
+    public static int update(int checksum, long oldValue, long newValue){
+        if (oldValue == newValue) return checksum;
+        return fold(checksum + sum(~oldValue) + sum(newValue));
+    }
+}
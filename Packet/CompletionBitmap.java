@@ -0,0 +1,134 @@
+package Packet;
+
+/**
+ * Which bytes of the receive window have arrived, one bit per sequence number. Used by the receiver when segments
+ * are written straight to their file offset (see TCPRcv.setPositionalWrites()) instead of being queued: the
+ * bitmap stands in for the out-of-order packets, so the cumulative ACK and the SACK blocks are derived from it.
+ *
+ * The bits form a ring over [base, base + capacity). base is the first byte not received yet, i.e. the cumulative
+ * ACK; it only moves forward, clearing the bits it passes. Segment sizes do not matter, only byte ranges.
+ *
+ * Only used by the thread that receives packets.
+ */
+public class CompletionBitmap {
+    private final long[] words;
+    private final int capacity; // in bit. a multiple of 64
+    private long base;
+    private long pending = 0;   // bits set above base
+
+    /**
+     * @param capacity bytes the window can span above base
+     * @param base the first sequence number expected
+     */
+    public CompletionBitmap(int capacity, long base){
+        this.capacity = (capacity + 63) & ~63;
+        this.words = new long[this.capacity / 64];
+        this.base = base;
+    }
+
+    /** The first sequence number not received yet. */
+    public long base(){
+        return base;
+    }
+
+    /** Whether any byte above base has been received, i.e. there is a hole. */
+    public boolean hasPending(){
+        return pending > 0;
+    }
+
+    /**
+     * Mark [from, to) as received. Bytes below base are ignored. A range that ends beyond the capacity is not 
+     * marked at all: the segment is to be dropped, and the sender sends it again once the window has moved.
+     * @return number of bytes that were not marked before, or -1 if the range ends beyond the capacity
+     */
+    public int mark(long from, long to){
+        from = Math.max(from, base);
+        if (to > base + capacity) {
+            return -1;
+        }
+        int added = 0;
+        while (from < to) {
+            int bit = index(from);
+            int n = (int) Math.min(to - from, 64 - (bit & 63));
+            long mask = (n == 64 ? -1L : ((1L << n) - 1)) << (bit & 63);
+            added += Long.bitCount(mask & ~words[bit >>> 6]);
+            words[bit >>> 6] |= mask;
+            from += n;
+        }
+        pending += added;
+        return added;
+    }
+
+    /**
+     * Move base past the received bytes at its front, clearing them.
+     * @return the new base
+     */
+    public long advance(){
+        while (pending > 0) {
+            int bit = index(base);
+            long word = words[bit >>> 6] >>> (bit & 63);
+            int n = Long.numberOfTrailingZeros(~word); // received bytes at base, within this word
+            if (n == 0) {
+                break;
+            }
+            n = Math.min(n, 64 - (bit & 63));
+            words[bit >>> 6] &= ~((n == 64 ? -1L : ((1L << n) - 1)) << (bit & 63));
+            base += n;
+            pending -= n;
+        }
+        return base;
+    }
+
+    /**
+     * The received ranges above base as SACK blocks ([left, right) pairs), the one containing `recent` first and
+     * then in sequence order.
+     * @return number of blocks written, at most maxBlocks
+     */
+    public int ranges(long recent, long[] blocks, int maxBlocks){
+        if (pending == 0 || maxBlocks == 0) {
+            return 0;
+        }
+        int count = 0;
+        long end = base + capacity;
+        long from = base;
+        while ((from = next(from, end, true)) < end) {
+            long to = next(from, end, false);
+            if (from <= recent && recent < to) {
+                // the most recent block goes first
+                System.arraycopy(blocks, 0, blocks, 2, 2 * Math.min(count, maxBlocks - 1));
+                blocks[0] = from;
+                blocks[1] = to;
+                count = Math.min(count + 1, maxBlocks);
+            }
+            else if (count < maxBlocks) {
+                blocks[2 * count] = from;
+                blocks[2 * count + 1] = to;
+                ++count;
+            }
+            else if (recent < from || (blocks[0] <= recent && recent < blocks[1])) {
+                break; // full, and the block of `recent` is either first already or not coming
+            }
+            from = to;
+        }
+        return count;
+    }
+
+    /** The first sequence number in [from, end) whose bit is `set`, or end. */
+    private long next(long from, long end, boolean set){
+        while (from < end) {
+            int bit = index(from);
+            long word = words[bit >>> 6];
+            if (!set) word = ~word;
+            word >>>= (bit & 63);
+            if (word != 0) {
+                return Math.min(end, from + Long.numberOfTrailingZeros(word));
+            }
+            from += 64 - (bit & 63);
+        }
+        return end;
+    }
+
+    private int index(long seq){
+        return (int) (seq % capacity);
+    }
+}
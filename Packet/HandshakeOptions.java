@@ -0,0 +1,206 @@
+package Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Options negotiated in the 3-way handshake. The sender puts the options it offers in the payload of its SYN;
+ * the receiver replies with the options it accepts in the payload of its SYN+ACK. An option that is not echoed
+ * back is off for the connection.
+ *
+ * Wire format: a sequence of (kind: 1 byte, length: 1 byte, value: `length` bytes), optionally ended by a single
+ * KIND_END byte after which the rest of the payload is padding. Unknown kinds are skipped, so an older peer simply
+ * does not accept options it does not know.
+ *
+ * Jumbo mode: the SYN offers the largest segment payload the sender can use and the SYN+ACK answers with the
+ * smaller of that and the receiver's own limit. The sender then sends probes padded to growing segment sizes up to
+ * that ceiling; the receiver echoes the size of every probe it gets. The segment size is the largest echoed probe.
+ *
+ * Compact header: the SYN offers the HeaderFormat width its window needs and the SYN+ACK echoes it. Both ends then
+ * send everything but SYNs in the compact format.
+ *
+ * Compression: offered in the SYN and echoed in the SYN+ACK. Data segments then carry SegmentCompressor payloads.
+ *
+ * CRC32C: offered in the SYN and echoed in the SYN+ACK. Everything but SYNs is then checked by CRC32C (see
+ * HeaderFormat), and the sender's FIN carries a Buffer.FileDigest of the data for the receiver to compare.
+ *
+ * Manifest: offered in the SYN when the sender sends a directory tree, and echoed by a receiver that takes one
+ * (see Manifest.ManifestSink). The byte stream is then a manifest followed by the files' data.
+ *
+ * Resume: the SYN identifies the file (length and modification time). A receiver keeping a checkpoint journal for
+ * the same file echoes the identity with the offset it has committed up to; both ends then start the data at that
+ * offset, with sequence numbers counted as if the bytes before it had been sent.
+ *
+ * Striping: the SYN of each flow of a striped transfer names the stripe count, its stripe, the file offset of its
+ * byte range and the file length. The first flow's SYN+ACK answers with the stripe count the receiver accepts (at
+ * most the one offered); the sender lays out that many ranges and opens the other flows, one port up each. The other
+ * flows' SYN+ACKs echo their stripe. A receiver that does not stripe does not echo the option and gets the whole
+ * file on the first flow.
+ */
+public class HandshakeOptions {
+    public static final byte KIND_END = 0;
+    public static final byte KIND_SACK_PERMITTED = 1;
+    public static final byte KIND_MAX_SEGMENT = 2;
+    public static final byte KIND_PROBE = 3;
+    public static final byte KIND_COMPACT_HEADER = 4;
+    public static final byte KIND_COMPRESSION = 5;
+    public static final byte KIND_STRIPE = 6;
+    public static final byte KIND_MANIFEST = 7;
+    public static final byte KIND_RESUME = 8;
+    public static final byte KIND_CRC32C = 9;
+    public static final int MAX_STRIPES = 255;
+
+    public boolean sackPermitted = false;
+    /** Jumbo mode: largest segment payload in bytes (offered in SYN, ceiling in SYN+ACK). 0 if not in jumbo mode. */
+    public int maxSegmentSize = 0;
+    /** Jumbo mode: the segment size a probe is padded to, or that a probe echo confirms. 0 if not a probe. */
+    public int probeSize = 0;
+    /** Compact header: width of data sequence numbers in bytes (see HeaderFormat). 0 for the full format. */
+    public int compactHeaderWidth = 0;
+    public boolean compression = false;
+    public boolean manifest = false;
+    public boolean crc32c = false;
+    /** Resume: whether the option is carried, and the file identity it carries. */
+    public boolean resume = false;
+    public long resumeFileLength = 0;
+    public long resumeFileTime = 0; // last modified, in ms
+    /** Resume: the offset the data starts at. 0 in the SYN. */
+    public long resumeOffset = 0;
+    /** Striping: number of flows the file is split over. 0 if not striped. */
+    public int stripeCount = 0;
+    /** Striping: this flow's stripe, 0 to stripeCount - 1. */
+    public int stripeIndex = 0;
+    /** Striping: file offset of this flow's first byte. */
+    public long stripeOffset = 0;
+    /** Striping: length of the whole file. */
+    public long fileLength = 0;
+
+    /**
+     * Options carried by a SYN, SYN+ACK, probe or probe echo. A packet without payload has no options.
+     */
+    public static HandshakeOptions fromPacket(Packet pkt){
+        HandshakeOptions opts = new HandshakeOptions();
+        if (pkt.getDataLength() == 0) {
+            return opts;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(pkt.getData(), 0, pkt.getDataLength());
+        while (bb.remaining() >= 2) {
+            byte kind = bb.get();
+            if (kind == KIND_END) {
+                break; // padding follows
+            }
+            int length = bb.get() & 0xFF;
+            if (length > bb.remaining()) {
+                break; // truncated. ignore the rest
+            }
+            switch (kind) {
+                case KIND_SACK_PERMITTED:
+                    opts.sackPermitted = true;
+                    break;
+                case KIND_MAX_SEGMENT:
+                    if (length == 4) opts.maxSegmentSize = bb.getInt(bb.position());
+                    break;
+                case KIND_PROBE:
+                    if (length == 4) opts.probeSize = bb.getInt(bb.position());
+                    break;
+                case KIND_COMPACT_HEADER:
+                    if (length == 1) opts.compactHeaderWidth = bb.get(bb.position());
+                    break;
+                case KIND_COMPRESSION:
+                    opts.compression = true;
+                    break;
+                case KIND_MANIFEST:
+                    opts.manifest = true;
+                    break;
+                case KIND_CRC32C:
+                    opts.crc32c = true;
+                    break;
+                case KIND_RESUME:
+                    if (length == 24) {
+                        opts.resume = true;
+                        opts.resumeFileLength = bb.getLong(bb.position());
+                        opts.resumeFileTime = bb.getLong(bb.position() + 8);
+                        opts.resumeOffset = bb.getLong(bb.position() + 16);
+                    }
+                    break;
+                case KIND_STRIPE:
+                    if (length == 18) {
+                        opts.stripeCount = bb.get(bb.position()) & 0xFF;
+                        opts.stripeIndex = bb.get(bb.position() + 1) & 0xFF;
+                        opts.stripeOffset = bb.getLong(bb.position() + 2);
+                        opts.fileLength = bb.getLong(bb.position() + 10);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            bb.position(bb.position() + length);
+        }
+        return opts;
+    }
+
+    /**
+     * The options a receiver accepts out of `offered`.
+     * @param localMaxSegmentSize the receiver's jumbo segment size limit. 0 if the receiver is not in jumbo mode.
+     * @param localCompactHeader whether the receiver uses the compact header if offered
+     * @param localCompression whether the receiver decompresses if offered
+     */
+    public static HandshakeOptions accept(HandshakeOptions offered, int localMaxSegmentSize, boolean localCompactHeader, boolean localCompression){
+        HandshakeOptions accepted = new HandshakeOptions();
+        accepted.sackPermitted = offered.sackPermitted;
+        if (offered.maxSegmentSize > 0 && localMaxSegmentSize > 0) {
+            accepted.maxSegmentSize = Math.min(offered.maxSegmentSize, localMaxSegmentSize);
+        }
+        if (localCompactHeader && offered.compactHeaderWidth >= 1 && offered.compactHeaderWidth <= 4) {
+            accepted.compactHeaderWidth = offered.compactHeaderWidth;
+        }
+        accepted.compression = offered.compression && localCompression;
+        return accepted;
+    }
+
+    /**
+     * Put these options in pkt's payload. Call before calculateAndSetChecksum().
+     */
+    public void writeTo(Packet pkt){
+        writeTo(pkt, 0);
+    }
+
+    /**
+     * Same as writeTo(Packet), with the payload padded with zeros to paddedLength bytes (used by probes).
+     */
+    public void writeTo(Packet pkt, int paddedLength){
+        ByteBuffer bb = ByteBuffer.allocate(128);
+        if (sackPermitted) {
+            bb.put(KIND_SACK_PERMITTED).put((byte) 0);
+        }
+        if (maxSegmentSize > 0) {
+            bb.put(KIND_MAX_SEGMENT).put((byte) 4).putInt(maxSegmentSize);
+        }
+        if (probeSize > 0) {
+            bb.put(KIND_PROBE).put((byte) 4).putInt(probeSize);
+        }
+        if (compactHeaderWidth > 0) {
+            bb.put(KIND_COMPACT_HEADER).put((byte) 1).put((byte) compactHeaderWidth);
+        }
+        if (compression) {
+            bb.put(KIND_COMPRESSION).put((byte) 0);
+        }
+        if (manifest) {
+            bb.put(KIND_MANIFEST).put((byte) 0);
+        }
+        if (crc32c) {
+            bb.put(KIND_CRC32C).put((byte) 0);
+        }
+        if (resume) {
+            bb.put(KIND_RESUME).put((byte) 24).putLong(resumeFileLength).putLong(resumeFileTime).putLong(resumeOffset);
+        }
+        if (stripeCount > 0) {
+            bb.put(KIND_STRIPE).put((byte) 18).put((byte) stripeCount).put((byte) stripeIndex).putLong(stripeOffset).putLong(fileLength);
+        }
+        if (bb.position() > 0 || paddedLength > 0) {
+            byte[] data = new byte[Math.max(bb.position(), paddedLength)]; // KIND_END and padding are the zeros after the options
+            bb.flip();
+            bb.get(data, 0, bb.remaining());
+            Packet.setDataAndLength(pkt, data);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package Packet;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Header format of a connection. The full format (Packet.HEADER_LENGTH bytes) is always understood. The compact
+ * format is negotiated at the handshake (HandshakeOptions.compactHeaderWidth) and then used for every packet but
+ * SYNs:
+ *
+ *   1 byte    marker bit | data direction bit | SACK, SYN, FIN, ACK flags | width - 1 (2 bits)
+ *   2 bytes   16-bit checksum of the other header bytes and the payload
+ *   seq       low `width` bytes if the data direction bit is set (sent by the data sender), else the low byte
+ *   ACK       the low byte if the data direction bit is set, else the low `width` bytes
+ *   4 bytes   timeStamp >>> 10 (about 1 us resolution), truncated to 32 bits
+ *
+ * followed by the payload, whose length is the rest of the datagram. Sequence and ACK numbers only carry their
+ * distance from a reference the receiving side already knows (the sender's window is `width` bytes wide at most), and
+ * SeqNum.unwrap(value, bits, reference) recovers them. A data segment or an ACK has an 11-byte header instead of
+ * 24 bytes for windows below 4 MiB, and a 10-byte one below 16 KiB. SACK blocks in the payload stay 32-bit.
+ *
+ * The formats are told apart by the first byte: after the handshake only SYNs go out in the full format, and their
+ * sequence number is 0, so the marker bit is clear.
+ *
+ * Either format can carry a CRC32C (HandshakeOptions.crc32c) in place of the 16-bit ones' complement sum, over every
+ * byte of the datagram but the checksum field: all 32 bits in the full format, the low 16 bits in the compact one.
+ * SYNs keep the sum, since they go out before the handshake has settled the format.
+ */
+public class HeaderFormat {
+    public static final HeaderFormat FULL = new HeaderFormat(0, false, false);
+
+    static final int COMPACT_MARKER = 0x80;
+    static final int DATA_DIRECTION = 0x40;
+    static final int FLAG_SHIFT = 2;
+    static final int CHECKSUM_OFFSET = 1;
+    static final int SEQ_OFFSET = 3;
+    static final int TIMESTAMP_SHIFT = 10;
+    private static final int TIMESTAMP_LENGTH = 4;
+
+    private final int width; // bytes of data direction sequence numbers. 0 for the full format
+    private final boolean dataSender;
+    private final boolean crc32c;
+
+    /**
+     * @param width bytes of the data sender's sequence numbers (and of the receiver's ACK numbers), 1 to 4
+     * @param dataSender true on TCPSend, false on TCPRcv
+     */
+    public static HeaderFormat compact(int width, boolean dataSender){
+        if (width < 1 || width > 4) {
+            throw new IllegalArgumentException("compact header width " + width);
+        }
+        return new HeaderFormat(width, dataSender, false);
+    }
+
+    private HeaderFormat(int width, boolean dataSender, boolean crc32c){
+        this.width = width;
+        this.dataSender = dataSender;
+        this.crc32c = crc32c;
+    }
+
+    /** This format with segments checked by CRC32C instead of the ones' complement sum. */
+    public HeaderFormat withCRC32C(){
+        return new HeaderFormat(width, dataSender, true);
+    }
+
+    /**
+     * The width that lets the other side unwrap any sequence or ACK number of a window of windowBytes: a number can
+     * be up to a window away from the reference it is unwrapped against. Twice that is kept as a margin.
+     */
+    public static int widthFor(long windowBytes){
+        for (int width = 2; width < 4; ++width) {
+            if (2 * windowBytes < 1L << (8 * width - 1)) {
+                return width;
+            }
+        }
+        return 4;
+    }
+
+    public boolean isCompact(){
+        return width > 0;
+    }
+
+    public boolean isCRC32C(){
+        return crc32c;
+    }
+
+    int getWidth(){
+        return width;
+    }
+
+    boolean isDataSender(){
+        return dataSender;
+    }
+
+    /** Whether the datagram starting at buf[offset] is in the compact format. It must be at least 1 byte long. */
+    boolean isCompact(ByteBuffer buf, int offset){
+        return isCompact() && (buf.get(offset) & COMPACT_MARKER) != 0;
+    }
+
+    static int headerLength(int width){
+        return SEQ_OFFSET + width + 1 + TIMESTAMP_LENGTH;
+    }
+
+    /** Low `bytes` bytes of value, big-endian. */
+    static void putLow(ByteBuffer dst, int value, int bytes){
+        for (int shift = 8 * (bytes - 1); shift >= 0; shift -= 8) {
+            dst.put((byte) (value >>> shift));
+        }
+    }
+
+    static int getLow(ByteBuffer buf, int offset, int bytes){
+        int value = 0;
+        for (int i = 0; i < bytes; ++i) {
+            value = (value << 8) | (buf.get(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Unfolded sum of a compact header in place: every byte but the checksum, as one run of 16-bit words (an odd
+     * last byte is padded with zero).
+     */
+    static long headerSum(ByteBuffer buf, int offset, int headerLength){
+        long sum = (buf.get(offset) & 0xFF) << 8;
+        boolean high = false;
+        for (int i = SEQ_OFFSET; i < headerLength; ++i) {
+            int b = buf.get(offset + i) & 0xFF;
+            sum += high ? b << 8 : b;
+            high = !high;
+        }
+        return sum;
+    }
+
+    /**
+     * CRC32C of the `length` bytes of buf starting at offset, computed in place, leaving out the checksum field: the
+     * `checksumLength` bytes at checksumOffset from offset.
+     */
+    static int crc32c(ByteBuffer buf, int offset, int length, int checksumOffset, int checksumLength){
+        CRC32C crc = new CRC32C();
+        ByteBuffer src = buf.duplicate();
+        src.limit(offset + checksumOffset).position(offset);
+        crc.update(src);
+        src.limit(offset + length).position(offset + checksumOffset + checksumLength);
+        crc.update(src);
+        return (int) crc.getValue();
+    }
+}
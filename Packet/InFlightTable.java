@@ -0,0 +1,120 @@
+package Packet;
+
+import Timeout.TimerWheel;
+
+/**
+ * Sender: the segments between the cumulative ACK and the last packetized one, indexed by segment number (the
+ * n-th data packet made is segment n). Segment numbers map to slots of a circular array; the per-segment state
+ * lives in parallel primitive arrays instead of one object per packet.
+ *
+ *   [first, nextUnsent)  sent, waiting for an ACK
+ *   [nextUnsent, end)    packetized, not sent yet
+ *
+ * Segments are ACKed, sent and added in order, so each of these moves its boundary by one slot. Sequence numbers
+ * increase with segment numbers, so a sequence number is found by binary search.
+ *
+ * Not thread safe. Only used by PacketManager, under its lock.
+ */
+class InFlightTable {
+    /** flags */
+    static final byte SACKED = 1;               // the receiver has reported this segment in a SACK block. Never retransmit it.
+    static final byte SACK_RETRANSMITTED = 2;   // retransmitted because SACK showed it lost. Do not fast retransmit it again.
+
+    private Packet[] packets;
+    private TimerWheel.Timer[] timers; // retransmission timers. id is the segment number
+    private int[] ACKcounts;    // ACKs whose ACK number is this segment's sequence number. 4 triggers fast retransmit.
+    private int[] resendCounts;
+    private byte[] flags;
+    private int mask;           // capacity - 1. the capacity is a power of 2
+
+    long first = 0;
+    long nextUnsent = 0;
+    long end = 0;
+
+    InFlightTable(int windowSize){
+        allocate(Integer.highestOneBit(Math.max(windowSize, 1) * 2 - 1) * 2); // room for the window and the next few segments
+    }
+
+    boolean isEmpty(){
+        return first == end;
+    }
+
+    /** Sent segments that are not ACKed yet. */
+    int inTransit(){
+        return (int) (nextUnsent - first);
+    }
+
+    /** Add the next segment, not sent yet. Grows the table if it is full. */
+    void add(Packet pkt){
+        if (end - first == packets.length) {
+            grow();
+        }
+        int i = slot(end);
+        packets[i] = pkt;
+        timers[i] = new TimerWheel.Timer(end++);
+        ACKcounts[i] = 0;
+        resendCounts[i] = 0;
+        flags[i] = 0;
+    }
+
+    /** Drop the first segment (it has been ACKed) and release its packet. Its timer must be cancelled already. */
+    void removeFirst(){
+        int i = slot(first++);
+        packets[i].release();
+        packets[i] = null;
+        timers[i] = null;
+        if (nextUnsent < first) {
+            nextUnsent = first;
+        }
+    }
+
+    /** The first segment in [first, end) whose sequence number is not less than seqNum, or end. */
+    long lowerBound(long seqNum){
+        long lo = first, hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (packet(mid).byteSeqNum < seqNum) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    Packet packet(long seg){ return packets[slot(seg)]; }
+    TimerWheel.Timer timer(long seg){ return timers[slot(seg)]; }
+    int incrementACKcount(long seg){ return ++ACKcounts[slot(seg)]; }
+    int incrementResendCount(long seg){ return ++resendCounts[slot(seg)]; }
+    int resendCount(long seg){ return resendCounts[slot(seg)]; }
+    boolean hasFlag(long seg, byte flag){ return (flags[slot(seg)] & flag) != 0; }
+    void setFlag(long seg, byte flag){ flags[slot(seg)] |= flag; }
+
+    private int slot(long seg){
+        return (int) seg & mask;
+    }
+
+    private void allocate(int capacity){
+        packets = new Packet[capacity];
+        timers = new TimerWheel.Timer[capacity];
+        ACKcounts = new int[capacity];
+        resendCounts = new int[capacity];
+        flags = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Double the capacity, keeping every segment at its segment number. */
+    private void grow(){
+        Packet[] oldPackets = packets;
+        TimerWheel.Timer[] oldTimers = timers;
+        int[] oldACKcounts = ACKcounts, oldResendCounts = resendCounts;
+        byte[] oldFlags = flags;
+        int oldMask = mask;
+        allocate(packets.length * 2);
+        for (long seg = first; seg < end; ++seg) {
+            int from = (int) seg & oldMask, to = slot(seg);
+            packets[to] = oldPackets[from];
+            timers[to] = oldTimers[from];
+            ACKcounts[to] = oldACKcounts[from];
+            resendCounts[to] = oldResendCounts[from];
+            flags[to] = oldFlags[from];
+        }
+    }
+}
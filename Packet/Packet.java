@@ -3,20 +3,48 @@ package Packet;
 import java.nio.*;
 import java.util.Arrays;
 
+import Buffer.Payload;
+import Buffer.PayloadPool;
 import Exceptions.DebugException;
 
 public class Packet {
-    public int byteSeqNum;
-    public int ACK;
+    /** Size of the fixed header: byteSeqNum, ACK, timeStamp, lengthAndFlag and paddedChecksum. */
+    public static final int HEADER_LENGTH = 6 * 4;
+    /** lengthAndFlag: the low FLAG_BITS bits are flags (SACK, SYN, FIN, ACK from high to low), the rest is the data length. */
+    private static final int FLAG_BITS = 4;
+    private static final int FLAG_MASK = (1 << FLAG_BITS) - 1;
+    private static final int SACK_FLAG = 1 << 3;
+    private static final int CHECKSUM_OFFSET = 5 * 4;
+    /** Size of one SACK block on the wire: left edge (first byte) and right edge (byte after the last byte). */
+    public static final int SACK_BLOCK_LENGTH = 2 * 4;
+    /** Largest payload that fits in one UDP datagram over IPv4 (65507 bytes) together with the header. */
+    public static final int MAX_SEGMENT_SIZE = 65507 - HEADER_LENGTH;
+    /** Payload room control packets (handshake options, SACK blocks) may need whatever the segment size is. */
+    public static final int MAX_CONTROL_PAYLOAD = 256;
+    public static final int MIN_RECEIVE_LENGTH = 1518; // in byte. An Ethernet frame. See maxDatagramLength()
+
+    // Logical 64-bit sequence and ACK numbers. Only the low 32 bits go on the wire; a deserialized packet holds the 
+    // 32-bit wire value until the receiving side unwraps it (see SeqNum.unwrap()). In the compact header format the 
+    // wire value is even shorter, see getByteSeqNumBits() and getACKBits().
+    public long byteSeqNum;
+    public long ACK;
+    private int byteSeqNumBits = 32;
+    private int ACKBits = 32;
     public long timeStamp;
     private int lengthAndFlag;
     private int paddedChecksum;
-    private byte[] data;
+    private byte[] data; // may be longer than the payload when it comes from a PayloadPool. valid bytes are [0, dataLength)
+    private int dataLength;
+    private Payload payload; // non-null if data is pooled. See release().
+    private ByteBuffer dataSlice; // non-null instead of data if the payload is a slice of a memory-mapped file. Read with absolute gets only.
+    private long dataSum = -1; // Unfolded Checksum.sum() of data, computed once on first use. -1 if not computed yet.
+    private long compactHeaderSum = -1; // Received in the compact format: HeaderFormat.headerSum(). -1 otherwise.
+    byte crcCheck = 0; // Received in a CRC32C format: 1 if the CRC matched, -1 if not. 0 otherwise. See PacketView.toPacket().
 
     public Packet(){
         setTimeStampToCurrent();
     }
-    public Packet( int byteSeqNum){
+    public Packet( long byteSeqNum){
         this.byteSeqNum = byteSeqNum;
         setTimeStampToCurrent();
 
@@ -25,12 +53,30 @@ public class Packet {
         this.lengthAndFlag = 0;
         this.paddedChecksum = 0;
         this.data = null;
+        this.dataLength = 0;
 
     }
+    /**
+     * Copy src's header. A pooled payload is shared (one more reference is taken) rather than copied, so a 
+     * retransmitted packet costs no payload allocation. Both packets must be release()d.
+     */
     public Packet(Packet src){
         this.ACK = src.ACK;
         this.byteSeqNum = src.byteSeqNum;
-        this.data = Arrays.copyOf(src.data, src.data.length);
+        this.ACKBits = src.ACKBits;
+        this.byteSeqNumBits = src.byteSeqNumBits;
+        this.compactHeaderSum = src.compactHeaderSum;
+        this.crcCheck = src.crcCheck;
+        if (src.payload != null) {
+            this.payload = src.payload.retain();
+            this.data = src.data;
+        }
+        else if (src.data != null) {
+            this.data = Arrays.copyOf(src.data, src.dataLength);
+        }
+        this.dataSlice = src.dataSlice; // read-only and never moved. shared
+        this.dataLength = src.dataLength;
+        this.dataSum = src.dataSum;
         this.lengthAndFlag = src.lengthAndFlag;
         this.paddedChecksum = src.paddedChecksum;
         this.timeStamp = src.timeStamp;
@@ -40,43 +86,237 @@ public class Packet {
         this.timeStamp = System.nanoTime();
     }
     
+    /**
+     * Size of a receive buffer that can hold any datagram of a connection whose segments carry at most segmentSize 
+     * bytes of data. Never less than MIN_RECEIVE_LENGTH: the mtu is not negotiated, so the peer's may be larger 
+     * than ours.
+     */
+    public static int maxDatagramLength(int segmentSize){
+        return Math.max(HEADER_LENGTH + Math.max(segmentSize, MAX_CONTROL_PAYLOAD), MIN_RECEIVE_LENGTH);
+    }
+
+    /**
+     * Number of bytes serialize() will write for this packet.
+     */
+    public static int serializedLength(Packet packet){
+        return HEADER_LENGTH + packet.dataLength;
+    }
+
+    /**
+     * Number of bytes serialize(Packet, ByteBuffer, HeaderFormat) will write for this packet.
+     */
+    public static int serializedLength(Packet packet, HeaderFormat format){
+        if (!format.isCompact() || checkSYN(packet)) {
+            return serializedLength(packet);
+        }
+        return HeaderFormat.headerLength(format.getWidth()) + packet.dataLength;
+    }
+
     public static byte[] serialize(Packet packet){
-        int size = 6 * 4 + (packet.data == null ? 0 : packet.data.length);
-        byte[] resultByteArray = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(resultByteArray);
-        bb.putInt(packet.byteSeqNum);
-        bb.putInt(packet.ACK);
-        bb.putLong(packet.timeStamp);
-        bb.putInt(packet.lengthAndFlag);
-        bb.putInt(packet.paddedChecksum);
+        byte[] resultByteArray = new byte[serializedLength(packet)];
+        serialize(packet, ByteBuffer.wrap(resultByteArray));
+        return resultByteArray;
+    }
+
+    /**
+     * Write the header and payload of packet into dst, starting at dst's position. The position is advanced by 
+     * the number of bytes written. dst can be a heap or a direct buffer and is normally reused by the caller 
+     * (clear() it before every packet). 
+     * @return number of bytes written
+     * @throws BufferOverflowException if dst has less than serializedLength(packet) bytes remaining
+     */
+    public static int serialize(Packet packet, ByteBuffer dst){
+        int size = serializedLength(packet);
+        if (dst.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        dst.putInt(SeqNum.toWire(packet.byteSeqNum));
+        dst.putInt(SeqNum.toWire(packet.ACK));
+        dst.putLong(packet.timeStamp);
+        dst.putInt(packet.lengthAndFlag);
+        dst.putInt(packet.paddedChecksum);
+        putData(packet, dst);
+        return size;
+    }
+
+    private static void putData(Packet packet, ByteBuffer dst){
         if (packet.data != null){
-            bb.put(packet.data);
+            dst.put(packet.data, 0, packet.dataLength);
+        }
+        else if (packet.dataSlice != null) {
+            dst.put(dst.position(), packet.dataSlice, 0, packet.dataLength);
+            dst.position(dst.position() + packet.dataLength);
         }
-        return resultByteArray;
+    }
+
+    /**
+     * Same as serialize(Packet, ByteBuffer), in the given header format. SYNs always use the full format and the 
+     * ones' complement sum. In a CRC32C format the checksum field is computed here, so paddedChecksum is not used.
+     */
+    public static int serialize(Packet packet, ByteBuffer dst, HeaderFormat format){
+        if (!format.isCompact() || checkSYN(packet)) {
+            int start = dst.position();
+            int size = serialize(packet, dst);
+            if (format.isCRC32C() && !checkSYN(packet)) {
+                dst.putInt(start + CHECKSUM_OFFSET, HeaderFormat.crc32c(dst, start, size, CHECKSUM_OFFSET, 4));
+            }
+            return size;
+        }
+        int size = serializedLength(packet, format);
+        if (dst.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        int width = format.getWidth();
+        boolean dataSender = format.isDataSender();
+        int start = dst.position();
+        dst.put((byte) (HeaderFormat.COMPACT_MARKER | (dataSender ? HeaderFormat.DATA_DIRECTION : 0) 
+                | ((packet.lengthAndFlag & FLAG_MASK) << HeaderFormat.FLAG_SHIFT) | (width - 1)));
+        dst.putShort((short) 0); // checksum. filled in below
+        HeaderFormat.putLow(dst, SeqNum.toWire(packet.byteSeqNum), dataSender ? width : 1);
+        HeaderFormat.putLow(dst, SeqNum.toWire(packet.ACK), dataSender ? 1 : width);
+        dst.putInt((int) (packet.timeStamp >>> HeaderFormat.TIMESTAMP_SHIFT));
+        putData(packet, dst);
+        if (format.isCRC32C()) {
+            dst.putShort(start + HeaderFormat.CHECKSUM_OFFSET, (short) HeaderFormat.crc32c(dst, start, size, HeaderFormat.CHECKSUM_OFFSET, 2));
+            return size;
+        }
+        long sum = HeaderFormat.headerSum(dst, start, size - packet.dataLength) + dataSum(packet);
+        dst.putShort(start + HeaderFormat.CHECKSUM_OFFSET, (short) Checksum.fold(sum));
+        return size;
     }
 
     public static Packet deserialize(byte[] raw) {
+        return deserialize(raw, raw.length);
+    }
+
+    /**
+     * Deserialize the first `length` bytes of raw. Use this with a reused receive array (e.g. 
+     * DatagramPacket.getData() and getLength()) instead of copying the datagram into a right-sized array first.
+     */
+    public static Packet deserialize(byte[] raw, int length) {
+        return deserialize(ByteBuffer.wrap(raw, 0, length));
+    }
+
+    /**
+     * Deserialize the bytes between src's position and limit. The position is advanced to the limit.
+     */
+    public static Packet deserialize(ByteBuffer src) {
+        return deserialize(src, null);
+    }
+
+    /**
+     * Same as deserialize(ByteBuffer), but the payload is copied into an array taken from pool (if pool is not 
+     * null). The returned packet must be release()d when its data has been consumed.
+     */
+    public static Packet deserialize(ByteBuffer src, PayloadPool pool) {
         Packet resultPacket = new Packet();
-        ByteBuffer bb = ByteBuffer.wrap(raw);
-        resultPacket.byteSeqNum = bb.getInt();
-        resultPacket.ACK = bb.getInt();
-        resultPacket.timeStamp = bb.getLong();
-        resultPacket.lengthAndFlag = bb.getInt();
-        resultPacket.paddedChecksum = bb.getInt();
-        if (bb.hasRemaining()){
-            resultPacket.data = new byte[bb.remaining()];
-            bb.get(resultPacket.data);
-            if (bb.remaining() != 0) {
-                throw new RuntimeException();
-            }
+        resultPacket.byteSeqNum = Integer.toUnsignedLong(src.getInt());
+        resultPacket.ACK = Integer.toUnsignedLong(src.getInt());
+        resultPacket.timeStamp = src.getLong();
+        resultPacket.lengthAndFlag = src.getInt();
+        resultPacket.paddedChecksum = src.getInt();
+        readPayload(resultPacket, src, pool);
+        return resultPacket;
+    }
+
+    /**
+     * Same as deserialize(ByteBuffer, PayloadPool) for a connection using `format`: compact datagrams are decoded 
+     * too. Sequence and ACK numbers of a compact datagram hold as many bits as getByteSeqNumBits() and getACKBits().
+     * In a CRC32C format the CRC is checked here, over the serialized bytes, for verifyChecksum() to report.
+     */
+    public static Packet deserialize(ByteBuffer src, PayloadPool pool, HeaderFormat format) {
+        if (!format.isCRC32C() && (!src.hasRemaining() || !format.isCompact(src, src.position()))) {
+            return deserialize(src, pool);
+        }
+        PacketView view = new PacketView().wrap(src, src.position(), src.remaining(), format);
+        if (!view.isValidLength()) {
+            throw new BufferUnderflowException();
         }
+        Packet packet = view.toPacket(pool);
+        src.position(src.limit());
+        return packet;
+    }
+
+    /** A packet decoded from a compact view. payload holds the payload between its position and limit. */
+    static Packet fromCompact(PacketView view, ByteBuffer payload, PayloadPool pool){
+        Packet resultPacket = new Packet();
+        resultPacket.byteSeqNum = Integer.toUnsignedLong(view.getByteSeqNum());
+        resultPacket.byteSeqNumBits = view.getByteSeqNumBits();
+        resultPacket.ACK = Integer.toUnsignedLong(view.getACK());
+        resultPacket.ACKBits = view.getACKBits();
+        resultPacket.timeStamp = view.getTimeStamp();
+        resultPacket.lengthAndFlag = (view.getDataLength() << FLAG_BITS) | view.getFlags();
+        resultPacket.paddedChecksum = view.getPaddedChecksum();
+        resultPacket.compactHeaderSum = view.getCompactHeaderSum();
+        readPayload(resultPacket, payload, pool);
         return resultPacket;
     }
 
+    private static void readPayload(Packet resultPacket, ByteBuffer src, PayloadPool pool){
+        if (src.hasRemaining()){
+            int length = src.remaining();
+            if (pool != null) {
+                resultPacket.payload = pool.acquire(length);
+                resultPacket.data = resultPacket.payload.array();
+            }
+            else {
+                resultPacket.data = new byte[length];
+            }
+            src.get(resultPacket.data, 0, length);
+            resultPacket.dataLength = length;
+        }
+    }
+
     public static void setDataAndLength(Packet packet, byte[] data){
+        packet.release();
         packet.data = data;
-        packet.lengthAndFlag &= 7; // Clear data, keep flag
-        packet.lengthAndFlag |= (data.length << 3); // Set data
+        packet.dataLength = data.length;
+        packet.dataSum = -1;
+        packet.lengthAndFlag &= FLAG_MASK; // Clear data, keep flag
+        packet.lengthAndFlag |= (data.length << FLAG_BITS); // Set data
+    }
+
+    /**
+     * Same as setDataAndLength(Packet, byte[]), but the packet takes over the caller's reference to a pooled 
+     * payload. The reference is given back by release().
+     */
+    public static void setDataAndLength(Packet packet, Payload payload){
+        packet.release();
+        packet.payload = payload;
+        packet.data = payload.array();
+        packet.dataLength = payload.length();
+        packet.dataSum = -1;
+        packet.lengthAndFlag &= FLAG_MASK; // Clear data, keep flag
+        packet.lengthAndFlag |= (payload.length() << FLAG_BITS); // Set data
+    }
+
+    /**
+     * Same as setDataAndLength(Packet, byte[]), but the payload is `slice`, a read-only view of (part of) a 
+     * memory-mapped file, from index 0 to its limit. Nothing is copied until the packet is serialized. getData() 
+     * returns null for such a packet.
+     */
+    public static void setDataAndLength(Packet packet, ByteBuffer slice){
+        packet.release();
+        packet.data = null;
+        packet.dataSlice = slice;
+        packet.dataLength = slice.limit();
+        packet.dataSum = -1;
+        packet.lengthAndFlag &= FLAG_MASK; // Clear data, keep flag
+        packet.lengthAndFlag |= (packet.dataLength << FLAG_BITS); // Set data
+    }
+
+    /**
+     * Give back this packet's reference to its pooled payload, if any. Call it once the packet will not be sent 
+     * or read again (sender: ACKed or replaced by its retransmission; receiver: copied into ReceiverBuffer). 
+     * The header stays readable, and getDataLength() still returns the old length.
+     */
+    public void release(){
+        if (this.payload != null) {
+            this.payload.release();
+            this.payload = null;
+            this.data = null;
+        }
+        this.dataSlice = null; // lets the mapping go once no packet needs it
     }
 
   
@@ -116,28 +356,58 @@ public class Packet {
 
 
     public static void clearFlag(Packet packet){
-        packet.lengthAndFlag &= (Integer.MAX_VALUE - 7);
+        packet.lengthAndFlag &= ~FLAG_MASK;
+    }
+
+    /**
+     * Store SACK blocks as the payload of an ACK packet and set its SACK flag. blocks holds `count` pairs of 
+     * (left edge, right edge), i.e. [blocks[2i], blocks[2i+1]) has been received. Only used after SACK has been 
+     * negotiated in the handshake.
+     */
+    public static void setSACKBlocks(Packet packet, long[] blocks, int count){
+        ByteBuffer bb = ByteBuffer.allocate(count * SACK_BLOCK_LENGTH);
+        for (int i = 0; i < 2 * count; ++i) {
+            bb.putInt(SeqNum.toWire(blocks[i]));
+        }
+        setDataAndLength(packet, bb.array());
+        packet.lengthAndFlag |= SACK_FLAG;
+    }
+
+    public static boolean checkSACK(Packet pkt){
+        return (pkt.lengthAndFlag & SACK_FLAG) != 0;
     }
     
     // The return value is Padded (32-bit) checksum
+    // Header fields are summed directly and the payload sum is cached, so recomputing after a header change 
+    // (e.g. on retransmission) does not touch the payload again.
     public static int calculateChecksum(Packet packet){
-        // Save the original Checksum
-        int originalChecksum = packet.paddedChecksum;
-        packet.paddedChecksum = 0;
-        int calculateChecksum = 0;
-        byte[] serialized = Packet.serialize(packet);
-        ByteBuffer bb = ByteBuffer.wrap(serialized);
-        ShortBuffer sb = bb.asShortBuffer();
-        while(sb.hasRemaining()){
-            short a = sb.get();
-            calculateChecksum += ((int)a & ((1 << 16) - 1));
-            if (calculateChecksum >= (1 << 16)) { // overflow
-                calculateChecksum++;
-                calculateChecksum &= ((1 << 16) - 1);
+        long sum = Checksum.sum(SeqNum.toWire(packet.byteSeqNum)) + Checksum.sum(SeqNum.toWire(packet.ACK)) + Checksum.sum(packet.timeStamp) + Checksum.sum(packet.lengthAndFlag);
+        return Checksum.fold(sum + dataSum(packet));
+    }
+
+    private static long dataSum(Packet packet){
+        if (packet.dataSum < 0) {
+            if (packet.data != null) {
+                packet.dataSum = Checksum.sum(packet.data, 0, packet.dataLength);
+            }
+            else if (packet.dataSlice != null) {
+                packet.dataSum = Checksum.sum(packet.dataSlice, 0, packet.dataLength);
+            }
+            else {
+                return 0;
             }
         }
-        packet.paddedChecksum = originalChecksum;
-        return calculateChecksum;
+        return packet.dataSum;
+    }
+
+    /**
+     * Checksum of a serialized packet that occupies [offset, offset + length) of buf, computed in place. The 
+     * paddedChecksum field is skipped, so this works on both outgoing and received packets.
+     */
+    static int calculateChecksum(ByteBuffer buf, int offset, int length){
+        long sum = Checksum.sum(buf, offset, CHECKSUM_OFFSET);
+        sum += Checksum.sum(buf, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+        return Checksum.fold(sum);
     }
     
     /**
@@ -150,23 +420,51 @@ public class Packet {
         packet.paddedChecksum = calculateChecksum;
     }
 
+    /**
+     * Set a new timestamp and ACK and patch the checksum incrementally (RFC 1624) instead of recomputing it. 
+     * Only valid if the checksum is currently correct, i.e. calculateAndSetChecksum() has been called after 
+     * the last change to any other field. Used when (re)transmitting a packet that is already checksummed.
+     */
+    public void restamp(long timeStamp, long ACK){
+        int checksum = Checksum.update(this.paddedChecksum, this.timeStamp, timeStamp);
+        this.paddedChecksum = Checksum.update(checksum, SeqNum.toWire(this.ACK), SeqNum.toWire(ACK));
+        this.timeStamp = timeStamp;
+        this.ACK = ACK;
+    }
+
     public long getTimeStamp(){
         return this.timeStamp;
     }
 
-    public void setACK( int ACK){
+    public void setACK( long ACK){
         this.ACK = ACK; 
     }
 
-    public int getByteSeqNum(){
+    public long getByteSeqNum(){
         return this.byteSeqNum;
     }
 
-    public int getACK(){
+    public long getACK(){
         return this.ACK;
     }
 
+    /** Number of low bits of byteSeqNum that came over the wire: 32, or fewer in the compact header format. */
+    public int getByteSeqNumBits(){
+        return this.byteSeqNumBits;
+    }
+
+    /** Number of low bits of ACK that came over the wire: 32, or fewer in the compact header format. */
+    public int getACKBits(){
+        return this.ACKBits;
+    }
+
     public boolean verifyChecksum(){
+        if (this.crcCheck != 0) {
+            return this.crcCheck > 0;
+        }
+        if (this.compactHeaderSum >= 0) {
+            return this.paddedChecksum == Checksum.fold(this.compactHeaderSum + dataSum(this));
+        }
         int computed = calculateChecksum(this);
         if( this.paddedChecksum != computed){
             return false;
@@ -176,13 +474,13 @@ public class Packet {
     }
 
     public int getDataLength(){
-        if(this.data == null){
-            return 0;
-        }else{
-            return this.data.length;
-        }
+        return this.dataLength;
     }
 
+    /**
+     * The backing array of the payload. It may be longer than the payload; only the first getDataLength() 
+     * bytes are valid.
+     */
     public byte[] getData() {
         return this.data;
     }
@@ -1,129 +1,258 @@
 package Packet;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.concurrent.PriorityBlockingQueue;
-
-import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+import Buffer.PayloadPool;
+import Congestion.CongestionController;
+import Congestion.Pacer;
 import Statistics.*;
+import Timeout.Timeout;
+import Timeout.TimerWheel;
+import Transport.DatagramTransport;
 import Exceptions.*;
 
+/**
+ * State shared by the threads of one end: sequence numbers, and on the sender the packets in flight with their
+ * timers. Guarded by a ReentrantLock rather than the object's monitor, so that a thread that blocks while holding it
+ * (a send, or waiting for the window) does not pin its carrier when the threads are virtual (see
+ * Transport.ConnectionThreads). A change to the window or to the packets waiting is signalled on `changed`; the
+ * retransmission timer thread waits on a condition of its own, see arm().
+ */
 public class PacketManager {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Condition timerChanged = lock.newCondition(); // Sender T3 waits here. See arm()
+    private long timerWakeup = Long.MIN_VALUE; // Sender: the deadline T3 sleeps until. MIN_VALUE while it is awake
     private final int windowSize; //in number of segments
-    private int inTransitPacket;
-    private PriorityBlockingQueue<PacketWithInfo> queue;
+    private final InFlightTable inFlight; // Sender: packets between the cumulative ACK and the last one made
+    private final TimerWheel timers = new TimerWheel(TIMER_BUCKETS, TIMER_TICK); // Sender: retransmission timers of the packets in flight
+    private Timeout retransmissionTimeout; // Sender: RTO estimator. See setRetransmissionTimeout()
+    private CongestionController congestionController; // Sender: null for a window fixed at windowSize. See setCongestionController()
+    private Pacer pacer; // Sender: spreads new data out. null if not paced. See setPacer()
+    private long recoveryPoint = 0;   // Sender: segment number. Losses of the segments below it do not reduce the window again
+    private boolean inRecovery = false; // Sender: in fast recovery until the cumulative ACK reaches recoveryPoint
     private Statistics statistics;
+    private final PayloadPool payloadPool;
     private long programInitTime; //time in ms when TCPEnd init
     /** 
      * Sender: localSequenceNumber is the sequence number to be put on Packet.byteSeqNum. That is, the next packet's starting byte sequence number. Get this value with getLocalSequenceNumber(). Once a packet is made, localSequenceNumber needs to be incremented by data length using increaseLocalSequenceNumber(). Only use setLocalSequenceNumber() in initial setup phase. 
      * Receiver: Similarly, localSequenceNumber is also the next packet's starting sequence number. While the receiver never send data, this will be changed after sending SYN and FIN.
      * */
-    private int localSequenceNumber;
+    private long localSequenceNumber;
     
     /**
+     * Sequence numbers are 64-bit logical values and never wrap; only their low 32 bits go on the wire (see SeqNum).
      * Sender: This is the last received byte's sequence number. Fill in `remoteSequenceNumber + 1` in outgoing packet's ACK field
      * Receiver: stores the last continuous byte received from the sender
      */
-    private int remoteSequenceNumber;
+    private long remoteSequenceNumber;
     private boolean allPacketsEnqueued;
-    
 
-    public PacketManager( int windowSize, Comparator<PacketWithInfo> cmp, long programInitTime){
+    /** Set after the handshake if both ends agreed on selective acknowledgements. See HandshakeOptions. */
+    private boolean sackEnabled = false;
+    /** Receiver: at most this many SACK blocks are reported per ACK. */
+    public static final int MAX_SACK_BLOCKS = 4;
+    /** Sender: a packet is considered lost once this many packets above it have been SACKed (RFC 6675 DupThresh). */
+    private static final int SACK_DUP_THRESH = 3;
+    /** Sender: the timer wheel has 1 ms ticks and spans about a second. Longer timeouts take more than one revolution. */
+    private static final int TIMER_BUCKETS = 1024;
+    private static final long TIMER_TICK = 1000000; // in nanosecond
+    private static final int MAX_BACKOFF = 6;        // the retransmission timeout doubles at most this many times
+    /** Sender: the pacer sends a window in 1 / PACING_GAIN RTT, so that pacing alone never caps the window. */
+    private static final double PACING_GAIN = 2;
+
+
+    public PacketManager( int windowSize, long programInitTime){
         this.windowSize = windowSize;
         remoteSequenceNumber = 0;
         localSequenceNumber = 0;
         statistics = new Statistics();
         allPacketsEnqueued = false;
-        queue = new PriorityBlockingQueue<PacketWithInfo>(11, cmp);
-        inTransitPacket = 0;
+        inFlight = new InFlightTable(windowSize);
         this.programInitTime = programInitTime;
+        payloadPool = new PayloadPool();
     }
 
     /*********************************************************************/
     /**********************   Sender and Receiver   **********************/
     /*********************************************************************/
 
-    public PriorityBlockingQueue<PacketWithInfo> getQueue(){
-        return this.queue;
-    }
-
-    public synchronized void setRemoteSequenceNumber(int remoteSeq){
-        this.remoteSequenceNumber = remoteSeq;
+    public void setRemoteSequenceNumber(long remoteSeq){
+        lock.lock();
+        try {
+            this.remoteSequenceNumber = remoteSeq;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Set remoteSequenceNumber by adding inc to it. Perform overflow check and wrap up value.
+     * Set remoteSequenceNumber by adding inc to it.
      * @param amount the amount to be added to remoteSequenceNumber
      */
-    public synchronized void increaseRemoteSequenceNumber(int amount){
-        this.remoteSequenceNumber += amount;
-        if(this.remoteSequenceNumber < 0){
-            this.remoteSequenceNumber += Integer.MAX_VALUE;
-            this.remoteSequenceNumber += 1; 
-            // add an additional one because has one more negative number than positive number
+    public void increaseRemoteSequenceNumber(int amount){
+        lock.lock();
+        try {
+            this.remoteSequenceNumber += amount;
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized int getRemoteSequenceNumber(){
-        return this.remoteSequenceNumber;
+    public long getRemoteSequenceNumber(){
+        lock.lock();
+        try {
+            return this.remoteSequenceNumber;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * See localSequenceNumber's description.
      */
-    public synchronized int getLocalSequenceNumber(){
-        return this.localSequenceNumber;
+    public long getLocalSequenceNumber(){
+        lock.lock();
+        try {
+            return this.localSequenceNumber;
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
      * See localSequenceNumber's description.
      */
-    public synchronized void setLocalSequenceNumber(int localSeq){
-        this.localSequenceNumber = localSeq;
-        return;
+    public void setLocalSequenceNumber(long localSeq){
+        lock.lock();
+        try {
+            this.localSequenceNumber = localSeq;
+            return;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Set localSequenceNumber by adding inc to it. Perform overflow check and wrap up value. See localSequenceNumber's description.
+     * Set localSequenceNumber by adding inc to it. See localSequenceNumber's description.
      * @param amount the amount to be added to localSequenceNumber
      */
-    public synchronized void increaseLocalSequenceNumber(int amount){
-        this.localSequenceNumber += amount;
-        if(this.localSequenceNumber < 0){
-            this.localSequenceNumber += Integer.MAX_VALUE;
-            this.localSequenceNumber += 1; 
-            // add an additional one because has one more negative number than positive number
+    public void increaseLocalSequenceNumber(int amount){
+        lock.lock();
+        try {
+            this.localSequenceNumber += amount;
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void setAllPacketsEnqueued(){
-        this.allPacketsEnqueued = true;
+    public void setAllPacketsEnqueued(){
+        lock.lock();
+        try {
+            this.allPacketsEnqueued = true;
+            timerChanged.signal(); // T3 returns once the packets in flight are ACKed, maybe already
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized boolean isAllPacketsEnqueued(){
-        return this.allPacketsEnqueued;
+    public boolean isAllPacketsEnqueued(){
+        lock.lock();
+        try {
+            return this.allPacketsEnqueued;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Statistics getStatistics(){
         return this.statistics;
     }
 
+    public void setSackEnabled(boolean sackEnabled){
+        lock.lock();
+        try {
+            this.sackEnabled = sackEnabled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSackEnabled(){
+        lock.lock();
+        try {
+            return this.sackEnabled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pool for packet payloads, shared by every thread of this end. 
+     * Sender: packets are released when they are ACKed or replaced by their retransmission. 
+     * Receiver: packets are released after their data is put into ReceiverBuffer.
+     */
+    public PayloadPool getPayloadPool(){
+        return this.payloadPool;
+    }
+
     /*
     This function returns an ACK packet with the current 'Next Byte Expected' in the ackowledge field 
     Used for both sender and receiver 
     */
     public Packet makeACKPacket(Packet pktReceived){
+        return makeACKPacket(pktReceived.timeStamp);
+    }
 
-        
+    /*
+    Receiver: Same as makeACKPacket(Packet), echoing the given timestamp of the packet being acknowledged. 
+    If SACK is enabled and `reorder` holds out-of-order packets, SACK blocks are attached, the one 
+    containing recentSeqNum (the packet that triggered this ACK) first. 
+    */
+    public Packet makeACKPacket(long timeStampReceived, long recentSeqNum, ReorderBuffer reorder){
+        Packet ackPkt = makeACKPacket(timeStampReceived);
+        if (!isSackEnabled() || reorder.isEmpty()) {
+            return ackPkt;
+        }
+        long[] blocks = new long[2 * MAX_SACK_BLOCKS];
+        int count = reorder.ranges(getRemoteSequenceNumber(), recentSeqNum, blocks, MAX_SACK_BLOCKS);
+        if (count > 0) {
+            Packet.setSACKBlocks(ackPkt, blocks, count);
+            Packet.calculateAndSetChecksum(ackPkt);
+        }
+        return ackPkt;
+    }
+
+    /*
+    Receiver, positional writes: same as makeACKPacket(long, long, ReorderBuffer), with the SACK blocks taken 
+    from `received`. The cumulative ACK (remoteSequenceNumber) must already be advanced to received.base(). 
+    */
+    public Packet makeACKPacket(long timeStampReceived, long recentSeqNum, CompletionBitmap received){
+        Packet ackPkt = makeACKPacket(timeStampReceived);
+        if (!isSackEnabled() || !received.hasPending()) {
+            return ackPkt;
+        }
+        long[] blocks = new long[2 * MAX_SACK_BLOCKS];
+        int count = received.ranges(recentSeqNum, blocks, MAX_SACK_BLOCKS);
+        if (count > 0) {
+            Packet.setSACKBlocks(ackPkt, blocks, count);
+            Packet.calculateAndSetChecksum(ackPkt);
+        }
+        return ackPkt;
+    }
+
+    /*
+    Same as makeACKPacket(Packet), echoing the given timestamp of the packet being acknowledged 
+    */
+    public Packet makeACKPacket(long timeStampReceived){
         Packet ackPkt = new Packet(this.getLocalSequenceNumber());
-        ackPkt.setACK(
-        this.getRemoteSequenceNumber() == Integer.MAX_VALUE ? 0: this.getRemoteSequenceNumber() + 1 ) ;
-    
-        ackPkt.timeStamp = pktReceived.timeStamp;
+        ackPkt.setACK(this.getRemoteSequenceNumber() + 1);
+
+        ackPkt.timeStamp = timeStampReceived;
         Packet.setFlag(ackPkt, false, false, true);
         Packet.calculateAndSetChecksum(ackPkt);
         return ackPkt; 
@@ -148,25 +277,43 @@ public class PacketManager {
     @action: snd/ rcv depends on whether this packet is being sent/received
     */ 
     public void output(Packet p, String action){
+        output(action, Packet.checkSYN(p), Packet.checkACK(p), Packet.checkFIN(p), outputSeqNum(p.getByteSeqNum(), p.getByteSeqNumBits()), Packet.checkSACK(p) ? 0 : p.getDataLength(), outputACK(p.getACK(), p.getACKBits()));
+    }
+
+    /*Same as output(Packet, String), but reads the fields in place from a received datagram*/ 
+    public void output(PacketView v, String action){
+        output(action, v.checkSYN(), v.checkACK(), v.checkFIN(), outputSeqNum(Integer.toUnsignedLong(v.getByteSeqNum()), v.getByteSeqNumBits()), v.checkSACK() ? 0 : v.getDataLength(), outputACK(Integer.toUnsignedLong(v.getACK()), v.getACKBits()));
+    }
+
+    // a compact header carries less than 32 bits. print the numbers it stands for instead
+    private long outputSeqNum(long wire, int bits){
+        return bits < 32 ? SeqNum.unwrap(wire, bits, this.remoteSequenceNumber) : wire;
+    }
+
+    private long outputACK(long wire, int bits){
+        return bits < 32 ? SeqNum.unwrap(wire, bits, this.localSequenceNumber) : wire;
+    }
+
+    private void output(String action, boolean isSYN, boolean isACK, boolean isFIN, long seqNum, int dataLength, long ACKnum){
         //snd 34.335 S - - - 0 0 0
         //<snd/rcv> <time> <flag-list> <seq-number> <number of bytes> <ack number> 
         double outputTime = (double)(System.currentTimeMillis() - this.programInitTime)/1000; //in sec
         String tStr = String.format("%.3f", outputTime);
         tStr = String.format("%8.8s", tStr);
         //String all = String.format()
-        String syn = (Packet.checkSYN(p))? "S":"-" ; 
-        String ack =(Packet.checkACK(p))? "A":"-" ; 
-        String fin = (Packet.checkFIN(p))? "F":"-" ; 
+        String syn = (isSYN)? "S":"-" ; 
+        String ack =(isACK)? "A":"-" ; 
+        String fin = (isFIN)? "F":"-" ; 
         String d = "-";
-        if(!Packet.checkSYN(p) && !Packet.checkFIN(p) && Packet.checkACK(p)){
-            if(p.getDataLength()>0){
+        if(!isSYN && !isFIN && isACK){
+            if(dataLength>0){
                 d = "D";
             }
         }
         
         //8 %
 
-        System.out.printf("%s %s %s %s %s %s %d %d %d\n", action, tStr, syn, ack, fin, d, p.getByteSeqNum(),p.getDataLength(), p.getACK());
+        System.out.printf("%s %s %s %s %s %s %d %d %d\n", action, tStr, syn, ack, fin, d, seqNum, dataLength, ACKnum);
 
 
     }
@@ -175,237 +322,452 @@ public class PacketManager {
     /**********************          Sender         **********************/
     /*********************************************************************/
 
+    /**
+     * Sender: the RTO estimator. Every (re)transmission arms the segment's timer with its current timeout, and 
+     * processACK() feeds it RTT samples. Call before sending data.
+     */
+    public void setRetransmissionTimeout(Timeout timeOut){
+        lock.lock();
+        try {
+            this.retransmissionTimeout = timeOut;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sender: let `cc` limit the segments in flight to its congestion window, never more than windowSize. Without
+     * one the window is windowSize all along. Call before sending data.
+     */
+    public void setCongestionController(CongestionController cc){
+        lock.lock();
+        try {
+            this.congestionController = cc;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sender: send new data through `pacer`, at PACING_GAIN times the window per RTT (or at the rate the congestion
+     * controller asks for), never faster than the pacer's maximum rate. Call before sending data.
+     * @param pacer null to send new data as soon as the window has room
+     */
+    public void setPacer(Pacer pacer){
+        lock.lock();
+        try {
+            this.pacer = pacer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sender: segments that may be in flight now. */
+    private int effectiveWindow(){
+        return (congestionController == null) ? windowSize : Math.min(congestionController.getWindow(), windowSize);
+    }
+
+    /**
+     * Sender: segment `seg` is considered lost, by a timeout or else by duplicate ACKs or SACK. Tell the congestion 
+     * controller, unless seg was sent before the last reduction: the window is reduced once per window of data.
+     */
+    private void congestionEvent(long seg, boolean timeout){
+        if (congestionController == null || seg < recoveryPoint) {
+            return;
+        }
+        if (timeout) {
+            congestionController.onTimeout(inFlight.inTransit(), System.nanoTime());
+        }
+        else {
+            congestionController.onLoss(inFlight.inTransit(), System.nanoTime());
+        }
+        recoveryPoint = inFlight.nextUnsent;
+        inRecovery = !timeout;
+    }
+
+    /**
+     * Sender T1: add a new data packet. trySendNewData() sends it once the window has room.
+     */
+    public void enqueue(Packet pkt){
+        lock.lock();
+        try {
+            inFlight.add(pkt);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sender: whether every packet enqueued has been ACKed. */
+    public boolean isInFlightEmpty(){
+        lock.lock();
+        try {
+            return inFlight.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * To maintain appropriate sliding window, all sender threads (except three-way handshake and teardown) should send data via this method. 
-     * this: If the data is new (not retransmit), increments `inTransitPacket` after sending the packet.
-     * pwi: This method sets boolean `sent` to true after sending the packet.
-     * pwi.packet: This method updates timestamp, ACK, and set appropriate flag, and then recalculate checksum.
+     * this: If the data is new (not retransmit), the segment counts as in transit after sending the packet.
+     * packet: This method updates timestamp, ACK, and set appropriate flag, and then updates checksum.
      * 
-     * How to call this method: thread 2 (new data) should use trySendNewData() to invoke this function, thread 3 (triple duplicate ACK) should use dupACKFastRetransmit(), and thread 4 (timeout) should use helperCheckExpire().
-     * @param isNewData if the packet is new data, or a retransmit one
-     * @param pwi PacketWithInfo
-     * @param udpSocket
-     * @param remotePort
-     * @param remoteIp
-     * @throws IOException
+     * How to call this method: thread 2 (new data) should use trySendNewData() to invoke this function, thread 3 (triple duplicate ACK, SACK) and thread 4 (timeout) should use retransmit().
+     * @param isNewData if the packet is new data (the next unsent segment), or a retransmit one
+     * @param seg segment number in `inFlight`
+     * @param transport
      */
-    private synchronized void senderSendUDP( boolean isNewData, PacketWithInfo pwi, DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws ExceedWindowSizeException, DebugException {
-        // need to check if we will exceed window size if this is new data packet
-        if((isNewData == true) && (inTransitPacket == windowSize)) {
-            throw new ExceedWindowSizeException();
-        }
+    private void senderSendUDP( boolean isNewData, long seg, DatagramTransport transport) throws ExceedWindowSizeException {
+        lock.lock();
+        try {
+            // need to check if we will exceed window size if this is new data packet
+            if((isNewData == true) && (inFlight.inTransit() == windowSize)) {
+                throw new ExceedWindowSizeException();
+            }
         
-        pwi.packet.setTimeStampToCurrent();
-        Packet.setFlag(pwi.packet, false, false, true);
-        pwi.packet.setACK(this.getRemoteSequenceNumber() +1 );
-        Packet.calculateAndSetChecksum(pwi.packet);
+            Packet pkt = inFlight.packet(seg);
+            if (!Packet.checkACK(pkt)) {
+                Packet.setFlag(pkt, false, false, true);
+                Packet.calculateAndSetChecksum(pkt);
+            }
+            // Data packets are already checksummed when made. Only timestamp and ACK change here, so patch the checksum incrementally.
+            pkt.restamp(System.nanoTime(), this.getRemoteSequenceNumber() +1 );
 
-        byte[] data = Packet.serialize(pwi.packet);
-        DatagramPacket udpPkt = new DatagramPacket(data, data.length, remoteIp, remotePort);
-        try {
-            udpSocket.send(udpPkt);
-            output(pwi.packet, "snd");
-            pwi.sent = true;
+            try {
+                transport.send(pkt);
+                output(pkt, "snd");
 
-            if (isNewData == true) {
-                System.out.println("Increment inTransitPacket");
-                ++inTransitPacket;
+                if (isNewData == true) {
+                    ++inFlight.nextUnsent;
+                }
+            } catch (IOException e) {
+                System.err.println(Thread.currentThread() + ": " + getClass().getName() + "::senderSendUDP IOException when sending packet with seq number " + pkt.byteSeqNum + ". Will skip this send and continue. Exception info: " + e);
             }
-            if (inTransitPacket > windowSize) {
-                throw new DebugException();
+            if (seg < inFlight.nextUnsent) {
+                // (re)arm the retransmission timer, backed off exponentially per retransmission. A failed send is retried when it expires.
+                long rto = retransmissionTimeout.getTimeout() << Math.min(inFlight.resendCount(seg), MAX_BACKOFF);
+                arm(inFlight.timer(seg), pkt.timeStamp + rto);
             }
-        } catch (IOException e) {
-            System.err.println(Thread.currentThread() + ": " + getClass().getName() + "::senderSendUDP IOException when sending packet with seq number " + pwi.packet.byteSeqNum + ". Will skip this send and continue. Exception info: " + e);
+        } finally {
+            lock.unlock();
         }
-
-        notifyAll();
     }
     
+    /**
+     * Sender T1: send the unsent packets the window lets out, and return the last one. Unlike trySendNewData(), 
+     * this only returns without sending if nothing is waiting to be sent: while the pacer is out of tokens it parks 
+     * until it has some again, without holding the lock so that ACKs keep being processed.
+     * @return the last packet sent, or null if no packet was waiting
+     */
+    public Packet sendNewData(DatagramTransport transport) throws IOException, DebugException {
+        while (true) {
+            Packet sent = trySendNewData(transport);
+            if (sent != null) {
+                return sent;
+            }
+            long delay = pacingDelay();
+            if (delay < 0) {
+                return null;
+            }
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    /** Sender: ns until the pacer lets the next unsent packet go, or -1 if no packet is waiting. */
+    private long pacingDelay(){
+        lock.lock();
+        try {
+            if (inFlight.nextUnsent == inFlight.end) {
+                return -1;
+            }
+            return (pacer == null) ? 0 : pacer.delay(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sender: the pacer's target rate, in byte per second. */
+    private double pacingRate(){
+        double segmentsPerSecond = (congestionController == null) ? 0 : congestionController.getPacingRate();
+        if (segmentsPerSecond <= 0) {
+            segmentsPerSecond = PACING_GAIN * effectiveWindow() * 1e9 / Math.max(1, retransmissionTimeout.getEstimatedRTT());
+        }
+        return segmentsPerSecond * pacer.getSegmentSize();
+    }
+
     /*
     This function try to send a new Data packet and return the TCP pkt (Packet) sent successfully 
-    Return null if not send  
+    Return null if not send (the pacer is out of tokens, or there is no unsent packet)
     */
-    public synchronized Packet trySendNewData(DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws IOException, DebugException {
-        int vacancy = windowSize - inTransitPacket;
-        Packet lastSent = null; 
+    public Packet trySendNewData(DatagramTransport transport) throws IOException, DebugException {
+        lock.lock();
+        try {
+            Packet lastSent = null; 
         
-        if (vacancy < 0) {
-            throw new DebugException();
-        }
-        while (vacancy == 0) {
-            notifyAll();
-            try {
-                // System.out.println("Thread: " + Thread.currentThread().getName() + " is now going to sleep at " + this.getClass().getName() + "::trySendNewData()" );
-                wait();
-            } catch (InterruptedException e) {}
-            // System.out.println("Thread: " + Thread.currentThread().getName() + " is now woken up from " + this.getClass().getName() + "::trySendNewData()" );
-            // System.out.println("Thread: " + Thread.currentThread().getName() + ": before recalculate, vacancy = " + vacancy + ". (should be 0)");
-            vacancy = windowSize - inTransitPacket;
-            // System.out.println("Thread: " + Thread.currentThread().getName() + ": after recalculate, vacancy = " + vacancy + ".");
-        }
+            if (inFlight.inTransit() > windowSize) {
+                throw new DebugException();
+            }
+            while (inFlight.inTransit() >= effectiveWindow()) {
+                changed.awaitUninterruptibly();
+            }
 
-        for(PacketWithInfo p : this.queue) {
-            if((p.sent == false) && (vacancy > 0)) {
+            if (pacer != null) {
+                pacer.setRate(pacingRate());
+            }
+            while (inFlight.nextUnsent < inFlight.end && inFlight.inTransit() < effectiveWindow()) {
+                long seg = inFlight.nextUnsent;
+                if (pacer != null && !pacer.tryAcquire(inFlight.packet(seg).getDataLength(), System.nanoTime())) {
+                    break; // out of tokens. see sendNewData()
+                }
                 try {
-                    senderSendUDP(true, p, udpSocket, remotePort, remoteIp);
+                    senderSendUDP(true, seg, transport);
                 }catch (ExceedWindowSizeException e) {
                     System.err.println("PacketManager: trySendNewData: abnormal: " + e);
                     System.exit(1);
                 }
-                // output(p.packet, "snd"); // senderSendUDP has it
-                lastSent = p.packet; 
-                --vacancy;
+                if (inFlight.nextUnsent == seg) {
+                    break; // not sent. it stays the next unsent segment
+                }
+                lastSent = inFlight.packet(seg); 
             }
-            else if (vacancy == 0) break;
+            return lastSent;
+        } finally {
+            lock.unlock();
         }
-        return lastSent; 
     }
 
     /**
-     * Sender T2: Call this function if it needs to retransmit packet because of duplicate ACKs.
-     * @throws IOException
+     * Sender T2: Process an ACK whose (unwrapped) ACK number is ACKnum. 
+     * A new ACK retires every segment below ACKnum, in O(segments ACKed). A stretch ACK (the receiver delays and 
+     * coalesces ACKs) gives one RTT sample, from the newest segment it covers, and only if that one was neither 
+     * retransmitted nor SACKed. The timer of the oldest segment left is then re-armed with the updated timeout 
+     * (the others pick it up when they are sent again). 
+     * Either way the segment starting at ACKnum counts one more ACK. At the fourth (triple duplicate ACK) it is 
+     * fast retransmitted, unless the SACK scoreboard has already retransmitted it. 
+     * The congestion controller, if any, is told about the ACK, the RTT sample and the loss.
+     * @param duplicate whether ACKnum equals the previous ACK number
+     * @throws DupACKPacketNotExistException if a duplicate ACK does not point at the oldest segment in flight
      */
-    public synchronized void dupACKFastRetransmit(PacketWithInfo pwi, DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws DebugException {
+    public void processACK(long ACKnum, boolean duplicate, DatagramTransport transport) throws DupACKPacketNotExistException {
+        lock.lock();
         try {
-            senderSendUDP(false, pwi, udpSocket, remotePort, remoteIp);
-        }catch (ExceedWindowSizeException e) {
-            System.err.println("PacketManager: dupACKFastRetransmit: abnormal: " + e);
-            System.exit(1);
+            long now = System.nanoTime();
+            if (!duplicate) {
+                boolean updated = false;
+                int inTransit = inFlight.inTransit();
+                while (inFlight.first < inFlight.nextUnsent && inFlight.packet(inFlight.first).byteSeqNum < ACKnum) {
+                    long seg = inFlight.first;
+                    Packet p = inFlight.packet(seg);
+                    if (p.byteSeqNum + p.getDataLength() == ACKnum && inFlight.resendCount(seg) == 0 && !inFlight.hasFlag(seg, InFlightTable.SACKED)) {
+                        if (congestionController != null) {
+                            congestionController.onRTTSample(now - p.timeStamp, now);
+                        }
+                        retransmissionTimeout.update(p);
+                        updated = true;
+                    }
+                    timers.cancel(inFlight.timer(seg));
+                    inFlight.removeFirst();
+                }
+                if (updated && inFlight.first < inFlight.nextUnsent) {
+                    TimerWheel.Timer oldest = inFlight.timer(inFlight.first);
+                    arm(oldest, inFlight.packet(inFlight.first).timeStamp + retransmissionTimeout.getTimeout());
+                }
+                int acked = inTransit - inFlight.inTransit();
+                if (congestionController != null && acked > 0) {
+                    if (inRecovery && inFlight.first >= recoveryPoint) {
+                        inRecovery = false;
+                        congestionController.onRecoveryEnd(now);
+                    }
+                    else {
+                        congestionController.onACK(acked, inTransit, now);
+                    }
+                }
+                changed.signalAll(); // the window may have room again
+                if (allPacketsEnqueued && inFlight.isEmpty()) {
+                    timerChanged.signal(); // T3's work is done
+                }
+            }
+            else if (congestionController != null) {
+                congestionController.onDupACK(now);
+                changed.signalAll(); // fast recovery may have opened the window
+            }
+
+            long seg = inFlight.first;
+            if (seg == inFlight.nextUnsent) {
+                return; // nothing in flight, e.g. the ACK of a spurious retransmission
+            }
+            if (inFlight.packet(seg).byteSeqNum != ACKnum) {
+                if (duplicate) {
+                    throw new DupACKPacketNotExistException();
+                }
+                return;
+            }
+            statistics.incrementDupACKCount();
+            if (inFlight.incrementACKcount(seg) == 4 && !inFlight.hasFlag(seg, InFlightTable.SACK_RETRANSMITTED)) { // triple dup ACK
+                congestionEvent(seg, false);
+                retransmit(seg, transport);
+            }
+        } finally {
+            lock.unlock();
         }
-        // output( pwi.packet, "snd"); // senderSendUDP has it
     }
 
     /**
-     * Sender T2: Call this function whenever we remove one PacketWithInfo from PacketManager.queue
+     * Sender T2: Update the SACK scoreboard from a received ACK. Every in-flight packet that lies completely inside 
+     * one of the ACK's SACK blocks is marked SACKED and will not be retransmitted. Then retransmit (once) every 
+     * packet that is not SACKed but has at least SACK_DUP_THRESH SACKed packets above it. This recovers several 
+     * holes in one RTT instead of one hole per RTT through triple duplicate ACKs.
+     * Caller: ACKReceiver, after the cumulative ACK has been processed.
+     * @return number of packets retransmitted
      */
-    public synchronized void decrementInTransitPacket() throws DebugException {
-        inTransitPacket -= 1;
-        System.out.println("Decremented inTransitPacket to " + inTransitPacket);
-        // if ( inTransitPacket < 0 ) {
-        //     throw new DebugException();
-        // }
-        this.notifyAll();
-    }
-    
-    /**
-    Sender T3: This function scan through the queue and checking unexpired packets all time 
-    retransmit and set new timeout during the process
-    */
-    public void checkExpire( DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws IOException, NoSuchElementException, DebugException {
-        //while ! all packet enqueued
-            //if the queue not empty: cheking timout until find unexpired packet 
-                //if unexpired pkt found 
-            //if queue empty, sleep until sender buffer put() notify 
-        //end while, another while loop to check until queue empty 
-        int debugCounter = 0;
-        while( !allPacketsEnqueued){
-            // DEBUG
-            System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): running checkExpire while loop");
-            
-            if (this.queue.isEmpty()){
-                // notify T2 to put packet to queue
-                try{
-                    synchronized(this) {
-                        notifyAll();
-                        System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): queue is empty, going to sleep");
-                        wait();
-                    }    
-                } catch (InterruptedException e) {}
-                System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): being awake");
+    public int sackRetransmit(PacketView ack, DatagramTransport transport) {
+        lock.lock();
+        try {
+            int blockCount = ack.getSACKBlockCount();
+            if (!sackEnabled || blockCount == 0) {
+                return 0;
             }
 
-            if (this.queue.isEmpty()) {
-                System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): queue is still empty. comtinue.");
-                continue;
+            // SACK blocks are within a window of the ACK number, which is within a window of what we sent
+            long ackNum = SeqNum.unwrap(ack.getACK(), ack.getACKBits(), this.localSequenceNumber);
+            for (int i = 0; i < blockCount; ++i) {
+                long left = SeqNum.unwrap(ack.getSACKLeft(i), ackNum);
+                long right = SeqNum.unwrap(ack.getSACKRight(i), ackNum);
+                // segments are in sequence order, so a block covers a run of them
+                for (long seg = inFlight.lowerBound(left); seg < inFlight.nextUnsent; ++seg) {
+                    Packet p = inFlight.packet(seg);
+                    if (p.byteSeqNum + p.getDataLength() > right) break;
+                    inFlight.setFlag(seg, InFlightTable.SACKED);
+                }
             }
 
-            //check packets and retransmit until find unexpired packets 
-            //wait one timeout unit if unexpired found 
-            System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): Going into helper (1)");
-            helperCheckExpire(udpSocket, remotePort, remoteIp);
-        }
-        
-        // no more new packet will be put in queue. Deal with remaining packets in queue.
-        while( !this.queue.isEmpty()){
-            System.err.println(Thread.currentThread() + "[" + debugCounter++ + "]: checkExpire(): Going into helper (2)");
-            helperCheckExpire(udpSocket, remotePort, remoteIp);
+            // walk down from the newest segment sent, counting the SACKed segments above each hole
+            int above = 0;
+            int retransmitted = 0;
+            for (long seg = inFlight.nextUnsent - 1; seg >= inFlight.first; --seg) {
+                if (inFlight.hasFlag(seg, InFlightTable.SACKED)) {
+                    ++above;
+                    continue;
+                }
+                if (above < SACK_DUP_THRESH || inFlight.hasFlag(seg, InFlightTable.SACK_RETRANSMITTED)) continue;
+                inFlight.setFlag(seg, InFlightTable.SACK_RETRANSMITTED);
+                congestionEvent(seg, false);
+                retransmit(seg, transport);
+                ++retransmitted;
+            }
+            return retransmitted;
+        } finally {
+            lock.unlock();
         }
-        return ; 
-
     }
 
     /**
-     * Sender T3: Checking timeout. Only called by checkExpire()
+     * Sender T2: processACK() and then sackRetransmit() for one received ACK, under one hold of the lock, so that 
+     * the SACK blocks are applied to the scoreboard the ACK number left.
      */
-    private synchronized void helperCheckExpire( DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws IOException, NoSuchElementException, DebugException {
-        
-        System.err.println(Thread.currentThread() + ": helperCheckExpire(): start");
-        PacketWithInfo head = this.queue.peek(); // May throw NoSuchElementException. Logically it shouldn't since we've checked the queue is not empty.
-        if (head == null) {
-            return;
+    public void processACK(PacketView ack, long ACKnum, boolean duplicate, DatagramTransport transport) throws DupACKPacketNotExistException {
+        lock.lock();
+        try {
+            processACK(ACKnum, duplicate, transport);
+            sackRetransmit(ack, transport);
+        } finally {
+            lock.unlock();
         }
-        
-        long timeRemain = ((head.timeOut + head.packet.timeStamp) - System.nanoTime()) / 1000000; // in ms
-        // check if the frontmost packet is timeout. If so, poll such timeout packet, make a "resend packet" from it, send such "resend packet", and put "resend packet" into the packetManager. If not, wait until the 
-        if( timeRemain <= 0 ){ // timeout. retransmit the packet.
-            System.err.println(Thread.currentThread() + ": helperCheckExpire(): timeRemain < 0");
-            // remove timeout packet
-            this.queue.remove(); // May throw NoSuchElementException. Logically it shouldn't since we've checked the queue is not empty.
-            
-            PacketWithInfo head2 = head.getResendPacketWithInfo(this.remoteSequenceNumber);
-            // add the packet back to the manager 
-            queue.add(head2); 
-            System.err.println(Thread.currentThread() + ": helperCheckExpire(): timeout packet is put back to the queue.");
-            
-            // send UDP
-            try {
-                senderSendUDP(false, head2, udpSocket, remotePort, remoteIp); // May throw IOException
-                
+    }
 
+    /**
+     * Sender: send a segment in flight again. Its timeout doubles with every retransmission. If the packet has already been 
+     * retransmitted 16 times, print error message and System.exit(1).
+     */
+    private void retransmit(long seg, DatagramTransport transport){
+        lock.lock();
+        try {
+            if (inFlight.resendCount(seg) == 16) {
+                System.err.println("Has retransmitted a packet 16 times. Aborting." + inFlight.packet(seg).byteSeqNum);
+                System.exit(1);
+            }
+            inFlight.incrementResendCount(seg);
+            try {
+                senderSendUDP(false, seg, transport);
             } catch (ExceedWindowSizeException e) {
-                System.err.println("PacketManager: helperCheckExpire: abnormal: " + e);
+                System.err.println("PacketManager: retransmit: abnormal: " + e);
                 System.exit(1);
             }
-            // output(head2.packet, "snd"); // senderSendUDP has it
             this.getStatistics().incrementRetransCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Sender: arm `timer` for `deadline`, and wake T3 if it sleeps until later. A timer armed at now + RTO is 
+     * rarely earlier than the ones armed already, so T3 is not woken by every send and ACK. Only call while holding
+     * the lock.
+     */
+    private void arm(TimerWheel.Timer timer, long deadline){
+        timers.schedule(timer, deadline);
+        if (deadline < timerWakeup) {
+            timerWakeup = deadline;
+            timerChanged.signal();
+        }
+    }
+
+    /**
+     * Sender T3: the retransmission timer thread. Sleeps until the next timer is due, then retransmits every 
+     * expired segment (see onTimeout()), oldest first so that the head of the window is not at the back of a burst. Returns once all packets are enqueued and ACKed.
+     */
+    public void checkExpire( DatagramTransport transport) {
+        lock.lock();
+        try {
+            while (!allPacketsEnqueued || !inFlight.isEmpty()) {
+                long now = System.nanoTime();
+                TimerWheel.Timer next;
+                for (TimerWheel.Timer timer = timers.expire(now); timer != null; timer = next) {
+                    next = TimerWheel.getNext(timer);
+                    onTimeout(timer, now, transport);
+                }
 
+                // sleep until the next deadline. Only an earlier timer (see arm()) or the end of the transfer wakes us up.
+                try {
+                    if (timers.isEmpty()) {
+                        timerWakeup = Long.MAX_VALUE;
+                        timerChanged.await();
+                    }
+                    else {
+                        timerWakeup = timers.nextDeadline();
+                        long sleep = timerWakeup - System.nanoTime(); // in nanosecond
+                        if (sleep > 0) {
+                            timerChanged.awaitNanos(sleep);
+                        }
+                    }
+                } catch (InterruptedException e) {}
+                timerWakeup = Long.MIN_VALUE;
+            }
+        } finally {
+            lock.unlock();
         }
-        // else{
-        //     // the current packet not timeout 
-        //     // System.out.printf("Curr time: %f, expire time: %f\n", (double)System.nanoTime()/1000000,  (double)(head.timeOut + head.packet.timeStamp)/1000000);
-        //     // System.out.println("time out value: " + (head.timeOut / 1000000000) + " s" );
-            
-        //         notifyAll();
-            
-        //     try{
-        //         // System.out.println("Thread: " + Thread.currentThread().getName() + " is now going to sleep at " + this.getClass().getName() + "::helperCheckExpire()" );
-        //         wait(); 
-        //     } catch (InterruptedException e) {}
-        //     // catch(IllegalMonitorStateException e2){}
-        
-        //     // System.out.println("Thread: " + Thread.currentThread().getName() + " is now woken up from " + this.getClass().getName() + "::helperCheckExpire()" );
+    }
 
-        // }
+    /**
+     * Sender T3: the retransmission timer of segment timer.id has expired.
+     */
+    private void onTimeout(TimerWheel.Timer timer, long now, DatagramTransport transport) {
+        long seg = timer.id;
+        if (inFlight.hasFlag(seg, InFlightTable.SACKED)) {
+            // the receiver already holds this packet (SACK). Do not retransmit. Re-arm its timer and keep it until the cumulative ACK covers it.
+            arm(timer, now + retransmissionTimeout.getTimeout());
+        }
+        else {
+            congestionEvent(seg, true);
+            retransmit(seg, transport); // re-arms the timer
+        }
     }
 
     /*********************************************************************/
     /**********************         Receiver        **********************/
     /*********************************************************************/
 
-    /*
-    this function check if a given seqNum has already had a packet with the seqNum present in packet manager's queue 
-    AKA: check for duplicate packet 
-    */
-    public synchronized boolean checkDupPacket(int seqNum){
-        for( PacketWithInfo pp: this.getQueue()){
-            if(pp.packet.getACK() == seqNum){
-                return true;
-            }
-        }
-        return false; 
-    }
-
-     
     /*
     This function check if the packet manager contains packets with continous chunk of data after receiving a new packet 
     should always return true: finish checking packets 
@@ -446,11 +808,9 @@ public class PacketManager {
     //     }
     // }
 
-    public void receiverSendUDP( Packet pkt, DatagramSocket udpSocket, int remotePort, InetAddress remoteIp) throws IOException{
+    public void receiverSendUDP( Packet pkt, DatagramTransport transport) throws IOException{
 
-        byte[] data = Packet.serialize(pkt);
-        DatagramPacket udpPkt = new DatagramPacket(data, data.length, remoteIp, remotePort);
-        udpSocket.send(udpPkt);
+        transport.send(pkt);
         output(pkt, "snd"); //receiver send ack 
 
         
@@ -0,0 +1,237 @@
+package Packet;
+
+import java.nio.ByteBuffer;
+
+import Buffer.PayloadPool;
+
+/**
+ * A flyweight, read-only view of a serialized Packet. Fields are read in place from the datagram buffer, so
+ * receive loops can reuse one PacketView and one receive buffer for every datagram instead of allocating a
+ * Packet (and a copy of its payload) per datagram. Call toPacket() only when the packet has to outlive the
+ * buffer, e.g. when it is kept in PacketManager's queue.
+ *
+ * The view is only valid until the underlying buffer is overwritten by the next receive.
+ *
+ * Compact datagrams (see HeaderFormat) are decoded when they are wrapped; the getters then return their shorter
+ * wire values.
+ */
+public class PacketView {
+    private static final int SEQ_OFFSET = 0;
+    private static final int ACK_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int LENGTH_AND_FLAG_OFFSET = 16;
+    private static final int CHECKSUM_OFFSET = 20;
+
+    private ByteBuffer buf;
+    private int offset;
+    private int length;
+    private int headerLength = Packet.HEADER_LENGTH;
+    private boolean crc32c; // the checksum is a CRC32C (see HeaderFormat), except in SYNs
+    private byte crcCheck;  // 1 if the CRC matched, -1 if not, 0 if not computed yet
+
+    // compact format only. decoded by wrap()
+    private boolean compact;
+    private int seq;
+    private int seqBytes;
+    private int ack;
+    private int ackBytes;
+    private long timeStamp;
+    private int flags;
+
+    /**
+     * Point this view at the `length` bytes of buf starting at `offset`. buf's position and limit are not used
+     * or changed.
+     * @return this
+     */
+    public PacketView wrap(ByteBuffer buf, int offset, int length){
+        return wrap(buf, offset, length, HeaderFormat.FULL);
+    }
+
+    /**
+     * Same as wrap(ByteBuffer, int, int) for a connection using `format`: a compact datagram is decoded.
+     * @return this
+     */
+    public PacketView wrap(ByteBuffer buf, int offset, int length, HeaderFormat format){
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        this.crc32c = format.isCRC32C();
+        this.crcCheck = 0;
+        this.compact = length > 0 && format.isCompact(buf, offset);
+        this.headerLength = Packet.HEADER_LENGTH;
+        if (compact) {
+            int first = buf.get(offset) & 0xFF;
+            int width = (first & 3) + 1;
+            boolean dataDirection = (first & HeaderFormat.DATA_DIRECTION) != 0;
+            seqBytes = dataDirection ? width : 1;
+            ackBytes = dataDirection ? 1 : width;
+            flags = (first >>> HeaderFormat.FLAG_SHIFT) & 0xF;
+            headerLength = HeaderFormat.headerLength(width);
+            if (length >= headerLength) {
+                int p = offset + HeaderFormat.SEQ_OFFSET;
+                seq = HeaderFormat.getLow(buf, p, seqBytes);
+                ack = HeaderFormat.getLow(buf, p + seqBytes, ackBytes);
+                timeStamp = Integer.toUnsignedLong(buf.getInt(p + seqBytes + ackBytes)) << HeaderFormat.TIMESTAMP_SHIFT;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Point this view at the first `length` bytes of raw (e.g. DatagramPacket.getData() and getLength()).
+     * The wrapping ByteBuffer is only recreated when raw changes.
+     * @return this
+     */
+    public PacketView wrap(byte[] raw, int length){
+        if (buf == null || !buf.hasArray() || buf.array() != raw) {
+            buf = ByteBuffer.wrap(raw);
+        }
+        return wrap(buf, 0, length);
+    }
+
+    /**
+     * A datagram shorter than the header cannot be a Packet. Check this before reading any field.
+     */
+    public boolean isValidLength(){
+        return length >= headerLength;
+    }
+
+    /** Wire value of getByteSeqNumBits() bits. Use SeqNum.unwrap() to get the logical sequence number. */
+    public int getByteSeqNum(){
+        return compact ? seq : buf.getInt(offset + SEQ_OFFSET);
+    }
+
+    /** Wire value of getACKBits() bits. Use SeqNum.unwrap() to get the logical ACK number. */
+    public int getACK(){
+        return compact ? ack : buf.getInt(offset + ACK_OFFSET);
+    }
+
+    public int getByteSeqNumBits(){
+        return compact ? 8 * seqBytes : 32;
+    }
+
+    public int getACKBits(){
+        return compact ? 8 * ackBytes : 32;
+    }
+
+    /** In the compact format only the low 42 bits (in 1024 ns units) are carried. Enough to be echoed back. */
+    public long getTimeStamp(){
+        return compact ? timeStamp : buf.getLong(offset + TIMESTAMP_OFFSET);
+    }
+
+    private int getLengthAndFlag(){
+        return compact ? flags : buf.getInt(offset + LENGTH_AND_FLAG_OFFSET);
+    }
+
+    /** SACK, SYN, FIN and ACK flags, from high to low. */
+    int getFlags(){
+        return getLengthAndFlag() & 0xF;
+    }
+
+    public int getPaddedChecksum(){
+        return compact ? buf.getShort(offset + HeaderFormat.CHECKSUM_OFFSET) & 0xFFFF : buf.getInt(offset + CHECKSUM_OFFSET);
+    }
+
+    /** HeaderFormat.headerSum() of a compact datagram, -1 for the full format. */
+    long getCompactHeaderSum(){
+        return compact ? HeaderFormat.headerSum(buf, offset, headerLength) : -1;
+    }
+
+    /** Payload length, i.e. the number of bytes after the header. */
+    public int getDataLength(){
+        return length - headerLength;
+    }
+
+    public boolean checkSYN(){
+        return (getLengthAndFlag() & 4) != 0;
+    }
+
+    public boolean checkFIN(){
+        return (getLengthAndFlag() & 2) != 0;
+    }
+
+    public boolean checkACK(){
+        return (getLengthAndFlag() & 1) != 0;
+    }
+
+    /** If set, the payload is getSACKBlockCount() SACK blocks rather than data. */
+    public boolean checkSACK(){
+        return (getLengthAndFlag() & 8) != 0;
+    }
+
+    public int getSACKBlockCount(){
+        return checkSACK() ? getDataLength() / Packet.SACK_BLOCK_LENGTH : 0;
+    }
+
+    /** First sequence number covered by the i-th SACK block (32-bit wire value). */
+    public int getSACKLeft(int i){
+        return buf.getInt(offset + headerLength + i * Packet.SACK_BLOCK_LENGTH);
+    }
+
+    /** Sequence number right after the i-th SACK block (32-bit wire value). */
+    public int getSACKRight(int i){
+        return buf.getInt(offset + headerLength + i * Packet.SACK_BLOCK_LENGTH + 4);
+    }
+
+    public boolean verifyChecksum(){
+        if (crc32c && !checkSYN()) {
+            if (crcCheck == 0) {
+                boolean match = compact 
+                    ? getPaddedChecksum() == (HeaderFormat.crc32c(buf, offset, length, HeaderFormat.CHECKSUM_OFFSET, 2) & 0xFFFF)
+                    : getPaddedChecksum() == HeaderFormat.crc32c(buf, offset, length, CHECKSUM_OFFSET, 4);
+                crcCheck = (byte) (match ? 1 : -1);
+            }
+            return crcCheck > 0;
+        }
+        if (compact) {
+            long sum = getCompactHeaderSum() + Checksum.sum(buf, offset + headerLength, length - headerLength);
+            return getPaddedChecksum() == Checksum.fold(sum);
+        }
+        return getPaddedChecksum() == Packet.calculateChecksum(buf, offset, length);
+    }
+
+    /**
+     * Copy the payload into dst starting at dst's position. dst's position is advanced by getDataLength().
+     */
+    public void getData(ByteBuffer dst){
+        ByteBuffer src = buf.duplicate();
+        src.limit(offset + length).position(offset + headerLength);
+        dst.put(src);
+    }
+
+    /**
+     * The payload as a slice of the underlying buffer, from index 0 to its limit. Nothing is copied, so it is only
+     * valid until the buffer is reused.
+     */
+    public ByteBuffer getDataView(){
+        return buf.slice(offset + headerLength, length - headerLength);
+    }
+
+    /**
+     * Materialize an owning Packet that no longer depends on the underlying buffer.
+     */
+    public Packet toPacket(){
+        return toPacket(null);
+    }
+
+    /**
+     * Same as toPacket(), with the payload copied into an array from pool. The packet must be release()d.
+     */
+    public Packet toPacket(PayloadPool pool){
+        ByteBuffer src = buf.duplicate();
+        Packet packet;
+        if (compact) {
+            src.limit(offset + length).position(offset + headerLength);
+            packet = Packet.fromCompact(this, src, pool);
+        }
+        else {
+            src.limit(offset + length).position(offset);
+            packet = Packet.deserialize(src, pool);
+        }
+        if (crc32c && !checkSYN()) {
+            // the CRC covers the serialized bytes, which the packet does not keep
+            packet.crcCheck = verifyChecksum() ? (byte) 1 : (byte) -1;
+        }
+        return packet;
+    }
+}
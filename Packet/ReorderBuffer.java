@@ -0,0 +1,173 @@
+package Packet;
+
+/**
+ * Receiver: the out-of-order segments above the cumulative ACK, waiting for the hole in front of them to be filled.
+ *
+ * A segment starting at sequence number s is held in slot (s / segmentSize) % slots of a circular array. Segments
+ * only start within the receive window, windowSize * segmentSize bytes above the cumulative ACK, and there is a slot
+ * for every segmentSize bytes of it, so held segments never wrap onto each other. A slot holds more than one segment
+ * only when short segments (the end of the file, compression) start within segmentSize bytes of each other; those
+ * are chained in sequence order. An occupancy bitmap of the slots lets ranges() skip empty ones.
+ *
+ * Finding, adding and removing a segment is O(1), so draining the contiguous segments after a hole is filled costs
+ * O(segments delivered).
+ *
+ * Only used by the thread that receives packets.
+ */
+public class ReorderBuffer {
+    private final PacketWithInfo[] slots;
+    private final long[] occupied; // bit i set iff slot i is not empty
+    private final int mask;        // slots - 1. slots is a power of 2
+    private final int segmentSize;
+    private int size = 0;
+
+    /**
+     * @param windowSize in segments
+     * @param segmentSize largest segment payload in bytes
+     */
+    public ReorderBuffer(int windowSize, int segmentSize){
+        int n = Integer.highestOneBit(Math.max(windowSize + 1, 64) * 2 - 1);
+        this.slots = new PacketWithInfo[n];
+        this.occupied = new long[n / 64];
+        this.mask = n - 1;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Number of segments held. */
+    public int size(){
+        return size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /** Whether a segment starting at seqNum is held. */
+    public boolean contains(long seqNum){
+        for (PacketWithInfo p = slots[slot(seqNum)]; p != null && p.packet.byteSeqNum <= seqNum; p = p.next) {
+            if (p.packet.byteSeqNum == seqNum) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hold pkt, which starts within the receive window.
+     * @return false if a segment with the same sequence number is held already. pkt is not taken then.
+     */
+    public boolean add(Packet pkt){
+        int i = slot(pkt.byteSeqNum);
+        PacketWithInfo prev = null, p = slots[i];
+        while (p != null && p.packet.byteSeqNum < pkt.byteSeqNum) {
+            prev = p;
+            p = p.next;
+        }
+        if (p != null && p.packet.byteSeqNum == pkt.byteSeqNum) {
+            return false;
+        }
+        PacketWithInfo node = new PacketWithInfo(pkt);
+        node.next = p;
+        if (prev == null) {
+            slots[i] = node;
+        }
+        else {
+            prev.next = node;
+        }
+        occupied[i >>> 6] |= 1L << i;
+        ++size;
+        return true;
+    }
+
+    /**
+     * Take the segment starting at seqNum, the byte after the cumulative ACK. Segments of the same slot that start
+     * before it are below the cumulative ACK, so they are dropped and released.
+     * @return null if no such segment is held
+     */
+    public Packet remove(long seqNum){
+        int i = slot(seqNum);
+        PacketWithInfo p = slots[i];
+        while (p != null && p.packet.byteSeqNum < seqNum) {
+            p.packet.release();
+            p = p.next;
+            --size;
+        }
+        Packet found = null;
+        if (p != null && p.packet.byteSeqNum == seqNum) {
+            found = p.packet;
+            p = p.next;
+            --size;
+        }
+        slots[i] = p;
+        if (p == null) {
+            occupied[i >>> 6] &= ~(1L << i);
+        }
+        return found;
+    }
+
+    /**
+     * The held data as SACK blocks ([left, right) pairs), merged into contiguous ranges, the one containing `recent`
+     * first and then in sequence order (RFC 2018).
+     * @param base the cumulative ACK: the held segments start after it
+     * @return number of blocks written, at most maxBlocks
+     */
+    public int ranges(long base, long recent, long[] blocks, int maxBlocks){
+        if (size == 0 || maxBlocks == 0) {
+            return 0;
+        }
+        int count = 0;
+        long from = -1, to = -1; // the range being merged
+        long first = (base + 1) / segmentSize;
+        for (int d = 0; d <= mask; ++d) {
+            int i = nextOccupied((int) (first + d) & mask);
+            d += (i - (int) (first + d)) & mask;
+            if (d > mask) {
+                break; // wrapped around
+            }
+            for (PacketWithInfo p = slots[i]; p != null; p = p.next) {
+                long left = p.packet.byteSeqNum, right = left + p.packet.getDataLength();
+                if (left <= to) {
+                    to = Math.max(to, right);
+                    continue;
+                }
+                if (from >= 0) {
+                    count = addRange(from, to, recent, blocks, count, maxBlocks);
+                }
+                from = left;
+                to = right;
+            }
+        }
+        return addRange(from, to, recent, blocks, count, maxBlocks);
+    }
+
+    /** Append [from, to) to the `count` blocks, or put it first if it contains `recent`. */
+    private static int addRange(long from, long to, long recent, long[] blocks, int count, int maxBlocks){
+        if (from <= recent && recent < to) {
+            System.arraycopy(blocks, 0, blocks, 2, 2 * Math.min(count, maxBlocks - 1));
+            blocks[0] = from;
+            blocks[1] = to;
+            return Math.min(count + 1, maxBlocks);
+        }
+        if (count < maxBlocks) {
+            blocks[2 * count] = from;
+            blocks[2 * count + 1] = to;
+            return count + 1;
+        }
+        return count;
+    }
+
+    private int slot(long seqNum){
+        return (int) (seqNum / segmentSize) & mask;
+    }
+
+    /** The first occupied slot at or after i, wrapping around. There is one. */
+    private int nextOccupied(int i){
+        int w = i >>> 6;
+        long word = occupied[w] & (-1L << i);
+        while (word == 0) {
+            w = (w + 1) % occupied.length;
+            word = occupied[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+}
@@ -0,0 +1,39 @@
+package Packet;
+
+/**
+ * Sequence number helpers. Internally every sequence and ACK number is a 64-bit logical value that never wraps.
+ * On the wire only the low 32 bits are carried; the receiving side recovers the wrap epoch with serial number
+ * arithmetic (RFC 1982) by picking the 64-bit value closest to a reference it already knows (e.g. the last
+ * cumulative ACK). This is unambiguous as long as a window is smaller than 2^31 bytes.
+ */
+public class SeqNum {
+    /** The 32-bit wire representation of a logical sequence number. */
+    public static int toWire(long seq){
+        return (int) seq;
+    }
+
+    /**
+     * The logical (64-bit) sequence number whose low 32 bits are `wire` and which is closest to `reference`.
+     * Never negative.
+     */
+    public static long unwrap(int wire, long reference){
+        return unwrap(wire, 32, reference);
+    }
+
+    /**
+     * Same as unwrap(int, long) for a wire value that only carries the low `bits` bits (the compact header, see
+     * HeaderFormat). Unambiguous as long as the logical value is within 2^(bits-1) of `reference`.
+     */
+    public static long unwrap(long wire, int bits, long reference){
+        long space = 1L << bits;
+        long candidate = (reference & ~(space - 1)) | (wire & (space - 1));
+        long diff = candidate - reference;
+        if (diff > space >>> 1) {
+            candidate -= space;
+        }
+        else if (diff < -(space >>> 1)) {
+            candidate += space;
+        }
+        return candidate < 0 ? candidate + space : candidate;
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Packet.*;
+import Transport.*;
+
+/**
+ * One sender of an RcvServer: the receiver side of a connection as a state machine driven by datagrams, instead of
+ * TCPRcv's threads. The server's dispatcher queues the sender's datagrams in `inbox`; run() handles them on a worker
+ * of the server's pool, one worker at a time, so the state needs no locking.
+ *
+ *   LISTEN        waiting for the SYN
+ *   SYN_RCVD      SYN+ACK sent. Probes are echoed; the ACK (or the first data segment) establishes the connection
+ *   ESTABLISHED   segments are written at their file offset, as with TCPRcv.setPositionalWrites()
+ *   LAST_ACK      FIN received, file closed, ACK and FIN sent. Waiting for the last ACK
+ *   CLOSED        done. The server forgets the connection
+ *
+ * Every in-order segment is not ACKed on its own: an ACK goes out every `ackEvery` segments and whenever the inbox
+ * runs dry, so a burst of segments handled together is ACKed together without a delayed ACK timer. Anything out of
+ * order is ACKed at once.
+ */
+class RcvConnection implements Runnable {
+    enum State { LISTEN, SYN_RCVD, ESTABLISHED, LAST_ACK, CLOSED }
+
+    /** Queued by the server when the connection has been idle for too long. See checkIdle(). */
+    static final ByteBuffer IDLE = ByteBuffer.allocate(0);
+
+    final InetSocketAddress peer;
+    private final RcvServer server;
+    private final DatagramTransport transport; // shared with every connection of the server
+    private final Executor workers;
+    private final File file;
+    private final int windowSize;
+    private final int maxSegmentSize; // jumbo limit. 0 if not in jumbo mode
+    private final boolean compactHeader;
+    private int mtu;                  // max data bytes per segment. Raised by the handshake in jumbo mode
+    final PacketManager packetManager;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> inbox = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false); // run() is queued or running
+    volatile long lastActive = System.nanoTime(); // when the state machine last accepted a datagram. See active()
+
+    private volatile State state = State.LISTEN;  // also read by the dispatcher
+    private final AtomicBoolean finished = new AtomicBoolean(false); // the server was told the file is complete
+    private HeaderFormat format = HeaderFormat.FULL;
+    private HandshakeOptions acceptedOptions;
+    private Packet synAck;        // resent if the SYN is
+    private int largestProbe = 0; // jumbo mode: the largest probe received in the handshake
+
+    // ESTABLISHED
+    private final PacketView view = new PacketView();
+    private CompletionBitmap received;
+    private FileChannel fileChannel;
+    private long fileBase;          // sequence number of the first file byte
+    private long preallocated = 0;  // in byte. the file has been extended to this length
+    private int ackEvery;
+    private int unACKedSegments = 0;
+    private long pendingTimeStamp, pendingSeqNum; // of the last unACKed segment
+
+    RcvConnection(RcvServer server, InetSocketAddress peer, File file, int mtu, int windowSize, TransportOptions transportOptions, DatagramTransport transport, Executor workers, long initTime){
+        this.server = server;
+        this.peer = peer;
+        this.file = file;
+        this.mtu = mtu;
+        this.windowSize = windowSize;
+        this.maxSegmentSize = Math.min(transportOptions.jumboSegmentSize, Packet.MAX_SEGMENT_SIZE);
+        this.compactHeader = transportOptions.compactHeader;
+        this.transport = transport;
+        this.workers = workers;
+        this.packetManager = new PacketManager(windowSize, initTime);
+    }
+
+    boolean isClosed(){
+        return state == State.CLOSED;
+    }
+
+    boolean isLastACK(){
+        return state == State.LAST_ACK;
+    }
+
+    /**
+     * Dispatcher: queue a datagram (a buffer of the server's, between position 0 and limit) and make sure a worker 
+     * handles it. The buffer goes back to the server once handled.
+     */
+    void deliver(ByteBuffer datagram){
+        inbox.add(datagram);
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this);
+        }
+    }
+
+    /** Worker: handle every queued datagram, then ACK what is left unACKed. */
+    public void run(){
+        while (true) {
+            ByteBuffer datagram;
+            while ((datagram = inbox.poll()) != null) {
+                try {
+                    handle(datagram);
+                } catch (IOException e) {
+                    System.err.println("RcvConnection " + peer + ": " + e + ". Closing.");
+                    abort();
+                }
+                if (datagram != IDLE) {
+                    server.releaseDatagram(datagram); // nothing of it is kept: handling copies what outlives it
+                }
+            }
+            if (unACKedSegments > 0) {
+                sendACK(pendingTimeStamp, pendingSeqNum);
+            }
+            scheduled.set(false);
+            // a datagram queued after the last poll() found `scheduled` still set; take it over
+            if (inbox.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void handle(ByteBuffer datagram) throws IOException {
+        if (datagram == IDLE) {
+            checkIdle();
+            return;
+        }
+        try {
+            switch (state) {
+                case LISTEN:
+                case SYN_RCVD:
+                    if (handshake(Packet.deserialize(datagram, null, format))) {
+                        // the ACK of our SYN+ACK was lost and this is the first data segment already
+                        established(datagram);
+                    }
+                    break;
+                case ESTABLISHED:
+                    established(datagram);
+                    break;
+                case LAST_ACK:
+                    lastACK(Packet.deserialize(datagram, null, format));
+                    break;
+                case CLOSED:
+                    break;
+            }
+        } catch (BufferUnderflowException e) {
+            packetManager.getStatistics().incrementIncChecksum(1); // too short to be a packet
+        }
+    }
+
+    /** ESTABLISHED: decode the datagram in the negotiated format and handle it as a segment. */
+    private void established(ByteBuffer datagram) throws IOException {
+        view.wrap(datagram, 0, datagram.limit(), format);
+        if (view.isValidLength()) {
+            segment(view);
+        }
+    }
+
+    /**
+     * LISTEN, SYN_RCVD: the receiver part of the 3-way handshake, as TCPRcv.passiveConnect().
+     * @return true if pkt established the connection and is a data segment, to be handled as one
+     */
+    private boolean handshake(Packet pkt) throws IOException {
+        if (!pkt.verifyChecksum()) {
+            packetManager.getStatistics().incrementIncChecksum(1);
+            return false;
+        }
+        boolean syn = Packet.checkSYN(pkt), ack = Packet.checkACK(pkt), fin = Packet.checkFIN(pkt);
+        if (syn && !ack && !fin) {
+            active();
+            packetManager.output(pkt, "rcv");
+            if (state == State.LISTEN) {
+                packetManager.setRemoteSequenceNumber(pkt.getByteSeqNum());
+                // no compression: its sequence numbers count compressed bytes, which positional writes cannot place
+                acceptedOptions = HandshakeOptions.accept(HandshakeOptions.fromPacket(pkt), maxSegmentSize, compactHeader, false);
+                packetManager.setSackEnabled(acceptedOptions.sackPermitted);
+                synAck = TCPRcv.makeSAPacket(packetManager, pkt, acceptedOptions);
+                packetManager.setLocalSequenceNumber(1);
+                state = State.SYN_RCVD;
+            }
+            send(synAck);
+            // the sender uses the negotiated header format from its ACK on. SYNs are told apart anyway.
+            format = acceptedOptions.compactHeaderWidth > 0 ? HeaderFormat.compact(acceptedOptions.compactHeaderWidth, false) : HeaderFormat.FULL;
+            return false;
+        }
+        if (state != State.SYN_RCVD || syn || fin) {
+            return false; // wrong packet
+        }
+        if (!ack) {
+            int probeSize = HandshakeOptions.fromPacket(pkt).probeSize;
+            if (probeSize > 0 && acceptedOptions.maxSegmentSize > 0) {
+                // jumbo mode probe. echo its size if it arrived intact
+                active();
+                packetManager.output(pkt, "rcv");
+                if (pkt.getDataLength() == probeSize && probeSize <= acceptedOptions.maxSegmentSize) {
+                    largestProbe = Math.max(largestProbe, probeSize);
+                    send(TCPRcv.makeProbeEcho(packetManager, pkt, probeSize));
+                }
+            }
+            return false;
+        }
+        if (SeqNum.unwrap(pkt.getACK(), pkt.getACKBits(), packetManager.getLocalSequenceNumber()) != packetManager.getLocalSequenceNumber()) {
+            return false;
+        }
+        active();
+        establish();
+        if (pkt.getDataLength() > 0) {
+            return true;
+        }
+        packetManager.output(pkt, "rcv");
+        return false;
+    }
+
+    private void establish() throws IOException {
+        if (largestProbe > mtu) {
+            mtu = largestProbe;
+        }
+        fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        fileChannel.truncate(0);
+        fileBase = packetManager.getRemoteSequenceNumber() + 1;
+        // a segment starts within the window, so it ends within a window and a datagram of it. The sender's
+        // segments may be larger than ours
+        received = new CompletionBitmap(windowSize * mtu + server.maxDatagramLength, fileBase);
+        ackEvery = Math.max(1, Math.min(server.ackEvery, windowSize / 2));
+        state = State.ESTABLISHED;
+    }
+
+    /** ESTABLISHED: a data segment or the FIN. See TCPRcv.ByteRcvr. */
+    private void segment(PacketView pkt) throws IOException {
+        packetManager.output(pkt, "rcv");
+        if (pkt.checkFIN()) {
+            active();
+            Packet finPkt = pkt.toPacket();
+            finPkt.byteSeqNum = SeqNum.unwrap(pkt.getByteSeqNum(), pkt.getByteSeqNumBits(), packetManager.getRemoteSequenceNumber());
+            close(finPkt);
+            return;
+        }
+        if (!TCPRcv.checkValidDataPacket(pkt, packetManager.getStatistics())) {
+            return;
+        }
+        active();
+
+        long lowerBound = packetManager.getRemoteSequenceNumber();
+        long upperBound = lowerBound + (long) windowSize * mtu;
+        long seqNum = SeqNum.unwrap(pkt.getByteSeqNum(), pkt.getByteSeqNumBits(), lowerBound);
+        boolean inOrder = false;
+        if (seqNum > lowerBound && seqNum <= upperBound) {
+            writeAt(pkt, seqNum);
+            long newBase = received.advance();
+            packetManager.increaseRemoteSequenceNumber((int) (newBase - lowerBound - 1));
+            inOrder = seqNum == lowerBound + 1 && newBase == seqNum + pkt.getDataLength() && !received.hasPending();
+        }
+
+        if (inOrder && ++unACKedSegments < ackEvery) {
+            pendingTimeStamp = pkt.getTimeStamp();
+            pendingSeqNum = seqNum;
+            return; // ACKed with the next one, or when the inbox runs dry
+        }
+        sendACK(pkt.getTimeStamp(), seqNum);
+    }
+
+    /** Write the segment's payload at its file offset and mark it received. See TCPRcv.ByteRcvr.writeAt(). */
+    private void writeAt(PacketView pkt, long seqNum) throws IOException {
+        int newBytes = received.mark(seqNum, seqNum + pkt.getDataLength());
+        if (newBytes <= 0) {
+            packetManager.getStatistics().incrementOutSeqDiscardCount();
+            return;
+        }
+        ByteBuffer data = pkt.getDataView();
+        long position = seqNum - fileBase;
+        if (position + data.remaining() > preallocated) {
+            preallocated = Math.max(position + data.remaining(), preallocated + TCPRcv.PREALLOCATE_STEP);
+            fileChannel.write(ByteBuffer.allocate(1), preallocated - 1);
+        }
+        while (data.hasRemaining()) {
+            position += fileChannel.write(data, position);
+        }
+        packetManager.getStatistics().incrementValidDataByte(newBytes);
+    }
+
+    private void sendACK(long timeStamp, long recentSeqNum){
+        unACKedSegments = 0;
+        try {
+            send(packetManager.makeACKPacket(timeStamp, recentSeqNum, received));
+        } catch (IOException e) {
+            System.err.println("RcvConnection " + peer + ": fail to send ACK: " + e);
+        }
+    }
+
+    /** FIN received: the file is complete. Close it, then ACK the FIN and send ours, as TCPRcv.passiveClose(). */
+    private void close(Packet finPkt) throws IOException {
+        unACKedSegments = 0; // the ACK of the FIN covers them
+        fileChannel.truncate(received.base() - fileBase); // drop what was preallocated beyond the data
+        fileChannel.close();
+        packetManager.increaseRemoteSequenceNumber(1);
+        state = State.LAST_ACK;
+        sendFINReply(finPkt);
+    }
+
+    private void sendFINReply(Packet finPkt) throws IOException {
+        send(packetManager.makeACKPacket(finPkt));
+        send(packetManager.makeFINPacket());
+    }
+
+    /** LAST_ACK: the ACK of our FIN ends the connection. A retransmitted FIN means our reply was lost. */
+    private void lastACK(Packet pkt) throws IOException {
+        if (!pkt.verifyChecksum()) {
+            packetManager.getStatistics().incrementIncChecksum(1);
+            return;
+        }
+        packetManager.output(pkt, "rcv");
+        if (Packet.checkFIN(pkt)) {
+            active();
+            sendFINReply(pkt);
+        }
+        else if (Packet.checkACK(pkt) && !Packet.checkSYN(pkt)
+                && SeqNum.unwrap(pkt.getACK(), pkt.getACKBits(), packetManager.getLocalSequenceNumber() + 1) == packetManager.getLocalSequenceNumber() + 1) {
+            finish();
+        }
+    }
+
+    /**
+     * LAST_ACK is over: by the last ACK, on the worker, by a new SYN from the peer, on the dispatcher (see 
+     * RcvServer.dispatch()), or by the idle timeout. The file is complete. The server is told once.
+     */
+    void finish(){
+        state = State.CLOSED;
+        if (finished.compareAndSet(false, true)) {
+            server.closed(this, file);
+        }
+    }
+
+    /**
+     * The datagram being handled was accepted by the state machine. Only such datagrams keep the connection from 
+     * going idle, so a sender that keeps sending what is ignored (e.g. SYNs in LAST_ACK) does not keep it forever.
+     */
+    private void active(){
+        lastActive = System.nanoTime();
+    }
+
+    /** Idle for too long: a finished transfer whose last ACK was lost, or a sender that went away. */
+    private void checkIdle(){
+        if (state == State.CLOSED || System.nanoTime() - lastActive < RcvServer.IDLE_TIMEOUT) {
+            return;
+        }
+        if (state == State.LAST_ACK) {
+            finish(); // the file is complete, only the last ACK is missing
+        }
+        else {
+            System.err.println("RcvConnection " + peer + ": idle for too long. Closing.");
+            abort();
+        }
+    }
+
+    /** Give up on the connection. Whatever has been written stays in the file. */
+    private void abort(){
+        if (fileChannel != null && fileChannel.isOpen()) {
+            try {
+                fileChannel.truncate(received.base() - fileBase);
+                fileChannel.close();
+            } catch (IOException e) {
+                System.err.println("RcvConnection " + peer + ": fail to close " + file + ": " + e);
+            }
+        }
+        state = State.CLOSED;
+        server.aborted(this, file);
+    }
+
+    private void send(Packet pkt) throws IOException {
+        transport.send(pkt, peer, format);
+        packetManager.output(pkt, "snd");
+    }
+}
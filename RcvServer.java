@@ -0,0 +1,174 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import Packet.*;
+import Transport.*;
+
+/**
+ * Receiver for many senders at once, on one port. TCPRcv serves one connection with three threads; here a single
+ * dispatcher thread reads every datagram from one shared endpoint and hands it to the RcvConnection of its sender,
+ * and a fixed pool of `workers` threads runs the connections. A connection is only ever run by one worker at a time,
+ * so thousands of idle connections cost no threads.
+ *
+ * A SYN from an unknown sender (or from one whose previous connection is over) starts a new connection. Each
+ * connection writes its file into the directory given with -f, named after the sender: <ip>_<port>_<n>, n counting
+ * the connections of that sender. Nothing else from an unknown sender is answered.
+ *
+ * Runs until killed. The statistics of each connection are printed when it closes.
+ */
+public class RcvServer {
+    static final long IDLE_TIMEOUT = 30_000_000_000L;  // in nanosecond. a connection silent this long is closed
+    private static final int SWEEP_INTERVAL = 1000;     // in ms. idle connections are looked for this often
+    private static final int MAX_FREE_DATAGRAMS = 1024; // receive buffers kept for reuse. See acquireDatagram()
+
+    private final int listenPort;
+    private final int mtu;
+    private final int windowSize;
+    private final File directory;
+    private final long initTime;
+    private final TransportOptions transportOptions;
+    private final int workerCount;
+    int ackEvery = 2; // see setACKEvery()
+    int maxDatagramLength; // in byte. the receive buffer, set by work(). A connection's segments are never longer
+
+    private DatagramTransport transport;
+    private final ArrayBlockingQueue<ByteBuffer> freeDatagrams = new ArrayBlockingQueue<ByteBuffer>(MAX_FREE_DATAGRAMS);
+    private final PacketView synView = new PacketView(); // dispatcher only. See isSYN()
+    private ExecutorService workers;
+    private final ConcurrentHashMap<InetSocketAddress, RcvConnection> connections = new ConcurrentHashMap<InetSocketAddress, RcvConnection>();
+    private final ConcurrentHashMap<InetSocketAddress, Integer> connectionCount = new ConcurrentHashMap<InetSocketAddress, Integer>();
+
+    public RcvServer(int listenPort, int mtu, int windowSize, String directory, long initTime, TransportOptions transportOptions, int workerCount){
+        this.listenPort = listenPort;
+        this.mtu = mtu;
+        this.windowSize = windowSize;
+        this.directory = new File(directory);
+        this.initTime = initTime;
+        this.transportOptions = transportOptions;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * ACK in-order segments every `ackEvery` segments, capped at half the window. Pending ACKs are also sent when a
+     * connection has handled every datagram queued for it, so there is no delayed ACK timer. Call before work().
+     */
+    public void setACKEvery(int ackEvery){
+        this.ackEvery = ackEvery;
+    }
+
+    /** Dispatcher: read datagrams and queue each for the connection of its sender. Never returns. */
+    public void work() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("RcvServer: work(): \"" + directory + "\" is not a directory and cannot be created. Abort.");
+            System.exit(1);
+        }
+        maxDatagramLength = Packet.maxDatagramLength(Math.max(mtu, Math.min(transportOptions.jumboSegmentSize, Packet.MAX_SEGMENT_SIZE)));
+        transport = new DatagramTransport(listenPort, transportOptions);
+        transport.ensureSocketBufferSize(windowSize * maxDatagramLength);
+        transport.setTimeout(SWEEP_INTERVAL);
+        workers = Executors.newFixedThreadPool(workerCount);
+
+        long lastSweep = System.nanoTime();
+        while (true) {
+            // a buffer of its own: the connection handles the datagram later, on a worker, and then releases it
+            ByteBuffer datagram = acquireDatagram();
+            try {
+                InetSocketAddress from = transport.receiveFrom(datagram);
+                datagram.flip();
+                if (dispatch(from, datagram)) {
+                    datagram = null;
+                }
+            } catch (SocketTimeoutException e) {
+                // nothing for a while. a good time to sweep
+            } catch (IOException e) {
+                System.err.println("RcvServer: dispatcher: " + e);
+            }
+            if (datagram != null) {
+                releaseDatagram(datagram); // not delivered
+            }
+            if (System.nanoTime() - lastSweep >= SWEEP_INTERVAL * 1000000L) {
+                sweep();
+                lastSweep = System.nanoTime();
+            }
+        }
+    }
+
+    /** @return false if the datagram was not delivered to any connection */
+    private boolean dispatch(InetSocketAddress from, ByteBuffer datagram){
+        RcvConnection connection = connections.get(from);
+        if (connection != null && connection.isLastACK() && isSYN(datagram)) {
+            // the sender only starts over once it has our reply to its FIN: the SYN stands for its lost last ACK
+            connection.finish();
+        }
+        if (connection == null || connection.isClosed()) {
+            if (!isSYN(datagram)) {
+                return false; // no connection to deliver it to
+            }
+            connection = open(from);
+        }
+        connection.deliver(datagram);
+        return true;
+    }
+
+    /**
+     * Whether the datagram is an intact SYN, the only packet that can start a connection. Always in the full format.
+     * Decoded in place.
+     */
+    private boolean isSYN(ByteBuffer datagram){
+        PacketView pkt = synView.wrap(datagram, 0, datagram.limit(), HeaderFormat.FULL);
+        return pkt.isValidLength() && pkt.checkSYN() && !pkt.checkACK() && !pkt.checkFIN() && pkt.verifyChecksum();
+    }
+
+    /**
+     * Dispatcher: a direct buffer to receive a datagram into. Released ones are reused. More are allocated while 
+     * many datagrams wait to be handled; at most MAX_FREE_DATAGRAMS are kept once they are released.
+     */
+    private ByteBuffer acquireDatagram(){
+        ByteBuffer datagram = freeDatagrams.poll();
+        return (datagram != null) ? datagram : ByteBuffer.allocateDirect(maxDatagramLength);
+    }
+
+    /** A datagram has been handled (or dropped). Its buffer must not be touched afterwards. */
+    void releaseDatagram(ByteBuffer datagram){
+        freeDatagrams.offer(datagram);
+    }
+
+    private RcvConnection open(InetSocketAddress peer){
+        int n = connectionCount.merge(peer, 1, Integer::sum);
+        String name = peer.getAddress().getHostAddress().replace(':', '.') + "_" + peer.getPort() + "_" + n;
+        RcvConnection connection = new RcvConnection(this, peer, new File(directory, name), mtu, windowSize, transportOptions, transport, workers, initTime);
+        connections.put(peer, connection);
+        System.out.println("RcvServer: connection from " + peer + " to " + name);
+        return connection;
+    }
+
+    /** Have every connection check whether it has been idle for too long. They do it on their worker. */
+    private void sweep(){
+        long now = System.nanoTime();
+        for (RcvConnection connection : connections.values()) {
+            if (now - connection.lastActive >= IDLE_TIMEOUT) {
+                connection.deliver(RcvConnection.IDLE);
+            }
+        }
+    }
+
+    /** Called by a connection once its file is complete. */
+    void closed(RcvConnection connection, File file){
+        connections.remove(connection.peer, connection);
+        System.out.println("RcvServer: " + file + " received from " + connection.peer);
+        System.out.println(connection.packetManager.getStatistics().receiverStat());
+    }
+
+    /** Called by a connection that gave up. */
+    void aborted(RcvConnection connection, File file){
+        connections.remove(connection.peer, connection);
+        System.err.println("RcvServer: connection from " + connection.peer + " aborted. " + file + " is incomplete.");
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import Exceptions.BufferSizeException;
+import Packet.HandshakeOptions;
+import Transport.ConnectionThreads;
+import Transport.TransportOptions;
+
+/**
+ * Receiver of a striped transfer (see StripedSend). The first flow is a TCPRcv on listenPort. When its SYN offers
+ * stripes, up to maxStripes are accepted: the file is sized to the offered length, and a TCPRcv for each other
+ * stripe k is bound to listenPort + k before the SYN+ACK goes out, so the sender's next SYNs find it. Every flow
+ * writes its segments straight to their offset in the shared file (positional writes) at its stripe's offset.
+ *
+ * A sender that does not stripe is served by the first flow alone, as by a plain TCPRcv.
+ */
+public class StripedRcv {
+    private final int listenPort;
+    private final int mtu;
+    private final int windowSize;
+    private final String filename;
+    private final long initTime;
+    private final TransportOptions transportOptions;
+    private final int maxStripes;
+    private int ackEvery = -1, ackDelayInMilli = -1; // -1: TCPRcv's default
+    private boolean positionalWrites = false;
+
+    private FileOutputStream fileOstream; // shared by every flow
+    private TCPRcv[] flows;
+    private Thread[] threads;
+    private int stripeCount = 0;          // 0 until the first flow's SYN settles it
+    private long fileLength;
+
+    public StripedRcv(int listenPort, int mtu, int windowSize, String filename, long initTime, TransportOptions transportOptions, int maxStripes){
+        this.listenPort = listenPort;
+        this.mtu = mtu;
+        this.windowSize = windowSize;
+        this.filename = filename;
+        this.initTime = initTime;
+        this.transportOptions = transportOptions;
+        this.maxStripes = Math.min(maxStripes, HandshakeOptions.MAX_STRIPES);
+    }
+
+    /** See TCPRcv.setDelayedACK(). Applies to every flow. -1 keeps the default. Call before work(). */
+    public void setDelayedACK(int ackEvery, int ackDelayInMilli){
+        this.ackEvery = ackEvery;
+        this.ackDelayInMilli = ackDelayInMilli;
+    }
+
+    /** See TCPRcv.setPositionalWrites(). Only matters if the sender does not stripe; striped flows always are. */
+    public void setPositionalWrites(boolean positionalWrites){
+        this.positionalWrites = positionalWrites;
+    }
+
+    public void work() throws InterruptedException, IOException, BufferSizeException {
+        try {
+            fileOstream = new FileOutputStream(filename);
+        } catch (java.io.FileNotFoundException e) {
+            System.err.println("StripedRcv: work(): cannot open the file \"" + filename + "\". Abort.");
+            System.exit(1);
+        }
+        flows = new TCPRcv[maxStripes];
+        flows[0] = newFlow(0);
+        flows[0].setPositionalWrites(positionalWrites);
+        flows[0].work();
+        if (threads != null) {
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        fileOstream.close();
+    }
+
+    private TCPRcv newFlow(int index) throws BufferSizeException {
+        TCPRcv flow = new TCPRcv(listenPort + index, mtu, windowSize, filename, initTime, transportOptions);
+        if (ackEvery != -1 || ackDelayInMilli != -1) {
+            flow.setDelayedACK(ackEvery != -1 ? ackEvery : flow.ackEvery, ackDelayInMilli != -1 ? ackDelayInMilli : flow.ackDelayInMilli);
+        }
+        flow.stripes = this;
+        flow.stripeIndex = index;
+        flow.fileOstream = fileOstream;
+        return flow;
+    }
+
+    /**
+     * Called by a flow for the SYN it accepts. Decides whether the flow is a stripe and, if so, echoes the stripe in
+     * `accepted` and sets the flow up for it. The first flow's SYN settles the stripe count and opens the other flows.
+     * @return true if the flow carries a stripe
+     */
+    synchronized boolean accept(TCPRcv flow, HandshakeOptions offered, HandshakeOptions accepted){
+        if (flow == flows[0]) {
+            if (stripeCount == 0) {
+                if (offered.stripeCount < 2 || offered.stripeIndex != 0 || offered.fileLength <= 0) {
+                    return false; // not striped
+                }
+                stripeCount = Math.min(offered.stripeCount, maxStripes);
+                fileLength = offered.fileLength;
+                if (stripeCount < 2 || !open()) {
+                    stripeCount = 0;
+                    return false;
+                }
+            }
+            if (stripeCount < 2) {
+                return false;
+            }
+        }
+        else if (offered.stripeCount != stripeCount || offered.stripeIndex != flow.stripeIndex || offered.fileLength != fileLength
+                || offered.stripeOffset < 0 || offered.stripeOffset >= fileLength) {
+            System.err.println("StripedRcv: flow " + flow.stripeIndex + ": unexpected stripe " + offered.stripeIndex + " of " + offered.stripeCount + ". Not echoed.");
+            return false;
+        }
+        accepted.stripeCount = stripeCount;
+        accepted.stripeIndex = flow.stripeIndex;
+        accepted.stripeOffset = offered.stripeOffset;
+        accepted.fileLength = fileLength;
+        accepted.compression = false; // segments are placed by their sequence numbers
+        flow.fileOffset = offered.stripeOffset;
+        flow.setPositionalWrites(true);
+        return true;
+    }
+
+    /** Size the file and bind and start the flows of stripes 1 to stripeCount - 1. */
+    private boolean open(){
+        try {
+            fileOstream.getChannel().write(ByteBuffer.allocate(1), fileLength - 1);
+            threads = new Thread[stripeCount - 1];
+            for (int k = 1; k < stripeCount; ++k) {
+                flows[k] = newFlow(k);
+                flows[k].bind();
+            }
+        } catch (IOException | BufferSizeException e) {
+            System.err.println("StripedRcv: cannot open " + stripeCount + " stripes: " + e + ". Not striping.");
+            for (int k = 1; k < stripeCount; ++k) {
+                if (flows[k] != null && flows[k].transport != null) flows[k].transport.close();
+                flows[k] = null;
+            }
+            threads = null;
+            return false;
+        }
+        for (int k = 1; k < stripeCount; ++k) {
+            TCPRcv flow = flows[k];
+            threads[k - 1] = ConnectionThreads.newThread(transportOptions, () -> {
+                try {
+                    flow.work();
+                } catch (InterruptedException | IOException e) {
+                    System.err.println("StripedRcv: stripe " + flow.stripeIndex + ": " + e);
+                }
+            }, "stripe" + k);
+            threads[k - 1].start();
+        }
+        System.out.println("StripedRcv: " + stripeCount + " stripes, " + fileLength + " bytes");
+        return true;
+    }
+
+    /** See TCPRcv.isDigestOK(). false if any flow's digest does not match. */
+    public boolean isDigestOK(){
+        for (int k = 0; k < Math.max(stripeCount, 1); ++k) {
+            if (!flows[k].isDigestOK()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getStatisticsString(){
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < Math.max(stripeCount, 1); ++k) {
+            sb.append("Stripe ").append(k).append(":\n").append(flows[k].getStatisticsString());
+        }
+        return sb.toString();
+    }
+}
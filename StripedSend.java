@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import Congestion.CongestionController;
+import Exceptions.BufferSizeException;
+import Transport.ConnectionThreads;
+import Transport.TransportOptions;
+
+/**
+ * Sender of a striped transfer: the file is split into byte ranges and each range travels on a flow of its own, a
+ * TCPSend with its own port, PacketManager and threads, so a large file is not limited to what one set of threads
+ * can push. Flow k uses local port localPort + k and remote port remotePort + k.
+ *
+ * The first flow offers `stripes` in its SYN (see HandshakeOptions). Once the receiver has answered with the count
+ * it accepts, the file is laid out in that many ranges of about equal length, cut at segment boundaries, and the
+ * other flows are started, each offering its range in its SYN. A receiver that does not stripe gets the whole file
+ * on the first flow.
+ */
+public class StripedSend {
+    private final int localPort;
+    private final InetAddress remoteIp;
+    private final int remotePort;
+    private final String fileName;
+    private final int mtu;
+    private final int windowSize;
+    private final long initTime;
+    private final TransportOptions transportOptions;
+    private final long fileLength;
+    private final int offeredStripes;
+
+    // applied to every flow. See TCPSend's setters
+    private boolean mapFile = false;
+    private boolean pace = false;
+    private long maxRate = 0;
+    private String congestionControl = null;
+
+    private final TCPSend[] flows;
+    private Thread[] threads;
+    private int stripeCount = 0; // 0 until the first flow's handshake settles it
+
+    public StripedSend(int localPort, InetAddress remoteIp, int remotePort, String fileName, int mtu, int windowSize, long initTime, TransportOptions transportOptions, int stripes) throws IOException, BufferSizeException {
+        this.localPort = localPort;
+        this.remoteIp = remoteIp;
+        this.remotePort = remotePort;
+        this.fileName = fileName;
+        this.mtu = mtu;
+        this.windowSize = windowSize;
+        this.initTime = initTime;
+        this.transportOptions = transportOptions;
+        this.fileLength = Files.size(Paths.get(fileName));
+        // every stripe gets at least a segment
+        this.offeredStripes = (int) Math.max(1, Math.min(stripes, fileLength / mtu));
+        this.flows = new TCPSend[offeredStripes];
+        flows[0] = newFlow(0);
+        flows[0].setStripe(this, offeredStripes, 0, 0, fileLength);
+    }
+
+    /** See TCPSend.setMapFile(). Applies to every flow. Call before work(). */
+    public void setMapFile(boolean mapFile){
+        this.mapFile = mapFile;
+        flows[0].setMapFile(mapFile);
+    }
+
+    /** See TCPSend.setPacing(). Every flow is capped at maxRate / stripes. Call before work(). */
+    public void setPacing(boolean pace, long maxRate){
+        this.pace = pace;
+        this.maxRate = maxRate;
+    }
+
+    /** Use a new controller called `name` (see CongestionController.create()) on every flow. Call before work(). */
+    public void setCongestionControl(String name){
+        this.congestionControl = name;
+        flows[0].setCongestionController(CongestionController.create(name, windowSize));
+    }
+
+    private TCPSend newFlow(int index) throws SocketException, BufferSizeException {
+        return new TCPSend(localPort + index, remoteIp, remotePort + index, fileName, mtu, windowSize, initTime, transportOptions);
+    }
+
+    public void work() throws InterruptedException {
+        flows[0].work();
+        if (threads != null) {
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+    }
+
+    /**
+     * Called by each flow once its handshake is done, before it sends any data. Sets the flow's range; the first
+     * flow also settles the stripe count and starts the other flows.
+     * @param acceptedStripeCount the stripe count the receiver echoed. 0 if it does not stripe
+     */
+    synchronized void established(TCPSend flow, int acceptedStripeCount){
+        if (flow == flows[0]) {
+            stripeCount = Math.max(1, Math.min(acceptedStripeCount, offeredStripes));
+            if (stripeCount == 1) {
+                System.out.println("StripedSend: the receiver does not stripe. The whole file goes on one flow.");
+                flow.setRange(0, fileLength);
+            }
+            else {
+                System.out.println("StripedSend: " + stripeCount + " stripes");
+                flow.setRange(0, stripeOffset(1));
+                startFlows(flow);
+            }
+            if (pace || maxRate > 0) {
+                flow.setPacing(pace, maxRate / stripeCount);
+            }
+            return;
+        }
+        if (acceptedStripeCount != stripeCount) {
+            System.err.println("StripedSend: the receiver answered stripe " + flow.offeredOptions.stripeIndex + " with " + acceptedStripeCount + " stripes instead of " + stripeCount + ". Abort.");
+            System.exit(1);
+        }
+    }
+
+    private void startFlows(TCPSend first){
+        threads = new Thread[stripeCount - 1];
+        for (int k = 1; k < stripeCount; ++k) {
+            long offset = stripeOffset(k);
+            try {
+                flows[k] = newFlow(k);
+            } catch (SocketException | BufferSizeException e) {
+                System.err.println("StripedSend: cannot create flow " + k + ": " + e);
+                System.exit(1);
+            }
+            TCPSend flow = flows[k];
+            flow.setStripe(this, stripeCount, k, offset, fileLength);
+            flow.setRange(offset, stripeOffset(k + 1) - offset);
+            flow.setMapFile(mapFile);
+            if (pace || maxRate > 0) {
+                flow.setPacing(pace, maxRate / stripeCount);
+            }
+            if (congestionControl != null) {
+                flow.setCongestionController(CongestionController.create(congestionControl, windowSize));
+            }
+            threads[k - 1] = ConnectionThreads.newThread(transportOptions, () -> {
+                try {
+                    flow.work();
+                } catch (InterruptedException e) {}
+            }, "stripe" + k);
+            threads[k - 1].start();
+        }
+    }
+
+    /** File offset of stripe k's first byte, on a segment boundary. stripeOffset(stripeCount) is the file length. */
+    private long stripeOffset(int k){
+        if (k >= stripeCount) {
+            return fileLength;
+        }
+        return fileLength * k / stripeCount / mtu * mtu;
+    }
+
+    public String getStatisticsString(){
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < Math.max(stripeCount, 1); ++k) {
+            sb.append("Stripe ").append(k).append(":\n").append(flows[k].getStatisticsString());
+        }
+        return sb.toString();
+    }
+}
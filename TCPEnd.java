@@ -1,8 +1,15 @@
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import Congestion.CongestionController;
+import Packet.HandshakeOptions;
+import Packet.Packet;
+import Transport.TransportOptions;
 
 public class TCPEnd {
-    private static final String usage = "usage: %n (as sender) \t\t\t\tjava TCPend -p <port> -s <remote IP> -a <remote port> –f <file name> -m <mtu> -c <sws> %n (as receiver) \t\t\t\tjava TCPend -p <port> -m <mtu> -c <sws> -f <file name> %n (debug purpose only - sender) \t\tjava TCPend -t sender %n (debug purpose only - receiver) \tjava TCPend -t receiver %n";
+    private static final String usage = "usage: %n (as sender) \t\t\t\tjava TCPend -p <port> -s <remote IP> -a <remote port> –f <file name> -m <mtu> -c <sws> [transport options] %n (as receiver) \t\t\t\tjava TCPend -p <port> -m <mtu> -c <sws> -f <file name> [transport options] %n (directory) \t\t\t\tsender -f <directory>, receiver -f <directory> -manifest %n (transport options) \t\t\t-sndbuf <bytes> -rcvbuf <bytes> -blocking -jumbo <max segment bytes> -compact -compress -crc32c -vthreads %n (receiver options) \t\t\t-ackevery <segments> -ackdelay <ms> -positional -server -workers <threads> -stripes <max stripes> -manifest -resume %n (as server) \t\t\t\tjava TCPend -p <port> -m <mtu> -c <sws> -f <directory> -server [-workers <threads>] [-ackevery <segments>] [transport options] %n (sender options) \t\t\t-mmap -cc <reno|cubic|bbr> -pace -maxrate <bytes per second> -stripes <stripes> -resume %n (debug purpose only - sender) \t\tjava TCPend -t sender %n (debug purpose only - receiver) \tjava TCPend -t receiver %n";
     public static void main(String args[]) throws Exception {
         long initTime = System.currentTimeMillis();
 
@@ -34,87 +41,126 @@ public class TCPEnd {
                 }
             }
         }
-        else if (args.length == 8) {
-            // Receiver
-            int port = -1;
-            int mtu = -1;
-            int sws = -1;
-            String fileName = null;
-
-            int i = 0;
-            while(i < args.length) {
-                switch (args[i]) {
-                    case "-p":
-                        if (port != -1) Invalid("duplicate option input: " + args[i]);
-                        try { port = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
-                        break;
-                    case "-m":
-                        if (mtu != -1) Invalid("duplicate option input: " + args[i]);
-                        try { mtu = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
-                        break;
-                    case "-c":
-                        if (sws != -1) Invalid("duplicate option input: " + args[i]);
-                        try { sws = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
-                        break;
-                    case "-f":
-                        if (fileName != null) Invalid("duplicate option input: " + args[i]);
-                        fileName = args[++i];
-                        break;
-                    default:
-                        Invalid("wrong option: " + args[i]);
-                        break;
-                }
-                ++i;
-            }
-
-            TCPRcv rcv = new TCPRcv(port, mtu, sws, fileName, initTime);
-            rcv.work();
-            System.out.println( rcv.getStatisticsString() );
-            System.exit(0);
-        }
-        else if (args.length == 12) {
-            // Sender
+        else {
+            // Receiver: -p -m -c -f. Sender: additionally -s -a. Transport options are optional for both.
             int port = -1;
             InetAddress remoteIp = null;
             int remotePort = -1;
             String fileName = null;
             int mtu = -1;
             int sws = -1;
+            TransportOptions transportOptions = new TransportOptions();
+            int ackEvery = -1; // receiver only
+            int ackDelay = -1; // receiver only
+            boolean mapFile = false; // sender only
+            String congestionControl = null; // sender only
+            boolean pace = false; // sender only
+            int maxRate = -1; // sender only
+            boolean positionalWrites = false; // receiver only
+            boolean server = false; // receiver only
+            int workers = -1; // server only
+            int stripes = -1; // sender: stripes to offer. receiver: most stripes to accept
+            boolean manifest = false; // receiver only
+            boolean resume = false;
 
             int i = 0;
             while(i < args.length) {
                 switch (args[i]) {
                     case "-p":
                         if (port != -1) Invalid("duplicate option input: " + args[i]);
-                        try { port = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
+                        port = parseInt(args, ++i);
                         break;
                     case "-s":
                         if (remoteIp != null) Invalid("duplicate option input: " + args[i]);
-                        try { remoteIp = InetAddress.getByName(args[++i]); }
+                        if (++i >= args.length) Invalid("missing value for " + args[i - 1]);
+                        try { remoteIp = InetAddress.getByName(args[i]); }
                         catch (UnknownHostException e) { Invalid("unknown host");}
                         break;
                     case "-a":
                         if (remotePort != -1) Invalid("duplicate option input: " + args[i]);
-                        try { remotePort = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
+                        remotePort = parseInt(args, ++i);
                         break;
                     case "-f":
                         if (fileName != null) Invalid("duplicate option input: " + args[i]);
-                        fileName = args[++i];
+                        if (++i >= args.length) Invalid("missing value for " + args[i - 1]);
+                        fileName = args[i];
                         break;
                     case "-m":
                         if (mtu != -1) Invalid("duplicate option input: " + args[i]);
-                        try { mtu = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
+                        mtu = parseInt(args, ++i);
                         break;
                     case "-c":
                         if (sws != -1) Invalid("duplicate option input: " + args[i]);
-                        try { sws = Integer.parseInt(args[++i]); }
-                        catch (NumberFormatException e) { Invalid("fail to parse");}
+                        sws = parseInt(args, ++i);
+                        break;
+                    case "-sndbuf":
+                        transportOptions.sendBufferSize = parseInt(args, ++i);
+                        break;
+                    case "-rcvbuf":
+                        transportOptions.receiveBufferSize = parseInt(args, ++i);
+                        break;
+                    case "-blocking":
+                        transportOptions.blocking = true;
+                        break;
+                    case "-jumbo":
+                        transportOptions.jumboSegmentSize = parseInt(args, ++i);
+                        if (transportOptions.jumboSegmentSize <= 0 || transportOptions.jumboSegmentSize > Packet.MAX_SEGMENT_SIZE) {
+                            Invalid("-jumbo must be between 1 and " + Packet.MAX_SEGMENT_SIZE);
+                        }
+                        break;
+                    case "-compact":
+                        transportOptions.compactHeader = true;
+                        break;
+                    case "-compress":
+                        transportOptions.compression = true;
+                        break;
+                    case "-crc32c":
+                        transportOptions.crc32c = true;
+                        break;
+                    case "-vthreads":
+                        transportOptions.virtualThreads = true;
+                        break;
+                    case "-mmap":
+                        mapFile = true;
+                        break;
+                    case "-cc":
+                        if (++i >= args.length) Invalid("missing value for " + args[i - 1]);
+                        congestionControl = args[i];
+                        break;
+                    case "-pace":
+                        pace = true;
+                        break;
+                    case "-maxrate":
+                        maxRate = parseInt(args, ++i);
+                        if (maxRate < 1) Invalid("-maxrate must be at least 1");
+                        break;
+                    case "-positional":
+                        positionalWrites = true;
+                        break;
+                    case "-server":
+                        server = true;
+                        break;
+                    case "-workers":
+                        workers = parseInt(args, ++i);
+                        if (workers < 1) Invalid("-workers must be at least 1");
+                        break;
+                    case "-resume":
+                        resume = true;
+                        break;
+                    case "-manifest":
+                        manifest = true;
+                        break;
+                    case "-stripes":
+                        stripes = parseInt(args, ++i);
+                        if (stripes < 1 || stripes > HandshakeOptions.MAX_STRIPES) Invalid("-stripes must be between 1 and " + HandshakeOptions.MAX_STRIPES);
+                        break;
+                    case "-ackevery":
+                        ackEvery = parseInt(args, ++i);
+                        if (ackEvery < 1) Invalid("-ackevery must be at least 1");
+                        break;
+                    case "-ackdelay":
+                        ackDelay = parseInt(args, ++i);
+                        if (ackDelay < 0) Invalid("-ackdelay must not be negative");
                         break;
                     default:
                         Invalid("wrong option: " + args[i]);
@@ -122,13 +168,84 @@ public class TCPEnd {
                 }
                 ++i;
             }
-            TCPSend send = new TCPSend(port, remoteIp, remotePort, fileName, mtu, sws, initTime);
-            send.work();
-            System.out.println( send.getStatisticsString() );
-            System.exit(0);
-        }
-        else {
-            Invalid("wrong number of argument(s)");
+            if (port == -1 || fileName == null || mtu == -1 || sws == -1) {
+                Invalid("missing option(s)");
+            }
+            // timed receives of blocking mode pin a virtual thread to its carrier
+            if (transportOptions.virtualThreads && transportOptions.blocking) Invalid("-vthreads cannot be combined with -blocking");
+
+            if (remoteIp == null && remotePort == -1) {
+                // Receiver
+                if (mapFile) Invalid("-mmap is a sender option");
+                if (congestionControl != null) Invalid("-cc is a sender option");
+                if (pace || maxRate != -1) Invalid("-pace and -maxrate are sender options");
+                if (manifest && (server || stripes > 1)) Invalid("-manifest cannot be combined with -server or -stripes");
+                if (resume && (manifest || server || stripes > 1)) Invalid("-resume cannot be combined with -manifest, -server or -stripes");
+                if (server) {
+                    // many senders, one file each in the directory fileName. Writes are always positional.
+                    if (ackDelay != -1) Invalid("-ackdelay is not a server option");
+                    if (transportOptions.compression) Invalid("-compress is not a server option");
+                    if (transportOptions.crc32c) Invalid("-crc32c is not a server option");
+                    if (transportOptions.virtualThreads) Invalid("-vthreads is not a server option. The server runs connections on its -workers");
+                    if (stripes != -1) Invalid("-stripes is not a server option");
+                    RcvServer rcvServer = new RcvServer(port, mtu, sws, fileName, initTime, transportOptions, workers != -1 ? workers : Runtime.getRuntime().availableProcessors());
+                    if (ackEvery != -1) rcvServer.setACKEvery(ackEvery);
+                    rcvServer.work();
+                }
+                if (workers != -1) Invalid("-workers is a server option");
+                if (stripes > 1) {
+                    StripedRcv stripedRcv = new StripedRcv(port, mtu, sws, fileName, initTime, transportOptions, stripes);
+                    stripedRcv.setDelayedACK(ackEvery, ackDelay);
+                    stripedRcv.setPositionalWrites(positionalWrites);
+                    stripedRcv.work();
+                    System.out.println( stripedRcv.getStatisticsString() );
+                    System.exit(stripedRcv.isDigestOK() ? 0 : 1);
+                }
+                TCPRcv rcv = new TCPRcv(port, mtu, sws, fileName, initTime, transportOptions);
+                if (ackEvery != -1 || ackDelay != -1) {
+                    rcv.setDelayedACK(ackEvery != -1 ? ackEvery : rcv.ackEvery, ackDelay != -1 ? ackDelay : rcv.ackDelayInMilli);
+                }
+                rcv.setPositionalWrites(positionalWrites);
+                rcv.setManifest(manifest);
+                rcv.setResume(resume);
+                rcv.work();
+                System.out.println( rcv.getStatisticsString() );
+                System.exit(rcv.isDigestOK() ? 0 : 1);
+            }
+            else if (remoteIp != null && remotePort != -1) {
+                if (ackEvery != -1 || ackDelay != -1) Invalid("-ackevery and -ackdelay are receiver options");
+                if (positionalWrites) Invalid("-positional is a receiver option");
+                if (server || workers != -1) Invalid("-server and -workers are receiver options");
+                if (manifest) Invalid("-manifest is a receiver option. The sender sends a manifest when -f is a directory");
+                // Sender
+                if (congestionControl != null && CongestionController.create(congestionControl, sws) == null) {
+                    Invalid("-cc must be reno, cubic or bbr");
+                }
+                if (resume && (stripes > 1 || Files.isDirectory(Paths.get(fileName)))) Invalid("-resume takes a file, and cannot be combined with -stripes");
+                if (stripes > 1) {
+                    if (Files.isDirectory(Paths.get(fileName))) Invalid("-stripes takes a file, not a directory");
+                    StripedSend stripedSend = new StripedSend(port, remoteIp, remotePort, fileName, mtu, sws, initTime, transportOptions, stripes);
+                    stripedSend.setMapFile(mapFile);
+                    stripedSend.setPacing(pace, Math.max(maxRate, 0));
+                    if (congestionControl != null) stripedSend.setCongestionControl(congestionControl);
+                    stripedSend.work();
+                    System.out.println( stripedSend.getStatisticsString() );
+                    System.exit(0);
+                }
+                TCPSend send = new TCPSend(port, remoteIp, remotePort, fileName, mtu, sws, initTime, transportOptions);
+                send.setMapFile(mapFile);
+                send.setResume(resume);
+                send.setPacing(pace, Math.max(maxRate, 0));
+                if (congestionControl != null) {
+                    send.setCongestionController(CongestionController.create(congestionControl, sws));
+                }
+                send.work();
+                System.out.println( send.getStatisticsString() );
+                System.exit(0);
+            }
+            else {
+                Invalid("-s and -a must be given together");
+            }
         }
 
         // if(command == 1) {
@@ -146,6 +263,14 @@ public class TCPEnd {
         
     }
 
+    /** Parse args[i] as an int, or exit with the usage message. */
+    private static int parseInt(String[] args, int i) {
+        if (i >= args.length) Invalid("missing value for " + args[i - 1]);
+        try { return Integer.parseInt(args[i]); }
+        catch (NumberFormatException e) { Invalid("fail to parse"); }
+        return -1; // unreachable
+    }
+
     private static void Invalid(String message) {
         System.err.println("TCPEnd: Parsing error: " + message);
         System.out.printf(usage);
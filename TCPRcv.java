@@ -1,37 +1,54 @@
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.LinkedList;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.NoSuchElementException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
 
+import Buffer.CheckpointJournal;
+import Buffer.FileDigest;
 import Buffer.ReceiverBuffer;
+import Buffer.SegmentDecompressor;
 import Exceptions.BufferInsufficientSpaceException;
 import Exceptions.BufferSizeException;
 import Exceptions.DebugException;
+import Manifest.ManifestSink;
 import Packet.*;
 import Statistics.Statistics;
+import Transport.*;
 
 
 //java TCPend -p <port> -m <mtu> -c <sws> -f <file name>
 //<snd/rcv> <time> <flag-list> <seq-number> <number of bytes> <ack number>
 
 public class TCPRcv{
-    final ReceiverBuffer rcvBuffer;
+    ReceiverBuffer rcvBuffer;
     LinkedBlockingQueue<Packet> continuousPackets;
+    // Thread 1 signals `continuousAdded` when it adds to continuousPackets or sets noMoreNewPacket; thread 2 waits on 
+    // it. A ReentrantLock rather than continuousPackets' monitor, so a waiting virtual thread does not pin its carrier
+    final ReentrantLock continuousLock = new ReentrantLock();
+    final Condition continuousAdded = continuousLock.newCondition();
     PacketManager packetManager;
     int bufferSize;  // will be determined in construction: 1.5*sws*mtu
-    DatagramSocket udpSocket;
+    DatagramTransport transport;
+    TransportOptions transportOptions;
     int listenPort; //local port 
-    int mtu;
+    int mtu; // max data bytes per segment. Raised by the handshake in jumbo mode.
     int windowSize; 
     String filename; 
     FileOutputStream fileOstream;
-    final static int maxDatagramPacketLength = 1518; // in byte
+    int maxDatagramPacketLength; // in byte. Derived from mtu, see Packet.maxDatagramLength().
+    int largestProbe = 0; // jumbo mode: the largest probe received in the handshake. The sender never picks a larger segment.
     //remote Ip and port 
     InetAddress senderIp; 
     int senderPort; 
@@ -39,19 +56,48 @@ public class TCPRcv{
     boolean noMoreNewPacket = false;
     //long initTime;
     boolean initSYNRcved = false; 
+    HandshakeOptions acceptedOptions = new HandshakeOptions(); // options accepted from the sender's SYN, echoed in our SYN+ACK
+    // Delayed ACK: in-order segments are ACKed every `ackEvery` segments or `ackDelayInMilli` ms after the first 
+    // unACKed one, whichever comes first. Anything out of order is ACKed at once. See setDelayedACK().
+    int ackEvery = 2;
+    int ackDelayInMilli = 5;
+    // Positional writes: segments are written straight to their file offset by thread 1. See setPositionalWrites().
+    boolean positionalWrites = false;
+    static final int CLOSE_TIMEOUT_IN_MILLI = 1000; // for the sender's last ACK. The ACK and FIN are sent again after it
+    static final long PREALLOCATE_STEP = 64L << 20; // in byte. the file is extended ahead this much at a time
+    // Striping: this flow carries one byte range of a file it shares with the other flows. See StripedRcv.
+    StripedRcv stripes;     // null if not striping
+    int stripeIndex = 0;    // the stripe this flow expects
+    boolean striped = false; // the handshake agreed on striping
+    long fileOffset = 0;    // file offset of the first byte of this flow's range
+    // Resume mode: progress is checkpointed in a journal next to the file. See setResume().
+    CheckpointJournal journal;
+    // Manifest mode: `filename` is a directory, and the stream a directory tree. See setManifest().
+    ManifestSink manifest;
+    // CRC32C mode: digest of the data written, compared with the one in the sender's FIN. null otherwise
+    FileDigest digest;
+    FileDigest.Digest senderDigest; // null if the FIN carried none
+    boolean digestOK = true;
 
     /****************************************************************************/
     /******************               Constructor              ******************/
     /****************************************************************************/
     public TCPRcv(int listenPort, int mtu, int windowSize, String filename, long initTime) throws BufferSizeException{
+        this(listenPort, mtu, windowSize, filename, initTime, new TransportOptions());
+    }
+
+    public TCPRcv(int listenPort, int mtu, int windowSize, String filename, long initTime, TransportOptions transportOptions) throws BufferSizeException{
+        this.transportOptions = transportOptions;
         this.listenPort = listenPort;
         this.mtu = mtu;
         this.windowSize = windowSize;
         this.filename = filename; 
         bufferSize = mtu * windowSize * 3 / 2;
         rcvBuffer = new ReceiverBuffer(bufferSize, mtu, windowSize);
+        // large enough for the sender's probes until the handshake settles the segment size
+        maxDatagramPacketLength = Packet.maxDatagramLength(Math.max(mtu, Math.min(transportOptions.jumboSegmentSize, Packet.MAX_SEGMENT_SIZE)));
         continuousPackets = new LinkedBlockingQueue<Packet>();
-        packetManager = new PacketManager(windowSize, new RcvPacketComparator(), initTime);
+        packetManager = new PacketManager(windowSize, initTime);
         
         // Note: See PacketManager.java to get localSequenceNumber and remoteSequenceNumber's definition for detailed explanation.
         // packetManager's remoteSequenceNumber stores the last continuous byte received from the sender
@@ -59,6 +105,53 @@ public class TCPRcv{
         
     }
 
+    /**
+     * Delayed ACK policy. ackEvery == 1 ACKs every segment. ackEvery is capped at half the window so the sender 
+     * never stalls on a full window waiting for the timer. Call before work().
+     */
+    public void setDelayedACK(int ackEvery, int ackDelayInMilli){
+        this.ackEvery = ackEvery;
+        this.ackDelayInMilli = ackDelayInMilli;
+    }
+
+    /**
+     * Write every verified segment straight to its file offset (sequence number - first data sequence number) 
+     * from thread 1, out of order, instead of passing in-order data through continuousPackets and rcvBuffer to 
+     * threads 2 and 3. A CompletionBitmap tracks which bytes have arrived; the cumulative ACK still only advances 
+     * over contiguous data. Ignored if compression is negotiated, since sequence numbers then count compressed 
+     * bytes. Call before work().
+     */
+    public void setPositionalWrites(boolean positionalWrites){
+        this.positionalWrites = positionalWrites;
+    }
+
+    /**
+     * Resume mode: keep a CheckpointJournal of how much of the file is on disk. A sender resuming the same file 
+     * (same length and modification time) is told to start where the journal says, and the file is kept up to 
+     * there instead of being truncated. Call before work().
+     */
+    public void setResume(boolean resume){
+        this.journal = resume ? new CheckpointJournal(filename) : null;
+    }
+
+    /** Resume mode: the file is on disk up to `offset`. See CheckpointJournal.progress(). */
+    void checkpoint(FileChannel channel, long offset){
+        try {
+            journal.progress(channel, offset);
+        } catch (IOException e) {
+            System.err.println("TCPRcv: cannot checkpoint: " + e);
+        }
+    }
+
+    /**
+     * Manifest mode: take a directory tree (see Manifest.ManifestSource) and write it under the directory `filename`
+     * instead of writing the stream to one file. The sender must send a manifest. Positional writes are off, since 
+     * file offsets are not stream offsets. Call before work().
+     */
+    public void setManifest(boolean manifest){
+        this.manifest = manifest ? new ManifestSink(Paths.get(filename)) : null;
+    }
+
     /****************************************************************************/
     /******************               Connection              ******************/
     /****************************************************************************/
@@ -70,19 +163,21 @@ public class TCPRcv{
     */
     public boolean passiveConnect(){
     
-        byte[] b = new byte[ maxDatagramPacketLength];
-        DatagramPacket synUDP = new DatagramPacket(b, maxDatagramPacketLength);
+        ByteBuffer b = ByteBuffer.allocateDirect(maxDatagramPacketLength);
 
         try{
-            //try to receive SYN 
-            udpSocket.receive(synUDP); 
+            //try to receive SYN. The transport is connected to the sender once a valid SYN arrives.
+            InetSocketAddress synFrom = null;
+            if (transport.isConnected()) {
+                transport.receive(b);
+            }
+            else {
+                synFrom = transport.receiveFrom(b);
+            }
 
-            // get the correct size of data
-            byte[] bb = new byte[synUDP.getLength()];
-            System.arraycopy(b, 0, bb, 0, bb.length);
-            
             //check flag and checksum 
-            Packet synPkt = Packet.deserialize(bb);
+            b.flip();
+            Packet synPkt = Packet.deserialize(b, null, transport.getHeaderFormat());
             System.out.println("synPkt timestamp: " + synPkt.timeStamp);
             if(! synPkt.verifyChecksum()){ 
                 packetManager.getStatistics().incrementIncChecksum(1);
@@ -102,8 +197,47 @@ public class TCPRcv{
                 //correct first SYN 
                 //if valid syn, set remote sequence number as received (should be 0) 
                 packetManager.setRemoteSequenceNumber(synPkt.getByteSeqNum());
-                this.senderIp = synUDP.getAddress();
-                this.senderPort = synUDP.getPort();
+                acceptedOptions = HandshakeOptions.accept(HandshakeOptions.fromPacket(synPkt), Math.min(transportOptions.jumboSegmentSize, Packet.MAX_SEGMENT_SIZE), transportOptions.compactHeader, transportOptions.compression);
+                if (stripes != null) {
+                    striped = stripes.accept(this, HandshakeOptions.fromPacket(synPkt), acceptedOptions);
+                }
+                if (manifest != null) {
+                    if (!HandshakeOptions.fromPacket(synPkt).manifest) {
+                        System.err.println("TCPRcv: the sender sends a single file, not a manifest. Abort.");
+                        System.exit(1);
+                    }
+                    acceptedOptions.manifest = true;
+                    positionalWrites = false;
+                }
+                HandshakeOptions offered = HandshakeOptions.fromPacket(synPkt);
+                if (journal != null && offered.resume) {
+                    // resume where the journal says, and drop whatever was written after that
+                    long resumeOffset = journal.open(offered.resumeFileLength, offered.resumeFileTime, fileOstream.getChannel().size());
+                    acceptedOptions.resume = true;
+                    acceptedOptions.resumeFileLength = offered.resumeFileLength;
+                    acceptedOptions.resumeFileTime = offered.resumeFileTime;
+                    acceptedOptions.resumeOffset = resumeOffset;
+                    fileOffset = resumeOffset;
+                    fileOstream.getChannel().truncate(resumeOffset).position(resumeOffset);
+                    packetManager.setRemoteSequenceNumber(synPkt.getByteSeqNum() + resumeOffset);
+                    if (resumeOffset > 0) {
+                        System.out.println("Resume: " + resumeOffset + " bytes already received");
+                    }
+                }
+                else if (journal != null) {
+                    // the sender does not resume: the file starts over. It was opened without truncating it
+                    fileOstream.getChannel().truncate(0).position(0);
+                }
+                acceptedOptions.crc32c = offered.crc32c && transportOptions.crc32c;
+                packetManager.setSackEnabled(acceptedOptions.sackPermitted);
+                HeaderFormat format = acceptedOptions.compactHeaderWidth > 0 ? HeaderFormat.compact(acceptedOptions.compactHeaderWidth, false) : HeaderFormat.FULL;
+                transport.setHeaderFormat(acceptedOptions.crc32c ? format.withCRC32C() : format);
+                digest = acceptedOptions.crc32c ? new FileDigest() : null;
+                if (synFrom != null) {
+                    this.senderIp = synFrom.getAddress();
+                    this.senderPort = synFrom.getPort();
+                    transport.connect(senderIp, senderPort);
+                }
                 //print received packet
                 packetManager.output(synPkt, "rcv");
                 initSYNRcved = true; 
@@ -115,31 +249,39 @@ public class TCPRcv{
             
 
             //reply with SYN and ACK and incr loacl sequence number by 1 
-            Packet sap = makeSAPacket(packetManager, synPkt); 
+            Packet sap = makeSAPacket(packetManager, synPkt, acceptedOptions); 
             System.out.println("sap timestamp: " + sap.timeStamp);
-            packetManager.receiverSendUDP(sap, udpSocket,  senderPort, senderIp);
+            packetManager.receiverSendUDP(sap, transport);
             packetManager.setLocalSequenceNumber(1);
 
             //receive ACK or SYN if the SA packet not received 
-            b = new byte[maxDatagramPacketLength];
-            DatagramPacket a = new DatagramPacket( b, maxDatagramPacketLength);
-            udpSocket.receive(a);
+            int aLength = transport.receive(b);
             boolean ackReceived = false; 
             int dropCount = 16; 
             Packet aPkt = null;
             while(! ackReceived && dropCount>0){
-                bb = new byte[a.getLength()];
-                System.arraycopy(b, 0, bb, 0, bb.length);
-                aPkt = Packet.deserialize(bb);
+                b.limit(aLength).position(0);
+                aPkt = Packet.deserialize(b, null, transport.getHeaderFormat());
                 if(! synPkt.verifyChecksum()){ 
                     System.out.println(" receive ack checksum problem");
                     packetManager.getStatistics().incrementIncChecksum(1);
                     return false;}
                 if(!Packet.checkACK(aPkt)){ 
+                    int probeSize = HandshakeOptions.fromPacket(aPkt).probeSize;
+                    if(probeSize > 0 && acceptedOptions.maxSegmentSize > 0 && !Packet.checkSYN(aPkt)){
+                        // jumbo mode probe. echo its size if it arrived intact.
+                        packetManager.output(aPkt, "rcv");
+                        if (aPkt.verifyChecksum() && aPkt.getDataLength() == probeSize && probeSize <= acceptedOptions.maxSegmentSize) {
+                            largestProbe = Math.max(largestProbe, probeSize);
+                            packetManager.receiverSendUDP(makeProbeEcho(packetManager, aPkt, probeSize), transport);
+                        }
+                        aLength = transport.receive(b);
+                        continue;
+                    }
                     if(Packet.checkSYN(aPkt)){
                         //resend SYN+ACK
-                        packetManager.receiverSendUDP(sap, udpSocket,  senderPort, senderIp);
-                        udpSocket.receive(a);
+                        packetManager.receiverSendUDP(sap, transport);
+                        aLength = transport.receive(b);
                         dropCount--;
                         continue;
                      }else{
@@ -156,7 +298,7 @@ public class TCPRcv{
             
             
             
-            if(aPkt.getACK() != packetManager.getLocalSequenceNumber()){
+            if(SeqNum.unwrap(aPkt.getACK(), aPkt.getACKBits(), packetManager.getLocalSequenceNumber()) != packetManager.getLocalSequenceNumber()){
                 System.out.println(" receive ack wrong ACK number problem");
                 return false;}
             packetManager.output(aPkt, "rcv");
@@ -175,42 +317,39 @@ public class TCPRcv{
     /*
     This function will be called after receive a  FIN message 
     correct ACK should be checked at the sender side 
-    @param finPkt: the FIN Packet received
+    @param finPkt: the FIN Packet received. remoteSequenceNumber already counts it
     @Return true if successfully close, false otherwise 
     */
     public boolean passiveClose( Packet finPkt ) throws DebugException{
 
         try{
         //reply ACK
-        packetManager.increaseRemoteSequenceNumber(1);
         Packet a = packetManager.makeACKPacket(finPkt);
         //assert a.getACK() == finPkt.getByteSeqNum()+1 : "receiver close wrong ACK replied to FIN";
         if( a.getACK() != finPkt.getByteSeqNum()+1){
             throw new DebugException();
         }
-        packetManager.receiverSendUDP(a, udpSocket,  senderPort, senderIp);
+        packetManager.receiverSendUDP(a, transport);
 
         //reply FIN
         Packet f = packetManager.makeFINPacket();
         //System.out.println("receiver reply fin, fin flag: "+Packet.checkFIN(f));
-        packetManager.receiverSendUDP(f,udpSocket,  senderPort, senderIp );
+        packetManager.receiverSendUDP(f,transport );
         //packetManager.increaseLocalSequenceNumber(1);
         
 
         //receive ACK
-        byte[] b = new byte[maxDatagramPacketLength];
-        DatagramPacket dg = new DatagramPacket(b, b.length);
-        udpSocket.receive(dg);
-
-        byte[] bb = new byte[dg.getLength()];
-        System.arraycopy(b, 0, bb, 0, bb.length);
+        transport.setTimeout(CLOSE_TIMEOUT_IN_MILLI);
+        ByteBuffer b = ByteBuffer.allocateDirect(maxDatagramPacketLength);
+        int a2Length = transport.receive(b);
+        b.limit(a2Length).position(0);
 
-        Packet a2 = Packet.deserialize(bb);
+        Packet a2 = Packet.deserialize(b, null, transport.getHeaderFormat());
         if(!a2.verifyChecksum()){
             packetManager.getStatistics().incrementIncChecksum(1);
             return false;}
         if(Packet.checkFIN(a2) || Packet.checkSYN(a2) || ! Packet.checkACK(a2)){return false;}
-        if(a2.getACK() != packetManager.getLocalSequenceNumber() +1){
+        if(SeqNum.unwrap(a2.getACK(), a2.getACKBits(), packetManager.getLocalSequenceNumber() + 1) != packetManager.getLocalSequenceNumber() +1){
             System.out.println("!");
             return false;}
         packetManager.output(a2, "rcv");
@@ -227,7 +366,7 @@ public class TCPRcv{
         } catch (InterruptedException e) {}
         catch(IllegalMonitorStateException e2){}
         System.out.println("rcvr close");
-        udpSocket.close();
+        transport.close();
         return true;
     }
 
@@ -239,28 +378,82 @@ public class TCPRcv{
     /*********************************************************************/
     //Thread 1: receive byte, checksum, store to pkt manager and call pkt manager's function to reply ACK
     private class ByteRcvr implements Runnable{
+        // out-of-order packets waiting for the hole in front of them. null with positional writes
+        private ReorderBuffer reorder;
+        // positional writes only. null otherwise
+        private CompletionBitmap received;
+        private FileChannel fileChannel;
+        private long fileBase;         // sequence number of the first file byte
+        private long preallocated = 0; // in byte. the file has been extended to this length
 
         public void run(){
             Packet finPkt = null;
+            if (positionalWrites && !acceptedOptions.compression) {
+                fileBase = packetManager.getRemoteSequenceNumber() + 1;
+                // a segment starts within the window, so it ends within a window and a datagram of it. The sender's
+                // segments may be larger than ours
+                received = new CompletionBitmap(windowSize * mtu + maxDatagramPacketLength, fileBase);
+                fileChannel = fileOstream.getChannel();
+                if (striped) {
+                    preallocated = Long.MAX_VALUE; // StripedRcv sized the shared file already
+                }
+            }
+            else {
+                reorder = new ReorderBuffer(windowSize, mtu);
+            }
+            // The receive buffer and the view over it are reused for every datagram. A Packet is only 
+            // materialized (toPacket()) when it is kept in packetManager.
+            ByteBuffer b = ByteBuffer.allocateDirect(maxDatagramPacketLength);
+            PacketView pkt = new PacketView();
+
+            // delayed ACK state
+            int segmentsPerACK = Math.max(1, Math.min(ackEvery, windowSize / 2));
+            int unACKedSegments = 0; // in-order segments received since the last ACK
+            long ackDeadline = 0; // System.nanoTime() by which the pending ACK is sent
+            long pendingTimeStamp = 0, pendingSeqNum = 0; // of the last unACKed segment
+
             while (true) {
-                //receiving new UDP packet 
-                byte[] b = new byte[maxDatagramPacketLength];
-                DatagramPacket p = new DatagramPacket(b, maxDatagramPacketLength);
+                //receiving new UDP packet. While an ACK is pending, wait no longer than its deadline.
+                int length;
                 try{
-                    udpSocket.receive(p);
+                    if (unACKedSegments > 0) {
+                        transport.setTimeout((int) Math.max(1, (ackDeadline - System.nanoTime() + 999999) / 1000000));
+                    }
+                    else {
+                        transport.setTimeout(0);
+                    }
+                    length = transport.receive(b);
+                }catch(SocketTimeoutException ste){
+                    // delayed ACK timer expired
+                    sendACK(pendingTimeStamp, pendingSeqNum);
+                    unACKedSegments = 0;
+                    continue;
                 }catch(IOException ioe ){
                     System.err.println("In TCPRcv ByteRcvr: " + ioe);
+                    continue;
                 }
 
-                byte[] bb = new byte[p.getLength()];
-                System.arraycopy(b, 0, bb, 0, p.getLength());
-                Packet pkt = Packet.deserialize(bb);
+                pkt.wrap(b, 0, length, transport.getHeaderFormat());
+                if (!pkt.isValidLength()) {
+                    packetManager.getStatistics().incrementIncChecksum(1);
+                    continue;
+                }
 
                 packetManager.output(pkt, "rcv");
 
-                if(Packet.checkFIN(pkt)) {
-                    // Receive FIN. Go to closing connection state.
-                    finPkt = pkt; 
+                if(pkt.checkFIN()) {
+                    if (digest != null && !pkt.verifyChecksum()) {
+                        // CRC32C mode: its digest cannot be trusted. The sender sends the FIN again
+                        packetManager.getStatistics().incrementIncChecksum(1);
+                        continue;
+                    }
+                    // Receive FIN. Go to closing connection state. The ACK of the FIN covers any pending ACK.
+                    transport.setTimeout(0);
+                    finPkt = pkt.toPacket(); 
+                    finPkt.byteSeqNum = SeqNum.unwrap(pkt.getByteSeqNum(), pkt.getByteSeqNumBits(), packetManager.getRemoteSequenceNumber());
+                    if (digest != null) {
+                        senderDigest = FileDigest.fromBytes(finPkt.getData(), finPkt.getDataLength());
+                    }
                     break;
                 }
 
@@ -272,63 +465,107 @@ public class TCPRcv{
                 /** 
                  * Check if the packet's sequence number is within 
                  * (remoteSequenceNumber, remoteSequenceNumber + windowSize * mtu]. 
-                 * The sequence number may wrap. Check if the # of packets in `continuousPackets` is less than or equal to `windowSize`.
-                 * If the sequence number is valid and `continuousPackets` has less than `windowSize` packets, put the packet into packet manager. and call updateContinuousInfo() to put continuous packets into `continuousPackets` and update `remoteSequenceNumber` accordingly; if not, do nothing. 
-                 * Lastly, reply an ACK with the latest `remoteSequenceNumber`. 
+                 * The 32-bit wire sequence number is unwrapped against remoteSequenceNumber first. Check if the # of packets in `continuousPackets` is less than or equal to `windowSize`.
+                 * If the sequence number is valid, the packet is not held already and `continuousPackets` has less than `windowSize` packets, put the packet into `reorder` and call updateContinuousInfo() to put continuous packets into `continuousPackets` and update `remoteSequenceNumber` accordingly; if not, do nothing. 
+                 * Lastly, reply an ACK with the latest `remoteSequenceNumber`: at once unless the packet was the next 
+                 * in-order segment and nothing is waiting out of order (see setDelayedACK()).
                  */
 
-                int lowerBound = packetManager.getRemoteSequenceNumber();
-                int upperBound = lowerBound + windowSize * mtu;
-                boolean overflow = false;
-                if (upperBound < 0) { /* overflow */ 
-                    overflow = true;
-                    upperBound += Integer.MAX_VALUE; 
-                    upperBound += 1; 
-                }
+                long lowerBound = packetManager.getRemoteSequenceNumber();
+                long upperBound = lowerBound + (long) windowSize * mtu;
 
-                if ( (!overflow && (pkt.byteSeqNum <= lowerBound || pkt.byteSeqNum > upperBound)) ||
-                     ( overflow &&  pkt.byteSeqNum <= lowerBound && pkt.byteSeqNum > upperBound )       ) {
+                long seqNum = SeqNum.unwrap(pkt.getByteSeqNum(), pkt.getByteSeqNumBits(), lowerBound);
+                boolean inOrder = false;
+                if (seqNum <= lowerBound || seqNum > upperBound) {
                         // outside window packet. do nothing.
                 }
+                else if (received != null) {
+                    // positional writes: no queueing, straight to the file
+                    writeAt(pkt, seqNum);
+                    long newBase = received.advance();
+                    packetManager.increaseRemoteSequenceNumber((int) (newBase - lowerBound - 1));
+                    if (journal != null) {
+                        checkpoint(fileChannel, newBase - fileBase + fileOffset);
+                    }
+                    inOrder = seqNum == lowerBound + 1 && newBase == seqNum + pkt.getDataLength() && !received.hasPending();
+                }
+                else if (reorder.contains(seqNum)) {
+                        // duplicate of an out-of-order packet held already. do nothing.
+                    packetManager.getStatistics().incrementOutSeqDiscardCount();
+                }
                 else if (continuousPackets.size() >= windowSize) {
                         // although new packet is in window range, continuousPackets has no space. do nothing.
-                    System.out.println(Thread.currentThread().getName() + ": continuousPackets is full. Drop received packet seq num " + pkt.byteSeqNum);
+                    System.out.println(Thread.currentThread().getName() + ": continuousPackets is full. Drop received packet seq num " + seqNum);
                         
                 }
                 else {
-                        // new packet is in window range. continuousPackets has space. put it in packetManager. update `continuousPackets` and `remoteSequenceNumber`.
-                    PacketWithInfo pwi = new PacketWithInfo(pkt);
-                    packetManager.getQueue().add(pwi);
+                        // new packet is in window range. continuousPackets has space. put it in `reorder`. update `continuousPackets` and `remoteSequenceNumber`.
+                    Packet dataPkt = pkt.toPacket(packetManager.getPayloadPool());
+                    dataPkt.byteSeqNum = seqNum;
+                    reorder.add(dataPkt);
                     updateContinuousInfo();
+                    // exactly this segment was delivered and no gap is left behind it
+                    inOrder = seqNum == lowerBound + 1 
+                        && packetManager.getRemoteSequenceNumber() == lowerBound + dataPkt.getDataLength() 
+                        && reorder.isEmpty();
                 }
 
-                // send ACK packet
-                Packet ackPckt = packetManager.makeACKPacket(pkt); // get `remoteSequenceNumber` from packetManager
-                try{
-                    packetManager.receiverSendUDP(ackPckt, udpSocket, senderPort, senderIp);
-                }catch( IOException ioe){
-                    System.out.println("In TCPRcv ByteRcvr thread: fail to send ACK reply when new packet received: " + ioe);
-                    System.exit(1);
+                // send ACK packet, or delay it
+                if (inOrder && ++unACKedSegments < segmentsPerACK) {
+                    if (unACKedSegments == 1) {
+                        ackDeadline = System.nanoTime() + ackDelayInMilli * 1000000L;
+                    }
+                    pendingTimeStamp = pkt.getTimeStamp();
+                    pendingSeqNum = seqNum;
+                    if (System.nanoTime() - ackDeadline < 0) {
+                        continue;
+                    }
                 }
+                sendACK(pkt.getTimeStamp(), seqNum);
+                unACKedSegments = 0;
                 
                 // DEBUG
-                System.out.println("packetManager size: " + packetManager.getQueue().size()+ "\tcontinuiusPackets size: " + continuousPackets.size());
+                System.out.println("reorder size: " + (reorder != null ? reorder.size() : 0) + "\tcontinuiusPackets size: " + continuousPackets.size());
             } // end of while(true) 
             
 
+            if (received != null && !striped) {
+                // drop what was preallocated beyond the data
+                try {
+                    fileChannel.truncate(received.base() - fileBase + fileOffset);
+                } catch (IOException e) {
+                    System.err.println("TCPRcv: ByteRcvr: IOException when truncating the file: " + e);
+                    System.exit(1);
+                }
+            }
+            if (received != null && digest != null) {
+                // written out of order: digest the range as it is on disk. fileChannel is write only
+                try (FileChannel readBack = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                    digest = FileDigest.of(readBack, fileOffset, received.base() - fileBase);
+                } catch (IOException e) {
+                    System.err.println("TCPRcv: ByteRcvr: IOException when reading the file back: " + e);
+                    System.exit(1);
+                }
+            }
+
             // tell other threads in receiving side that no more packets will come
-            synchronized (continuousPackets) {   
+            continuousLock.lock();
+            try {
                 // No more packets. Notify thread 2 in case it is waiting for new packet arriving.
                 noMoreNewPacket = true;
-                continuousPackets.notifyAll();
+                continuousAdded.signalAll();
+            } finally {
+                continuousLock.unlock();
             }
             // After receiving FIN we reach here. Need to send appropriate packets to sender to close connection.
             try{  
                 int closeCount = 16; 
+                packetManager.increaseRemoteSequenceNumber(1); //FIN counts for 1. Once, however many times it is answered
                 while(! passiveClose(finPkt) && closeCount>0){
                     System.out.println("passive close returns false");
                     closeCount--;
                 }
+                transport.close(); // done already unless every attempt failed
               }catch (DebugException de){
                 System.err.print(de);
                 throw new RuntimeException(de.toString());
@@ -338,191 +575,231 @@ public class TCPRcv{
 
         }
         /**
-         * update `continuousPackets` and `remoteSequenceNumber` according to `remoteSequenceNumber`
+         * ACK everything received so far (cumulative ACK of `remoteSequenceNumber`, plus SACK blocks if enabled).
+         * @param timeStamp echoed timestamp
+         * @param recentSeqNum the segment that triggered this ACK. Its SACK block goes first.
          */
-        private void updateContinuousInfo(){
-            LinkedList<PacketWithInfo> pwiToBePutBack = new LinkedList<PacketWithInfo>();
-            int seqNumPrevExamined = -1;
-            int seqNumLookingFor = packetManager.getRemoteSequenceNumber() + 1;
-            if (seqNumLookingFor < 0) { seqNumLookingFor = 0; } // wrap
-
-            while( !packetManager.getQueue().isEmpty() ) {
-                PacketWithInfo pwi = packetManager.getQueue().poll();
-                
-                if ( pwi.packet.byteSeqNum == seqNumPrevExamined ) {
-                    // do nothing == throw this duplicate PacketWithInfo
-                    //potential discarded disorder pkt
-                    packetManager.getStatistics().incrementOutSeqDiscardCount();
-                    continue;
-                } 
-                else if ( pwi.packet.byteSeqNum > seqNumLookingFor ) {
-                    // put back this discontinued PacketWithInfo in the front
-                    pwiToBePutBack.add(pwi);
-                }
-                else if ( pwi.packet.byteSeqNum == seqNumLookingFor ) {
-                    // the next continuous PacketWithInfo. put it in continuousPackets' tail
-                    synchronized (continuousPackets) {
-                        continuousPackets.add(pwi.packet);
-                        continuousPackets.notifyAll();                            
-                    }
+        private void sendACK(long timeStamp, long recentSeqNum){
+            Packet ackPckt = (received != null) 
+                ? packetManager.makeACKPacket(timeStamp, recentSeqNum, received)
+                : packetManager.makeACKPacket(timeStamp, recentSeqNum, reorder);
+            try{
+                packetManager.receiverSendUDP(ackPckt, transport);
+            }catch( IOException ioe){
+                System.out.println("In TCPRcv ByteRcvr thread: fail to send ACK reply when new packet received: " + ioe);
+                System.exit(1);
+            }
+        }
 
-                    // update the remote sequence number, the seq number we're looking for in the next iteration
-                    packetManager.increaseRemoteSequenceNumber(pwi.packet.getDataLength()); 
-                    seqNumLookingFor = packetManager.getRemoteSequenceNumber() + 1;
-                    if (seqNumLookingFor < 0) { seqNumLookingFor = 0; } // wrap
+        /**
+         * Positional writes: write the segment's payload at its file offset, straight from the receive buffer, 
+         * and mark it received. A segment whose bytes have all been received already, or that ends beyond the 
+         * bitmap, is not written.
+         */
+        private void writeAt(PacketView pkt, long seqNum){
+            int newBytes = received.mark(seqNum, seqNum + pkt.getDataLength());
+            if (newBytes <= 0) {
+                packetManager.getStatistics().incrementOutSeqDiscardCount();
+                return;
+            }
+            ByteBuffer data = pkt.getDataView();
+            long position = seqNum - fileBase + fileOffset;
+            try {
+                if (position + data.remaining() > preallocated) {
+                    // extend the file ahead, so that most writes do not change its length
+                    preallocated = Math.max(position + data.remaining(), preallocated + PREALLOCATE_STEP);
+                    fileChannel.write(ByteBuffer.allocate(1), preallocated - 1);
                 }
-                else { // pwi.packet.byteSeqNum < seqNumLookingFor. 
-                    // may be wrapped PacketWithInfo in our front. put back.
-                    pwiToBePutBack.add(pwi);
+                while (data.hasRemaining()) {
+                    position += fileChannel.write(data, position);
                 }
-                // save current packet's sequence number for checking dup packets in the next iteration
-                seqNumPrevExamined = pwi.packet.byteSeqNum;
+            } catch (IOException e) {
+                System.err.println("TCPRcv: ByteRcvr: IOException when writing to file: " + e);
+                System.exit(1);
             }
+            packetManager.getStatistics().incrementValidDataByte(newBytes);
+        }
 
-            // put back PacketWithInfo in pwiToBePutBack to packetManager
-            try {
-                while (true) {
-                    packetManager.getQueue().add( pwiToBePutBack.remove() );
+        /**
+         * update `continuousPackets` and `remoteSequenceNumber` according to `remoteSequenceNumber`: move the 
+         * packets that continue it out of `reorder`, one slot lookup each.
+         */
+        private void updateContinuousInfo(){
+            Packet next;
+            while ((next = reorder.remove(packetManager.getRemoteSequenceNumber() + 1)) != null) {
+                // the next continuous packet. put it in continuousPackets' tail
+                continuousLock.lock();
+                try {
+                    continuousPackets.add(next);
+                    continuousAdded.signalAll();
+                } finally {
+                    continuousLock.unlock();
                 }
-            } catch (NoSuchElementException e) {}
+                // update the remote sequence number, the seq number we're looking for in the next iteration
+                packetManager.increaseRemoteSequenceNumber(next.getDataLength());
+            }
         }
 
     }
 
     /** Thread 2: get continuous packets and put it into buffer */
     private class PacketToBuffer implements Runnable {
+        // compression only: segments are inflated through `inflated` on their way to rcvBuffer
+        private final SegmentDecompressor decompressor = acceptedOptions.compression ? new SegmentDecompressor() : null;
+        private final byte[] inflated = (decompressor != null) ? new byte[bufferSize] : null;
+
         public void run() {
             while ( !noMoreNewPacket ) {
                 // Try to get packet from `continuousPackets`. If it is empty, wait.
-                // continuousPackets itself is thread safe. We use synchronized to ensure `noMoreNewPacket`'s thread-safe attribute.
-                synchronized(continuousPackets) {
-                    while (continuousPackets.isEmpty()){
+                // continuousPackets itself is thread safe. We use continuousLock to ensure `noMoreNewPacket`'s thread-safe attribute.
+                continuousLock.lock();
+                try {
+                    while (!hasDataToPut()){
                         if (noMoreNewPacket) break;
-                        try {
-                            // continuousPackets.notifyAll(); // continuousPackets is a lock shared by thread 1 and thread 2. Thread 1 never sleeps. only thread 2 wait() on rcvBuffer, and thread 1 wakes it up.
-                            continuousPackets.wait();
-                        } catch (InterruptedException e) {}
+                        // Thread 1 never sleeps. only thread 2 waits on continuousAdded, and thread 1 wakes it up.
+                        continuousAdded.awaitUninterruptibly();
                     }
                     if (noMoreNewPacket) break; // breaking outer while loop. go down.
-                } // Automalically release continuousPacket lock here. See https://stackoverflow.com/questions/44327173/synchronized-statements-with-break
+                } finally {
+                    continuousLock.unlock(); // released on the break too
+                }
 
                 // continuousPackets must be non-empty to reach here. 
-                // Get continuous packets as many as possible and make them a byte array
-                int bufFreeSize = rcvBuffer.checkFreeSpace(); // free space may increase after this call. Later if we want to wait(), we need to recheck free space beforehand to avoid t2 and t3 waiting for each other.
-                int remainSize = bufFreeSize;
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                try {
-                    while (continuousPackets.element().getDataLength() <= remainSize ) {
-                        byte[] data = continuousPackets.remove().getData();
-                        bytes.writeBytes(data);
-                        remainSize -= data.length;
-                    }
-                } catch (NoSuchElementException e) {}
-                
-                // try to put bytes to rcvBuffer
-                synchronized (rcvBuffer) {
-                    
-                    // if there is no space to put even one packet size data, `bytes` will be zero in size. wait thread 3 to notify
-                    if (bytes.size() == 0) {
-                        // now we hold the lock. recheck if free space is the same before going to wait().
-                        if (bufFreeSize != rcvBuffer.checkFreeSpace()) {
-                            // free space has changed. start from top
-                            continue;
-                        }
-                        try {
-                            rcvBuffer.notifyAll(); 
-                            rcvBuffer.wait();
-                        } catch (InterruptedException e) {}
-                        continue; // start from top
-                    }
-                
-                    // there is space in rcvBuffer to put data
-                    else {
-                        try {
-                            rcvBuffer.put(bytes.toByteArray());
-                        } catch (BufferInsufficientSpaceException e) {
-                            // Shouldn't be here. We've checked free space.
-                            System.err.println("TCPRcv: Thread 2: insufficient buffer size: " + e);
-                            System.exit(1);
-                        }
-                        //update data received in statistics when still have new packet coming 
-                        packetManager.getStatistics().incrementValidDataByte(bytes.size());
-
-                        rcvBuffer.notifyAll();
-                    }
-                } // release rcvBuffer lock
+                // try to put continuous packets as many as possible to rcvBuffer
+                putOrWait();
             }
 
             // no more new incoming packets. move all packets to rcvBuffer bytes
-            while ( !continuousPackets.isEmpty() ) {
-                int bufFreeSize = rcvBuffer.checkFreeSpace();
-                int remainSize = bufFreeSize;
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                try {
-                    while (continuousPackets.element().getDataLength() <= remainSize ) {
-                        byte[] data = continuousPackets.remove().getData();
-                        bytes.writeBytes(data);
-                        remainSize -= data.length;
-                    }
-                } catch (NoSuchElementException e) {}
-
-                synchronized (rcvBuffer) {
-                    if (bytes.size() == 0) {
-                        if (bufFreeSize != rcvBuffer.checkFreeSpace()) {
-                            continue;
-                        }
-                        try {
-                            rcvBuffer.notifyAll();
-                            rcvBuffer.wait();
-                        } catch (InterruptedException e) {}
-                        continue; // start from top
-                    }
-                    else {
-                        try {
-                            rcvBuffer.put(bytes.toByteArray());
-                        } catch (BufferInsufficientSpaceException e) {
-                            // Shouldn't be here. We've checked free space.
-                            System.err.println("TCPRcv: Thread 2: insufficient buffer size: " + e);
-                            System.exit(1);
-                        }
-                        packetManager.getStatistics().incrementValidDataByte(bytes.size());
-                        rcvBuffer.notifyAll();
-                    }
-                } // release rcvBuffer lock
+            while ( hasDataToPut() ) {
+                putOrWait();
             }
 
             // all data are in rcvBuffer. tell thread 3 this good news in case it is waiting
+            if (decompressor != null) decompressor.close();
             rcvBuffer.setNoMoreNewByteToTrue();
         }
+
+        /**
+         * Put as many continuous packets as fit in rcvBuffer. If not even one fits, park until thread 3 has taken
+         * more data out; rcvBuffer is lock-free, so thread 3 never waits on us to do so.
+         */
+        private void putOrWait() {
+            int bufFreeSize = rcvBuffer.checkFreeSpace(); // free space only grows until we put
+            int putSize = putContinuousPackets(bufFreeSize);
+            if (putSize == 0 && bufFreeSize < bufferSize) {
+                // out of space, not out of data (a compressed segment may inflate to nothing). 
+                // rcvBuffer is not empty, so thread 3 will wake us up.
+                rcvBuffer.waitForFreeSpaceAbove(bufFreeSize);
+            }
+            else {
+                //update data received in statistics
+                packetManager.getStatistics().incrementValidDataByte(putSize);
+            }
+        }
+
+        private boolean hasDataToPut() {
+            return !continuousPackets.isEmpty() || (decompressor != null && decompressor.hasPending());
+        }
+
+        /**
+         * Move packets from the head of `continuousPackets` into rcvBuffer while they fit in `freeSize` bytes. 
+         * Payloads are copied straight from the (pooled) packet arrays and released afterwards. 
+         * @return number of bytes put
+         */
+        private int putContinuousPackets(int freeSize) {
+            if (decompressor != null) {
+                return putDecompressed(freeSize);
+            }
+            int putSize = 0;
+            try {
+                while (continuousPackets.element().getDataLength() <= freeSize - putSize ) {
+                    Packet pkt = continuousPackets.remove();
+                    try {
+                        rcvBuffer.put(pkt.getData(), 0, pkt.getDataLength());
+                    } catch (BufferInsufficientSpaceException e) {
+                        // Shouldn't be here. We've checked free space.
+                        System.err.println("TCPRcv: Thread 2: insufficient buffer size: " + e);
+                        System.exit(1);
+                    }
+                    putSize += pkt.getDataLength();
+                    pkt.release();
+                }
+            } catch (NoSuchElementException e) {}
+            return putSize;
+        }
+
+        /** Same as putContinuousPackets(), with the packets' payloads decompressed. Stops when rcvBuffer is full. */
+        private int putDecompressed(int freeSize) {
+            int putSize = 0;
+            try {
+                while (putSize < freeSize) {
+                    if (!decompressor.hasPending()) {
+                        Packet pkt = continuousPackets.poll();
+                        if (pkt == null) break;
+                        decompressor.offer(pkt);
+                    }
+                    int k = decompressor.read(inflated, 0, Math.min(inflated.length, freeSize - putSize));
+                    rcvBuffer.put(inflated, 0, k);
+                    putSize += k;
+                }
+            } catch (DataFormatException e) {
+                System.err.println("TCPRcv: Thread 2: corrupted compressed data: " + e);
+                System.exit(1);
+            } catch (BufferInsufficientSpaceException e) {
+                System.err.println("TCPRcv: Thread 2: insufficient buffer size: " + e);
+                System.exit(1);
+            }
+            return putSize;
+        }
     }
     
     /** Thread 3: retrieve data from rcvBuffer and store it to the file system */
     private class BufferToFile implements Runnable {
         public void run(){
-            // Note that it is because we only have one putter (thread 2) and one getter (thread 3) so that we can use a single lock (rcvBuffer) to control.
-            while ( rcvBuffer.getNoMoreNewByte() == false ) {
-                byte[] b = rcvBuffer.waitAndGetData();
-                if (b != null) {
-                    // there is data. write all data into the file
-                    try {
-                        fileOstream.write(b);
-                    } catch (IOException e) {
-                        System.err.println("TCPRcv: BufferToFile: IOException when writing to file: " + e);
-                        System.exit(1);
+            // rcvBuffer is a single-producer/single-consumer ring: thread 2 is the only putter and thread 3 the only getter.
+            // Data is written to the file straight from views of rcvBuffer (gathering write, no copy) and given 
+            // back afterwards.
+            FileChannel channel = (manifest == null) ? fileOstream.getChannel() : null;
+            long committed = fileOffset; // resume mode: the file is written up to here
+            ByteBuffer[] views;
+            while ( (views = rcvBuffer.waitAndLendData()) != null ) { // null once thread 2 is done and all is written
+                try {
+                    long written = 0;
+                    if (digest != null) {
+                        for (ByteBuffer view : views) {
+                            digest.update(view);
+                        }
                     }
+                    if (manifest != null) {
+                        written = manifest.write(views); // manifest mode: split among the files
+                    }
+                    while (views[views.length - 1].hasRemaining()) {
+                        written += channel.write(views);
+                    }
+                    rcvBuffer.commitData((int) written);
+                    if (journal != null) {
+                        committed += written;
+                        checkpoint(channel, committed);
+                    }
+                } catch (IOException e) {
+                    System.err.println("TCPRcv: BufferToFile: IOException when writing to file: " + e);
+                    System.exit(1);
                 }
-
-                // notify thread 2 that rcvBuffer is now empty
-                rcvBuffer.notifyAllWrapper();
             }
-
-            // The buffer may contain last piece of data (or not)
-            byte[] b = rcvBuffer.getData();
-            if( b != null ) {
+            if (journal != null && manifest == null) {
+                // resume mode: cut anything of an older file beyond the data
                 try {
-                    fileOstream.write(b);
+                    channel.truncate(committed);
                 } catch (IOException e) {
-                    System.err.println("TCPRcv: BufferToFile: IOException when writing to file: " + e);
+                    System.err.println("TCPRcv: BufferToFile: IOException when truncating the file: " + e);
+                    System.exit(1);
+                }
+            }
+            if (manifest != null) {
+                try {
+                    manifest.finish();
+                } catch (IOException e) {
+                    System.err.println("TCPRcv: BufferToFile: " + e);
                     System.exit(1);
                 }
             }
@@ -536,9 +813,9 @@ public class TCPRcv{
     This function check if the packet receive is a valid data packet 
     checking flags, ack and checksum 
     */
-    private boolean checkValidDataPacket( Packet pkt, Statistics stat){
-        if( Packet.checkSYN(pkt)) return false; // Thread 1 has to handle FIN
-        if( !Packet.checkACK(pkt)) return false; 
+    static boolean checkValidDataPacket( PacketView pkt, Statistics stat){
+        if( pkt.checkSYN()) return false; // Thread 1 has to handle FIN
+        if( !pkt.checkACK()) return false; 
         // if(pkt.getACK() != this.packetManager.getLocalSequenceNumber() +1 ) return false; 
         // TODO: ^ What does this line do? Can we accept that sender does not receive our ACK? Or do you mean that pkt.getACK() should always be 1?
         //sohuld always be 1 before FIN? I think this line is not necessary beside debugging purpose 
@@ -555,19 +832,48 @@ public class TCPRcv{
     /*
     This function return an SYN+ACK packet with the current 'Next Byte Expected' in the ackowledge field 
     NBE should be 1 
+    The accepted handshake options are carried in the payload.
     */
-    private static Packet makeSAPacket(PacketManager pkm, Packet pktRcvd){
+    static Packet makeSAPacket(PacketManager pkm, Packet pktRcvd, HandshakeOptions accepted){
         Packet sap = new Packet(pkm.getLocalSequenceNumber());
-        sap.setACK(
-            pkm.getRemoteSequenceNumber() == Integer.MAX_VALUE ? 0 :( pkm.getRemoteSequenceNumber() + 1) ) ;
+        sap.setACK(pkm.getRemoteSequenceNumber() + 1);
         Packet.setFlag(sap, true, false ,true );
         sap.timeStamp = pktRcvd.timeStamp;
+        accepted.writeTo(sap);
         Packet.calculateAndSetChecksum(sap); 
         return sap; 
 
     }
 
-    
+
+    /*
+    Jumbo mode: reply to a probe with an ACK carrying the probe's size, so the sender knows a segment of that size 
+    gets through 
+    */
+    static Packet makeProbeEcho(PacketManager pkm, Packet probe, int probeSize){
+        Packet echo = new Packet(pkm.getLocalSequenceNumber());
+        echo.setACK(pkm.getRemoteSequenceNumber() + 1);
+        Packet.setFlag(echo, false, false, true);
+        echo.timeStamp = probe.timeStamp;
+        HandshakeOptions echoOptions = new HandshakeOptions();
+        echoOptions.probeSize = probeSize;
+        echoOptions.writeTo(echo);
+        Packet.calculateAndSetChecksum(echo);
+        return echo;
+    }
+
+    /**
+     * Use segments of up to `segmentSize` data bytes. Everything sized from mtu is sized again. Only call before 
+     * any data is received.
+     */
+    private void setSegmentSize(int segmentSize) throws IOException, BufferSizeException {
+        mtu = segmentSize;
+        // never shrunk: the handshake may have offered more than the probes settled
+        maxDatagramPacketLength = Math.max(maxDatagramPacketLength, Packet.maxDatagramLength(mtu));
+        bufferSize = mtu * windowSize * 3 / 2;
+        rcvBuffer = new ReceiverBuffer(bufferSize, mtu, windowSize);
+        transport.ensureSocketBufferSize(windowSize * maxDatagramPacketLength);
+    }
 
     /****************************************************************************/
     /******************          main work and statistics      ******************/
@@ -575,45 +881,105 @@ public class TCPRcv{
     public void work() throws InterruptedException, IOException {
         
         try {
-            fileOstream = new FileOutputStream(filename);
-            this.udpSocket = new DatagramSocket( listenPort); //create new socket and bind to the specified port
+            if (fileOstream == null && manifest == null && journal != null) {
+                // resume mode: not truncated until the handshake tells how much of it to keep
+                fileOstream = new FileOutputStream(new RandomAccessFile(filename, "rw").getFD());
+            }
+            else if (fileOstream == null && manifest == null) {
+                fileOstream = new FileOutputStream(filename); // striping: all flows share StripedRcv's
+            }
+            else if (manifest != null) {
+                Files.createDirectories(Paths.get(filename));
+            }
+            if (transport == null) {
+                bind();
+            }
             while( ! passiveConnect() ) {
                 // use a while loop to check true, if false, set remote sequence number to 0
                 //passiveConnect ++ remote seq num, but if connect not successful, the value should not be changed
                 System.out.println("fail to passice connect");
                 packetManager.setRemoteSequenceNumber(0);
             }
+            if (largestProbe > mtu) {
+                setSegmentSize(largestProbe);
+            }
             
             // Send SYN + ACK and start thread 1
 
             // Thread 1: to rcv packet and put into packet manager. handle FIN and close connection
-            Thread T0_storePacketAndACK = new Thread(new ByteRcvr(), "T0_storePacketAndACK");
+            // platform or virtual threads, see TransportOptions.virtualThreads
+            Thread T0_storePacketAndACK = ConnectionThreads.newThread(transportOptions, new ByteRcvr(), "T0_storePacketAndACK");
             // Thread 2: Get data from packet manager and put them to rcvBuffer
-            Thread T1_packetToBuffer = new Thread(new PacketToBuffer(), "T1_packetToBuffer");
+            Thread T1_packetToBuffer = ConnectionThreads.newThread(transportOptions, new PacketToBuffer(), "T1_packetToBuffer");
             // Thread 3: retrieve data from rcvBuffer and store it to the file system
-            Thread T2_bufferToFile = new Thread(new BufferToFile(), "T2_bufferToFile");
+            Thread T2_bufferToFile = ConnectionThreads.newThread(transportOptions, new BufferToFile(), "T2_bufferToFile");
+
+            // Positional writes: thread 1 writes the file itself. Threads 2 and 3 would only wait for the FIN.
+            boolean positional = positionalWrites && !acceptedOptions.compression;
 
             T0_storePacketAndACK.start();
-            T1_packetToBuffer.start();
-            T2_bufferToFile.start();
+            if (!positional) {
+                T1_packetToBuffer.start();
+                T2_bufferToFile.start();
+            }
 
             T0_storePacketAndACK.join();
-            T1_packetToBuffer.join();
-            T2_bufferToFile.join();
-            fileOstream.close();
+            if (!positional) {
+                T1_packetToBuffer.join();
+                T2_bufferToFile.join();
+            }
+            if (stripes == null && fileOstream != null) {
+                fileOstream.close();
+            }
+            if (journal != null) {
+                journal.complete();
+            }
+            if (digest != null) {
+                checkDigest();
+            }
 
         }
         catch (java.io.FileNotFoundException e) {
             System.err.println("TCPRcv: work(): the file \"" + filename + "\" exists but is a directory rather than a regular file, does not exist but cannot be created, or cannot be opened for any other reason. Abort.");
             System.exit(1);
         }
-        catch( SocketException se){
-            System.err.println("TCPRcv: work(): SocketException: " + se); 
+        catch( IOException ioe){
+            System.err.println("TCPRcv: work(): cannot open the transport: " + ioe); 
+            System.exit(1);
+        }
+        catch (BufferSizeException e) {
+            System.err.println("TCPRcv: work(): cannot size the buffers for the negotiated segment size: " + e);
             System.exit(1);
         }
         
     }
 
+    /** CRC32C mode: compare the digest of what was written with the sender's. */
+    private void checkDigest(){
+        if (senderDigest == null) {
+            // the sender always sends one once CRC32C is negotiated
+            System.err.println("Digest: " + digest + ". The sender's FIN carried none to compare with");
+            digestOK = false;
+        }
+        else if (digest.matches(senderDigest)) {
+            System.out.println("Digest: OK, " + digest);
+        }
+        else {
+            System.err.println("Digest: MISMATCH. Received " + digest + ", the sender sent " + senderDigest);
+            digestOK = false;
+        }
+    }
+
+    /** false if the digest of the file written does not match the sender's. See checkDigest(). */
+    public boolean isDigestOK(){
+        return digestOK;
+    }
+
+    /** Create the transport and bind it to listenPort. work() does it unless it was done before. */
+    void bind() throws IOException {
+        this.transport = new DatagramTransport(listenPort, transportOptions); //create new channel and bind to the specified port
+    }
+
     // Get statistics
     public String getStatisticsString() {
         
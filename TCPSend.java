@@ -1,8 +1,7 @@
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.NoSuchElementException;
 import java.io.*;
@@ -11,23 +10,46 @@ import Timeout.*;
 import Packet.*;
 import Timeout.*;
 import Buffer.*;
+import Congestion.CongestionController;
+import Congestion.Pacer;
 import Exceptions.*;
+import Manifest.ManifestSource;
 import Statistics.Statistics;
+import Transport.*;
 
 public class TCPSend {
     int bufferSize; // will be determined in construction: 1.5*sws*mtu
     SenderBuffer sendBuffer;
     PacketManager packetManager;
     Path filePath;
-    int mtu;
-    DatagramSocket udpSocket;
+    int mtu; // max data bytes per segment. Raised by the handshake in jumbo mode.
+    int windowSize; // in segment
+    DatagramTransport transport;
+    TransportOptions transportOptions;
     Timeout timeOut;
     int initTimeOutInMilli = 5 * 1000; // in ms
-    final int maxDatagramPacketLength = 1518; // in byte
+    int maxDatagramPacketLength; // in byte. Derived from mtu, see Packet.maxDatagramLength().
+    static final int PROBE_ATTEMPTS = 2; // jumbo mode: a probe size is given up after this many unanswered probes
+    static final int PROBE_MIN_TIMEOUT_IN_MILLI = 20;
+    static final int CLOSE_ATTEMPTS = 4; // the FIN is sent this many times before the sender gives up on the answer
+    static final int CLOSE_MIN_TIMEOUT_IN_MILLI = 100; // a sub-ms RTO would truncate to 0, which never times out
     final int localPort;
     final InetAddress remoteIp;
     final int remotePort;
-    int lastACKExpected = -1; //use to indicate the start of connection closing 
+    long lastACKExpected = -1; //use to indicate the start of connection closing 
+    HandshakeOptions offeredOptions; // options put in our SYN. The receiver's SYN+ACK tells which ones are on.
+    SegmentCompressor compressor; // null unless compression is on for the connection
+    boolean mapFile = false; // mmap mode requested. See setMapFile().
+    MappedFileSource fileSource; // mmap mode: segments are slices of the file. null otherwise
+    boolean pace = false; // pace new data. See setPacing().
+    long maxRate = 0; // in byte per second. 0: no cap
+    StripedSend stripes; // striping: the transfer this flow is a stripe of. null otherwise
+    int acceptedStripeCount = 0; // striping: the stripe count echoed in the receiver's SYN+ACK
+    long rangeOffset = 0; // file offset of the first byte sent
+    long rangeLength = -1; // bytes of the file sent from rangeOffset. -1: to the end
+    long resumeOffset = 0; // resume mode: bytes of the file the receiver has already. See setResume().
+    ManifestSource manifest; // manifest mode: the directory tree being sent. null for a single file
+    FileDigest digest; // CRC32C mode: digest of the data sent, carried in the FIN. null otherwise
     long initTime;
 
     /*********************************************************************/
@@ -38,31 +60,30 @@ public class TCPSend {
     public boolean estConnection(InetAddress remoteIp, int remotePort) {
         // datagram connect
         try {
-            udpSocket.connect(remoteIp, remotePort);
+            if (!transport.isConnected()) {
+                transport.connect(remoteIp, remotePort);
+            }
 
             Packet synPkt = new Packet(packetManager.getLocalSequenceNumber()); // localSeqNum is 0
             Packet.setFlag(synPkt, true, false, false);
+            offeredOptions.writeTo(synPkt);
             synPkt.setTimeStampToCurrent();
             Packet.calculateAndSetChecksum(synPkt);
 
             // send SYN
-            DatagramPacket udpSyn = toUDP(synPkt, remoteIp, remotePort);
-            udpSocket.send(udpSyn);
+            transport.send(synPkt);
             packetManager.output(synPkt, "snd");
             // wait to receive SYN+ ACK
-            udpSocket.setSoTimeout(initTimeOutInMilli);
-            byte[] r = new byte[256]; // pkt buffer for reverse direction
-            DatagramPacket dgR = new DatagramPacket(r, r.length); // datagram of r
-            udpSocket.receive(dgR);
+            transport.setTimeout(initTimeOutInMilli);
+            ByteBuffer r = ByteBuffer.allocateDirect(maxDatagramPacketLength); // pkt buffer for reverse direction
+            int rLength = transport.receive(r);
 
             //after we receive replied ACK
             packetManager.setLocalSequenceNumber(1); // local seq increase after SYN, when send data, use buffer index as seqNum
 
             // checksum
-            byte[] bb = new byte[dgR.getLength()];
-            System.arraycopy(r, 0, bb, 0, bb.length);
-
-            Packet synAckPkt = Packet.deserialize(bb);
+            r.limit(rLength).position(0);
+            Packet synAckPkt = Packet.deserialize(r, null, transport.getHeaderFormat());
             if (!synAckPkt.verifyChecksum()) {
                 packetManager.getStatistics().incrementIncChecksum(1);
                 return false;
@@ -75,6 +96,16 @@ public class TCPSend {
             if( synAckPkt.getByteSeqNum() != 0){
                 return false;
             }
+            // options the receiver accepted
+            HandshakeOptions acceptedOptions = HandshakeOptions.fromPacket(synAckPkt);
+            packetManager.setSackEnabled(offeredOptions.sackPermitted && acceptedOptions.sackPermitted);
+            if (acceptedOptions.compactHeaderWidth > 0 && acceptedOptions.compactHeaderWidth == offeredOptions.compactHeaderWidth) {
+                transport.setHeaderFormat(HeaderFormat.compact(acceptedOptions.compactHeaderWidth, true));
+            }
+            if (offeredOptions.crc32c && acceptedOptions.crc32c) {
+                transport.setHeaderFormat(transport.getHeaderFormat().withCRC32C());
+                digest = new FileDigest();
+            }
             // update remote seqNum
             packetManager.setRemoteSequenceNumber(synAckPkt.getByteSeqNum());
             packetManager.output(synAckPkt, "rcv");
@@ -82,11 +113,27 @@ public class TCPSend {
             // calculate timeout
             timeOut.update(synAckPkt);
 
+            // jumbo mode: find the largest segment size up to the receiver's ceiling before any data is sent
+            if (acceptedOptions.maxSegmentSize > mtu) {
+                setSegmentSize(probeSegmentSize(acceptedOptions.maxSegmentSize));
+            }
+
+            compressor = (offeredOptions.compression && acceptedOptions.compression) ? new SegmentCompressor(mtu) : null;
+            acceptedStripeCount = (offeredOptions.stripeCount > 0) ? acceptedOptions.stripeCount : 0;
+            if (offeredOptions.resume && acceptedOptions.resume && acceptedOptions.resumeFileLength == offeredOptions.resumeFileLength
+                    && acceptedOptions.resumeFileTime == offeredOptions.resumeFileTime
+                    && acceptedOptions.resumeOffset >= 0 && acceptedOptions.resumeOffset < Math.max(offeredOptions.resumeFileLength, 1)) {
+                resumeOffset = acceptedOptions.resumeOffset;
+            }
+            if (offeredOptions.manifest && !acceptedOptions.manifest) {
+                System.err.println("TCPSend: " + filePath + " is a directory, and the receiver does not take a manifest (-manifest). Abort.");
+                System.exit(1);
+            }
+
             // reply with ACK
             Packet ackPkt = packetManager.makeACKPacket(synAckPkt);
             //send ACK as udp
-            DatagramPacket udpAck = toUDP(ackPkt, remoteIp, remotePort);
-            udpSocket.send(udpAck);
+            transport.send(ackPkt);
             packetManager.output(ackPkt, "snd");
 
             // return false if timeout
@@ -102,32 +149,110 @@ public class TCPSend {
         return true;
     }
 
+    /**
+     * Jumbo mode: send probes padded to 2*mtu, 4*mtu, ... and finally `ceiling` bytes of payload. A size counts once 
+     * the receiver echoes it; probing stops at the first size that is not echoed after PROBE_ATTEMPTS tries.
+     * @return the largest echoed size, or mtu if none was echoed
+     */
+    private int probeSegmentSize(int ceiling) throws IOException {
+        int savedTimeout = transport.getTimeout();
+        transport.setTimeout((int) Math.max(4 * timeOut.getTimeoutInMilli(), PROBE_MIN_TIMEOUT_IN_MILLI));
+        ByteBuffer r = ByteBuffer.allocateDirect(maxDatagramPacketLength);
+        int confirmed = mtu;
+        try {
+            while (confirmed < ceiling) {
+                int size = (int) Math.min(2L * confirmed, ceiling);
+                if (!probe(size, r)) {
+                    break;
+                }
+                confirmed = size;
+            }
+        } finally {
+            transport.setTimeout(savedTimeout);
+        }
+        System.out.println("Jumbo mode: segment size " + confirmed + " bytes (ceiling " + ceiling + ")");
+        return confirmed;
+    }
+
+    /** Send a probe padded to `size` bytes of payload and wait for its echo. r receives the replies. */
+    private boolean probe(int size, ByteBuffer r) throws IOException {
+        HandshakeOptions probeOptions = new HandshakeOptions();
+        probeOptions.probeSize = size;
+        Packet probePkt = new Packet(packetManager.getLocalSequenceNumber());
+        probeOptions.writeTo(probePkt, size);
+        probePkt.setACK(packetManager.getRemoteSequenceNumber() + 1);
+        Packet.calculateAndSetChecksum(probePkt);
+
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; ++attempt) {
+            transport.send(probePkt);
+            packetManager.output(probePkt, "snd");
+            try {
+                while (true) {
+                    int length = transport.receive(r);
+                    r.limit(length).position(0);
+                    Packet echo = Packet.deserialize(r, null, transport.getHeaderFormat());
+                    if (echo.verifyChecksum() && Packet.checkACK(echo) && !Packet.checkSYN(echo) 
+                            && HandshakeOptions.fromPacket(echo).probeSize == size) {
+                        packetManager.output(echo, "rcv");
+                        return true;
+                    }
+                    // a duplicate SYN+ACK or an echo of a smaller probe. keep waiting.
+                }
+            } catch (SocketTimeoutException ste) {}
+        }
+        return false;
+    }
+
+    /**
+     * Use segments of up to `segmentSize` data bytes. Everything sized from mtu is sized again. Only call before 
+     * any data is put in sendBuffer.
+     */
+    private void setSegmentSize(int segmentSize) throws IOException, BufferSizeException {
+        mtu = segmentSize;
+        maxDatagramPacketLength = Packet.maxDatagramLength(mtu);
+        bufferSize = mtu * windowSize * 3 / 2;
+        sendBuffer = new SenderBuffer(bufferSize, mtu, windowSize);
+        transport.ensureSocketBufferSize(windowSize * maxDatagramPacketLength);
+    }
+
     /*
     This function signifies the receiver to close the connection and waits for response 
     */
     public boolean activeClose() throws DebugException{
         //send FIN
         Packet f = packetManager.makeFINPacket();
+        if (digest != null) {
+            // the receiver compares it with the digest of what it wrote
+            Packet.setDataAndLength(f, digest.toBytes());
+            Packet.calculateAndSetChecksum(f);
+        }
         try{
             // Set receive timeout
-            udpSocket.setSoTimeout( (int) (timeOut.getTimeout() / 1000000));
+            transport.setTimeout( (int) Math.max(timeOut.getTimeoutInMilli(), CLOSE_MIN_TIMEOUT_IN_MILLI));
             
             // send FIN and receive ACK + FIN
-            DatagramPacket udpFin = toUDP(f, remoteIp, remotePort);
-            byte[] r1 = new byte[maxDatagramPacketLength]; // pkt buffer for reverse direction
-            DatagramPacket dgR1 = new DatagramPacket(r1, r1.length); // datagram of r
+            ByteBuffer r1 = ByteBuffer.allocateDirect(maxDatagramPacketLength); // pkt buffer for reverse direction
             Packet pkt1 = null;
 
-            udpSocket.send(udpFin);
+            transport.send(f);
             packetManager.output(f, "snd");
             
             boolean gotACK = false;
             boolean gotFIN = false;
+            int attempts = CLOSE_ATTEMPTS;
             while ( !(gotACK && gotFIN) ) {
-                udpSocket.receive(dgR1);
-                byte[] bb1 = new byte[dgR1.getLength()];
-                System.arraycopy(r1, 0, bb1, 0, bb1.length);
-                pkt1 = Packet.deserialize(bb1);
+                int r1Length;
+                try {
+                    r1Length = transport.receive(r1);
+                } catch (SocketTimeoutException e) {
+                    if (--attempts == 0) throw e;
+                    // the FIN or the answer was lost
+                    transport.send(f);
+                    packetManager.output(f, "snd");
+                    continue;
+                }
+                r1.limit(r1Length).position(0);
+                pkt1 = Packet.deserialize(r1, null, transport.getHeaderFormat());
                 packetManager.output(pkt1, "rcv");
 
                 if( !pkt1.verifyChecksum()){ 
@@ -154,30 +279,21 @@ public class TCPSend {
             //     throw new DebugException();
             // }
 
-            DatagramPacket udpA2 = toUDP(a2,remoteIp, remotePort );
-            udpSocket.send( udpA2);
+            transport.send(a2);
             packetManager.output(a2, "snd");
             
         }
         catch(IOException ioe){
             System.err.println("sender close IO Exception: " + ioe);
+            transport.close(); // the receiver gives up on its own
             return true;
         }
         //close
-        udpSocket.close(); 
+        transport.close(); 
         return true; 
     }
 
-    /**
-     * encapsulate a tcp pkt to udp pkt
-     */
-    public DatagramPacket toUDP(Packet pkt, InetAddress remoteIp, int remotePort) {
-        byte[] data = Packet.serialize(pkt);
-        DatagramPacket udpPkt = new DatagramPacket(data, data.length, remoteIp, remotePort);
-        return udpPkt;
-    }
-    
-    
+
     /*********************************************************************/
     /******************** Runnable objects (Threads) *********************/
     /*********************************************************************/
@@ -185,20 +301,32 @@ public class TCPSend {
     /** T0: Application that puts file data into send buffer */
     private class FileToBuffer implements Runnable {
         public void run() {
-            try (InputStream in = Files.newInputStream(filePath, StandardOpenOption.READ)) {
+            try (InputStream in = (manifest != null) ? manifest : Files.newInputStream(filePath, StandardOpenOption.READ)) {
+                // only the range [rangeOffset, rangeOffset + rangeLength) of the file
+                for (long skip = rangeOffset; skip > 0; ) {
+                    skip -= in.skip(skip);
+                }
+                long remaining = (rangeLength < 0) ? Long.MAX_VALUE : rangeLength;
                 BufferedInputStream bin = new BufferedInputStream(in);
                 int bufFreeSpace, writeLength;
-                while ((writeLength = bin.available()) > 0) {
+                // read until the end of the stream: available() cannot tell it apart from a pause between files
+                while (remaining > 0) {
                     try{
                         bufFreeSpace = sendBuffer.waitForFreeSpace();
                     }catch(DebugException de){
                         throw new RuntimeException(de.toString());
                     }
 
-                    writeLength = Math.min(writeLength, bufFreeSpace);
-                    byte[] data = new byte[writeLength];
-                    bin.read(data, 0, data.length);
-                    sendBuffer.put(data);
+                    byte[] data = new byte[(int) Math.min(bufFreeSpace, remaining)];
+                    writeLength = bin.read(data, 0, data.length);
+                    if (writeLength < 0) {
+                        break;
+                    }
+                    remaining -= writeLength;
+                    if (digest != null) {
+                        digest.update(data, 0, writeLength);
+                    }
+                    sendBuffer.put(data, 0, writeLength);
                 }
                 sendBuffer.setFileToBufferFinished();
                 
@@ -214,7 +342,8 @@ public class TCPSend {
                 System.err.println("BufferInsufficientSpaceException:" + e.toString());
                 System.exit(1);
             } catch (IOException e) {
-                System.err.println(e);
+                System.err.println("TCPSend: FileToBuffer: " + e);
+                System.exit(1);
             }
 
         }
@@ -238,17 +367,22 @@ public class TCPSend {
 
                 while (sendBuffer.isFileToBufferFinished() == false) {
                     bufferToPacket();
-                    lastPkt = packetManager.trySendNewData(udpSocket, remotePort, remoteIp);
+                    Packet sent = packetManager.sendNewData(transport);
+                    if (sent != null) lastPkt = sent;
                     packetManager.getStatistics().incrementPacketCount(1);
                 }
 
-                while (sendBuffer.getAvailableDataSize() > 0) {
+                while (sendBuffer.getAvailableDataSize() > 0 || (compressor != null && compressor.hasPending())
+                        || (fileSource != null && fileSource.hasRemaining())) {
                     bufferToPacket();
-                    lastPkt = packetManager.trySendNewData(udpSocket, remotePort, remoteIp);
+                    Packet sent = packetManager.sendNewData(transport);
+                    if (sent != null) lastPkt = sent;
                     packetManager.getStatistics().incrementPacketCount(1);
                 }
             
                 // All buffered data has been stored as Packet in PacketManager. Set flag.
+                if (compressor != null) compressor.close();
+                if (fileSource != null) fileSource.close();
                 packetManager.setAllPacketsEnqueued();
                 lastACKExpected = lastPkt.getByteSeqNum() + lastPkt.getDataLength();
 
@@ -260,31 +394,45 @@ public class TCPSend {
         }
 
         private void bufferToPacket() throws Exception {
-            int seqNum = packetManager.getLocalSequenceNumber(); // use packet manager's local sequence number instead of buffer's index, since our buffer is unlikely to be INT_MAX in size.
-            byte[] data = sendBuffer.getDataToSend(mtu); // sendBuffer.lastByteSent updated
+            long seqNum = packetManager.getLocalSequenceNumber(); // use packet manager's local sequence number instead of buffer's index, since our buffer is unlikely to be INT_MAX in size.
+            Packet tcpPkt = new Packet(seqNum);
+            if (fileSource != null) {
+                ByteBuffer slice = fileSource.next(mtu);
+                if (slice == null) {
+                    return; // end of file
+                }
+                if (digest != null) {
+                    digest.update(slice);
+                }
+                Packet.setDataAndLength(tcpPkt, slice);
+            }
+            else {
+                Payload data = (compressor != null)
+                        ? compressor.next(sendBuffer, packetManager.getPayloadPool()) 
+                        : sendBuffer.getDataToSend(mtu, packetManager.getPayloadPool());
+                if (data == null) {
+                    // FileToBuffer finished and the buffer is drained. Nothing to packetize.
+                    return;
+                }
+                Packet.setDataAndLength(tcpPkt, data);
+            }
             // make packet with the data
-            Packet tcpPkt = makeDataPacket(seqNum, data);
+            makeDataPacket(tcpPkt);
             
             // insert Pkt to packet manager
-            PacketWithInfo infoPkt = new PacketWithInfo(tcpPkt);
-            infoPkt.timeOut = timeOut.getTimeout();
-            packetManager.getQueue().add(infoPkt);
-            synchronized(packetManager) {
-                packetManager.notifyAll();
-            }
+            packetManager.enqueue(tcpPkt);
             
             // increment local sequence number
-            if (data != null) {
-                packetManager.increaseLocalSequenceNumber(data.length);
-            }
+            packetManager.increaseLocalSequenceNumber(tcpPkt.getDataLength());
         }
 
-        private Packet makeDataPacket(int seqNum, byte[] data) {
-            Packet newPkt = new Packet(seqNum);
-            Packet.setDataAndLength(newPkt, data);
+        /** Finish a packet whose sequence number and data are set. */
+        private Packet makeDataPacket(Packet newPkt) {
             Packet.setFlag(newPkt, false, false, true);
             newPkt.setACK(packetManager.getRemoteSequenceNumber() + 1);
-            Packet.calculateAndSetChecksum(newPkt);
+            if (!transport.getHeaderFormat().isCRC32C()) {
+                Packet.calculateAndSetChecksum(newPkt); // with CRC32C the transport checksums the serialized bytes
+            }
 
             return newPkt;
         }
@@ -294,118 +442,50 @@ public class TCPSend {
     private class ACKReceiver implements Runnable {
         public void run(){
             try{
-                byte[] b = new byte[maxDatagramPacketLength];
-                DatagramPacket ACKpktSerial = new DatagramPacket(b, b.length);
+                ByteBuffer b = ByteBuffer.allocateDirect(maxDatagramPacketLength);
+                PacketView ACKpkt = new PacketView(); // reused view over `b`. ACKs are read in place.
                 
                 /** 
-                 * If new ACK num < lastACKnum, we know that the ACK num/ByteSeqNum wraps, so
-                 * we need to remove packets accordingly.
+                 * The largest (logical, 64-bit) ACK number received so far. The 32-bit ACK field of each new ACK is 
+                 * unwrapped against it, so sequence numbers never appear to wrap. Starts past any resumed bytes.
                  */
-                int lastACKnum = 0; // If the new received ACK# is smaller than `lastACKnum`, it may imply a sequence number wrap has occured.
+                long lastACKnum = resumeOffset;
                 
                 long debugCounter = 0;
 
-                while( !packetManager.isAllPacketsEnqueued() || !packetManager.getQueue().isEmpty() ){
-                    if(packetManager.getQueue().isEmpty()){
+                while( !packetManager.isAllPacketsEnqueued() || !packetManager.isInFlightEmpty() ){
+                    if(packetManager.isInFlightEmpty()){
                         // No packet waiting for an ACK. Yield.
                         System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": PM is empty. yield.");
                         Thread.yield();
                     }
                     else{
-                        ACKpktSerial.setLength(b.length);
-                        System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": Listen to udpSocket.");
+                        int ACKpktLength;
+                        System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": Listen to transport.");
                         try{
-                            udpSocket.receive(ACKpktSerial);
+                            ACKpktLength = transport.receive(b);
                         } catch (IOException e) {
                             System.err.println(Thread.currentThread() + ": " + getClass().getName() + "::run() IOException when trying to receive ACK. Will start over (continue). Exception info: " + e);
                             continue;
                         }
                         
                         System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": Got an ACK packet.");
-                        byte[] bb = new byte[ACKpktSerial.getLength()];
-                        System.arraycopy(b, 0, bb, 0, ACKpktSerial.getLength());
-                        Packet ACKpkt = Packet.deserialize(bb);
+                        ACKpkt.wrap(b, 0, ACKpktLength, transport.getHeaderFormat());
+                        if (!ACKpkt.isValidLength()) {
+                            continue;
+                        }
                         packetManager.output(ACKpkt, "rcv");
-                        int ACKnum = ACKpkt.ACK;
+                        long ACKnum = SeqNum.unwrap(ACKpkt.getACK(), ACKpkt.getACKBits(), lastACKnum);
+                        if (ACKnum < lastACKnum) {
+                            // reordered behind a newer ACK. Everything it acknowledges is already acknowledged.
+                            continue;
+                        }
                        
-                        // get packetManager Lock
-                        synchronized(packetManager) {
-                            if (ACKnum == lastACKnum){ // must be a duplicate ACK
-                                System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": The ACK packet is a duplicate ACK.");
-                                PacketWithInfo pp = null;
-                                for (PacketWithInfo p : packetManager.getQueue()) {
-                                    if(p.packet.byteSeqNum == ACKnum){
-                                        pp = p;
-                                        p.ACKcount++;
-                                        packetManager.getStatistics().incrementDupACKCount();
-                                        System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": Found the duplicate ACK. Increment count.");
-                                        break;
-                                    }
-                                }
-                                if (pp == null){
-                                    System.err.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": We think it is a duplicate ACK but we cannot find such packet in PM. Throw exception.");
-                                    throw new DupACKPacketNotExistException();
-    
-                                }
-                                
-                                // Check triple dup ACK?
-                                if (pp.ACKcount == 4) { // triple dup ACK
-                                    System.err.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": The duplicate ACK reaches four. Resend packet.");
-                                    dupACKResend(pp);                        
-                                }
-                            }
-                            else if (ACKnum > lastACKnum) { // May be a new ACK or a dup ACK, ACK number is not wrapped
-                                int prevPktSeqNum = -1;
-                                for(PacketWithInfo p : packetManager.getQueue()){
-                                    if (p.packet.byteSeqNum < ACKnum){
-                                        // If seqNum+length==ACKnum -> update RTT, timeout
-                                        int ACKnumMatch = p.packet.byteSeqNum + p.packet.getDataLength();
-                                        if (ACKnumMatch < 0) { ACKnumMatch += Integer.MAX_VALUE; ACKnumMatch += 1; } // wrap
-                                        if (ACKnumMatch == ACKnum && p.resendCount == 0) {timeOut.update(p.packet);}
-    
-                                        // remove received packets from queue
-                                        if (packetManager.getQueue().remove(p) != true) {
-                                            throw new RuntimeException("TCPSend::ACKReceiver: fail to remove received packet from packetManager queue. (1. ACK num not wrapped)");
-                                        }
-                                        System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": The packet p with sequence number" + p.packet.byteSeqNum + "should have been removed.") ;
-                                        if (prevPktSeqNum != p.packet.byteSeqNum)
-                                            packetManager.decrementInTransitPacket();
-    
-                                    }
-                                    else if (p.packet.byteSeqNum == ACKnum){
-                                        packetManager.getStatistics().incrementDupACKCount();
-                                        if((++p.ACKcount) == 4) {
-                                            System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": The duplicate ACK reaches four. (the second case). Resend packet.");
-                                            dupACKResend(p);
-                                            
-                                        }
-                                    }
-                                }
-                            }
-                            else { // May be a new ACK or a dup ACK, ACK number is wrapped
-                                System.err.println(Thread.currentThread() + ": The ACK number wrapped! Exitting...");
-                                System.exit(1);
-                                // TODO: remove such exit
-                                for(PacketWithInfo p : packetManager.getQueue()){
-                                    if (p.packet.byteSeqNum < ACKnum || p.packet.byteSeqNum > lastACKnum){
-                                        //assert packetManager.getQueue().remove(p) == true;
-                                        if(!packetManager.getQueue().remove(p)){
-                                            throw new RuntimeException("TCPSend::ACKReceiver: fail to remove received packet from packetManager queue. (2. ACK num wrapped)");
-                                        }
-                                        packetManager.decrementInTransitPacket();
-                                    }
-                                    if (p.packet.byteSeqNum == lastACKnum && !packetManager.getQueue().remove(p)) {
-                                        throw new RuntimeException("TCPSend::ACKReceiver: fail to remove received packet from packetManager queue. (3. Special case... should never happen)");
-                                    }
-                                    else if (p.packet.byteSeqNum == ACKnum){
-                                        packetManager.getStatistics().incrementDupACKCount();
-                                        if((++p.ACKcount) == 4) {
-                                            dupACKResend(p);
-                                        }                                
-                                    }
-                                }
-                            }
+                        if (ACKnum == lastACKnum) {
+                            System.out.println(Thread.currentThread().getName() + "[" + debugCounter + "]" +": The ACK packet is a duplicate ACK.");
                         }
+                        // the cumulative ACK, then SACK blocks: retransmit every hole the scoreboard considers lost
+                        packetManager.processACK(ACKpkt, ACKnum, ACKnum == lastACKnum, transport);
                         lastACKnum = ACKnum;
                     }
 
@@ -438,47 +518,13 @@ public class TCPSend {
                 throw new RuntimeException("Dup ACK");
             }
         }
-
-        private void dupACKResend(PacketWithInfo p) throws DebugException {
-            // Make resend packet with info
-            PacketWithInfo resndPWI = p.getResendPacketWithInfo(packetManager.getRemoteSequenceNumber());
-
-            // Update PacketManager (remove old, add new)
-            //assert packetManager.getQueue().remove(p) == true;
-            if( ! packetManager.getQueue().remove(p)){
-                System.out.println(Thread.currentThread().getName() + ": In dupACKResend: cannot find the old duplicated packet. Throw exception.");
-                throw new DebugException();
-            }
-            packetManager.getQueue().add(resndPWI);
-
-            // Resend packet
-            packetManager.dupACKFastRetransmit(resndPWI, udpSocket, remotePort, remoteIp);
-
-            //update statistics
-            packetManager.getStatistics().incrementRetransCount();
-        }
     }
 
-    /** T3: check packets in packet manager to see if any timeout stop checking and sleep when seeing the fisrt unexpired packet retransmit expired */
+    /** T3: retransmission timers. Sleeps until the next one expires and retransmits the expired packets */
     private class timeoutChecker implements Runnable{
 
         public void run() {
-            try {
-                packetManager.checkExpire(  udpSocket,  remotePort,  remoteIp);
-            }
-            catch (IOException e){
-                System.err.println("T4-timeoutChecker: IOException:");
-                System.err.println(e);
-            }
-            catch (DebugException e) {
-                e.printStackTrace();
-                throw new RuntimeException();
-            }
-            // catch (NoSuchElementException e){
-            //     System.err.println("T4-timeoutChecker: NoSuchElementException:");
-            //     System.err.println(e);
-            //     throw e;
-            // }
+            packetManager.checkExpire(transport);
             System.out.println("T3 is exiting...");
 
             return; 
@@ -494,44 +540,159 @@ public class TCPSend {
     /* java TCPend -p <port> -s <remote IP> -a <remote port> –f <file name> -m <mtu> -c <sws> */
     // TCPSend Constructor
     public TCPSend(int localPort, InetAddress remoteIp, int remotePort, String fileName, int mtu, int windowSize, long initTime) throws SocketException, BufferSizeException {
+        this(localPort, remoteIp, remotePort, fileName, mtu, windowSize, initTime, new TransportOptions());
+    }
+
+    public TCPSend(int localPort, InetAddress remoteIp, int remotePort, String fileName, int mtu, int windowSize, long initTime, TransportOptions transportOptions) throws SocketException, BufferSizeException {
+        this.transportOptions = transportOptions;
         this.localPort = localPort;
         this.remoteIp = remoteIp;
         this.remotePort = remotePort;
         bufferSize = (int)(mtu * windowSize * 3 / 2);
         sendBuffer = new SenderBuffer(bufferSize, mtu, windowSize);
-        packetManager = new PacketManager(windowSize, new PacketWithInfoComparator(), initTime);
+        packetManager = new PacketManager(windowSize, initTime);
         timeOut = new Timeout(0.875, 0.75, initTimeOutInMilli * 1000000);
+        packetManager.setRetransmissionTimeout(timeOut);
+        offeredOptions = new HandshakeOptions();
+        offeredOptions.sackPermitted = true;
+        offeredOptions.maxSegmentSize = Math.min(transportOptions.jumboSegmentSize, Packet.MAX_SEGMENT_SIZE);
+        offeredOptions.compression = transportOptions.compression;
+        offeredOptions.crc32c = transportOptions.crc32c;
+        if (transportOptions.compactHeader) {
+            offeredOptions.compactHeaderWidth = HeaderFormat.widthFor((long) windowSize * Math.max(mtu, offeredOptions.maxSegmentSize));
+        }
         filePath = Paths.get(fileName);
+        if (Files.isDirectory(filePath)) {
+            // manifest mode: the whole tree as one stream
+            try {
+                manifest = new ManifestSource(filePath);
+            } catch (IOException e) {
+                System.err.println("TCPSend: cannot list " + filePath + ": " + e);
+                System.exit(1);
+            }
+            offeredOptions.manifest = true;
+            System.out.println("Manifest: " + manifest.getFileCount() + " files, " + manifest.getTotalLength() + " bytes");
+        }
         this.mtu = mtu;
+        this.windowSize = windowSize;
+        this.maxDatagramPacketLength = Packet.maxDatagramLength(mtu);
         this.initTime = initTime; //time in ms 
     }
 
+    /**
+     * mmap mode: send segments straight out of a memory-mapped file (see MappedFileSource) instead of copying the 
+     * file through FileToBuffer and SenderBuffer. Ignored if compression is negotiated. Call before work().
+     */
+    public void setMapFile(boolean mapFile){
+        this.mapFile = mapFile;
+    }
+
+    /**
+     * Spread new data packets out over the RTT with a token bucket (see Pacer) instead of sending them back to back 
+     * whenever the window opens. `maxRate` caps the payload bytes sent per second, retransmissions excepted, and 
+     * implies pacing. Call before work().
+     * @param maxRate in byte per second. 0 for no cap
+     */
+    public void setPacing(boolean pace, long maxRate){
+        this.pace = pace;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Limit the segments in flight to the congestion window of `cc` as well as to the sliding window. Without a 
+     * controller the window stays at windowSize. Call before work().
+     */
+    public void setCongestionController(CongestionController cc){
+        packetManager.setCongestionController(cc);
+    }
+
+    /**
+     * Striping: make this flow stripe `index` of `count` of a striped transfer. Its SYN offers the stripe (and no
+     * compression, since the receiver places segments by their sequence numbers); `stripes` sets the byte range to
+     * send once the receiver has answered. Call before work().
+     */
+    void setStripe(StripedSend stripes, int count, int index, long offset, long fileLength){
+        this.stripes = stripes;
+        offeredOptions.stripeCount = count;
+        offeredOptions.stripeIndex = index;
+        offeredOptions.stripeOffset = offset;
+        offeredOptions.fileLength = fileLength;
+        offeredOptions.compression = false;
+    }
+
+    /**
+     * Resume mode: identify the file in the SYN (length and modification time), so that a receiver that journals 
+     * its progress (TCPRcv.setResume()) can have the data start past what it already has. Call before work().
+     */
+    public void setResume(boolean resume) throws IOException {
+        offeredOptions.resume = resume;
+        if (resume) {
+            offeredOptions.resumeFileLength = Files.size(filePath);
+            offeredOptions.resumeFileTime = Files.getLastModifiedTime(filePath).toMillis();
+        }
+    }
+
+    /** Send only the `length` bytes of the file from `offset`. Call before the data threads start. */
+    void setRange(long offset, long length){
+        rangeOffset = offset;
+        rangeLength = length;
+    }
+
     // Main running program
     public void work() throws InterruptedException {
         try {
-            udpSocket = new DatagramSocket(localPort);
+            transport = new DatagramTransport(localPort, transportOptions);
             // try to handshake until connection established
             while (!estConnection(remoteIp, remotePort)) {
             }
-            Thread T0_fileToBuffer = new Thread(new FileToBuffer(), "T0_fileToBuffer");
-            Thread T1_newPacketSender = new Thread(new NewPacketSender(remoteIp, remotePort), "T1_newPacketSender");
-            Thread T2_ACKReceiver = new Thread(new ACKReceiver(), "T2_ACKReceiver");
-            Thread T3_timeoutChecker = new Thread( new timeoutChecker(), "T3_timeoutChecker");
+            if (stripes != null) {
+                // the receiver's answer settles this flow's range, and for the first flow the other flows
+                stripes.established(this, acceptedStripeCount);
+            }
+            if (resumeOffset > 0) {
+                // the receiver has the first resumeOffset bytes. Number the rest as if they had been sent
+                System.out.println("Resume: " + resumeOffset + " bytes already received");
+                setRange(resumeOffset, -1);
+                packetManager.setLocalSequenceNumber(packetManager.getLocalSequenceNumber() + resumeOffset);
+            }
+            if (mapFile && manifest != null) {
+                System.out.println("mmap mode is off: a manifest is read through the SenderBuffer");
+            }
+            else if (mapFile && compressor == null) {
+                // mmap mode: no FileToBuffer thread. NewPacketSender slices the file itself.
+                fileSource = (rangeOffset == 0 && rangeLength < 0) ? new MappedFileSource(filePath) 
+                        : new MappedFileSource(filePath, rangeOffset, (rangeLength < 0) ? Long.MAX_VALUE - rangeOffset : rangeLength);
+                sendBuffer.setFileToBufferFinished();
+            }
+            else if (mapFile) {
+                System.out.println("mmap mode is off: compressed segments are made from the SenderBuffer");
+            }
+            if (pace || maxRate > 0) {
+                packetManager.setPacer(new Pacer(maxRate, mtu)); // mtu is final after the handshake
+            }
+            // platform or virtual threads, see TransportOptions.virtualThreads
+            Thread T0_fileToBuffer = (fileSource == null) ? ConnectionThreads.newThread(transportOptions, new FileToBuffer(), "T0_fileToBuffer") : null;
+            Thread T1_newPacketSender = ConnectionThreads.newThread(transportOptions, new NewPacketSender(remoteIp, remotePort), "T1_newPacketSender");
+            Thread T2_ACKReceiver = ConnectionThreads.newThread(transportOptions, new ACKReceiver(), "T2_ACKReceiver");
+            Thread T3_timeoutChecker = ConnectionThreads.newThread(transportOptions, new timeoutChecker(), "T3_timeoutChecker");
 
-            T0_fileToBuffer.start();
+            if (T0_fileToBuffer != null) T0_fileToBuffer.start();
             T1_newPacketSender.start();
             T2_ACKReceiver.start();
             T3_timeoutChecker.start();
 
-            T0_fileToBuffer.join();
+            if (T0_fileToBuffer != null) T0_fileToBuffer.join();
             T1_newPacketSender.join();
             T2_ACKReceiver.join();
             T3_timeoutChecker.join();
+            if (digest != null) {
+                System.out.println("Digest: " + digest);
+            }
 
     
 
-        } catch (SocketException e) {
-            System.err.println("SocketException: " + e);
+        } catch (IOException e) {
+            System.err.println("Cannot open the transport: " + e);
             System.exit(1);
         }
     }
@@ -30,6 +30,11 @@ public class Timeout {
         return timeout;
     }
 
+    /** The smoothed RTT, in ns. */
+    public long getEstimatedRTT(){
+        return estRTT;
+    }
+
     public long getTimeoutInMilli(){
         return timeout / 1000000;
     }
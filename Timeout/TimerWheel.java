@@ -0,0 +1,180 @@
+package Timeout;
+
+/**
+ * Hashed timer wheel. A timer due at time t (System.nanoTime()) sits in bucket (t / tick) % buckets, at the tail
+ * of a doubly linked list, so scheduling and cancelling are O(1). Timers more than one revolution ahead share buckets with
+ * nearer ones and are skipped until their round comes.
+ *
+ * The wheel has no thread of its own: the owner calls expire() when nextDeadline() has passed, typically from one
+ * thread that sleeps until then. An occupancy bitmap of the buckets lets nextDeadline() skip empty buckets.
+ *
+ * Not thread safe.
+ */
+public class TimerWheel {
+    /** A timer. Create one per thing that can time out and reuse it; schedule() re-arms it. */
+    public static class Timer {
+        public final long id; // owner's key, e.g. a segment number
+        private long deadline;
+        private int bucket = -1; // -1 if not armed
+        private Timer prev, next;
+
+        public Timer(long id){
+            this.id = id;
+        }
+
+        public boolean isArmed(){
+            return bucket >= 0;
+        }
+
+        public long getDeadline(){
+            return deadline;
+        }
+    }
+
+    private final Timer[] heads;
+    private final Timer[] tails;
+    private final long[] occupied; // bit b set iff bucket b is not empty
+    private final int mask;        // buckets - 1. buckets is a power of 2
+    private final long tick;       // in nanosecond
+    private long cursor;           // the tick expire() has reached
+    private int armed = 0;
+
+    /**
+     * @param buckets rounded up to a power of 2. buckets * tick should cover most timeouts
+     * @param tick in nanosecond
+     */
+    public TimerWheel(int buckets, long tick){
+        buckets = Integer.highestOneBit(Math.max(buckets, 64) * 2 - 1);
+        this.heads = new Timer[buckets];
+        this.tails = new Timer[buckets];
+        this.occupied = new long[buckets / 64];
+        this.mask = buckets - 1;
+        this.tick = tick;
+        this.cursor = System.nanoTime() / tick;
+    }
+
+    public boolean isEmpty(){
+        return armed == 0;
+    }
+
+    /** Arm `timer` to expire at `deadline` (System.nanoTime()), moving it if it is armed already. */
+    public void schedule(Timer timer, long deadline){
+        cancel(timer);
+        timer.deadline = deadline;
+        int b = (int) Math.max(deadline / tick, cursor) & mask; // overdue timers go to the bucket expire() looks at first
+        timer.bucket = b;
+        timer.prev = tails[b];
+        timer.next = null;
+        if (tails[b] != null) {
+            tails[b].next = timer;
+        }
+        else {
+            heads[b] = timer;
+        }
+        tails[b] = timer;
+        occupied[b >>> 6] |= 1L << b;
+        ++armed;
+    }
+
+    /** Disarm `timer`. Nothing happens if it is not armed. */
+    public void cancel(Timer timer){
+        int b = timer.bucket;
+        if (b < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        }
+        else {
+            heads[b] = timer.next;
+            if (heads[b] == null) {
+                occupied[b >>> 6] &= ~(1L << b);
+            }
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        else {
+            tails[b] = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        timer.bucket = -1;
+        --armed;
+    }
+
+    /**
+     * Disarm every timer due by `now` and return them as a list linked through getNext(), by tick and then in the
+     * order they were scheduled. Read a timer's next before scheduling it again.
+     * @return the first expired timer, or null
+     */
+    public Timer expire(long now){
+        Timer expired = null, last = null;
+        long target = now / tick;
+        long end = Math.min(target, cursor + mask); // one revolution visits every bucket
+        for (long t = cursor; t <= end; ++t) {
+            Timer timer = heads[(int) t & mask];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline - now <= 0) {
+                    cancel(timer);
+                    if (last == null) {
+                        expired = timer;
+                    }
+                    else {
+                        last.next = timer;
+                    }
+                    last = timer;
+                }
+                timer = next;
+            }
+        }
+        cursor = target; // the current tick may still hold timers due later in it
+        return expired;
+    }
+
+    /** The next timer of a list returned by expire(). */
+    public static Timer getNext(Timer timer){
+        return timer.next;
+    }
+
+    /**
+     * The earliest deadline of the armed timers. Only the buckets up to the first one that starts after the best
+     * deadline so far are looked at.
+     * @return Long.MAX_VALUE if no timer is armed
+     */
+    public long nextDeadline(){
+        if (armed == 0) {
+            return Long.MAX_VALUE;
+        }
+        long best = Long.MAX_VALUE;
+        for (int d = 0; d <= mask; ) {
+            int b = nextOccupied((int) (cursor + d) & mask);
+            d += (b - (int) (cursor + d)) & mask;
+            if (d > mask) {
+                break; // wrapped around
+            }
+            long bucketStart = (cursor + d) * tick;
+            if (best != Long.MAX_VALUE && bucketStart - best >= 0) {
+                break; // this bucket and all later ones are due after `best`
+            }
+            for (Timer timer = heads[b]; timer != null; timer = timer.next) {
+                if (best == Long.MAX_VALUE || timer.deadline - best < 0) {
+                    best = timer.deadline;
+                }
+            }
+            ++d;
+        }
+        return best;
+    }
+
+    /** The first occupied bucket at or after b, wrapping around. There is one. */
+    private int nextOccupied(int b){
+        int w = b >>> 6;
+        long word = occupied[w] & (-1L << b);
+        while (word == 0) {
+            w = (w + 1) % occupied.length;
+            word = occupied[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+}
@@ -0,0 +1,56 @@
+package Transport;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the threads that run a connection: the pipeline threads of TCPSend and TCPRcv, and the flows of a striped
+ * transfer. They are platform threads unless TransportOptions.virtualThreads is set. In that case they are virtual
+ * threads, so that many connections in one JVM do not need an OS thread each.
+ *
+ * Virtual threads need a JDK that has them (21 or later). They are looked up at run time, so the code still builds
+ * and runs on an older JDK, where platform threads are used instead.
+ *
+ * The threads only block in ways that unmount a virtual thread from its carrier:
+ * - LockSupport.park() in the buffers.
+ * - ReentrantLock and Condition in PacketManager, TCPRcv and DatagramTransport.
+ * - Waits for a readable channel on the shared ReadinessPoller (see DatagramTransport).
+ */
+public class ConnectionThreads {
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory(); // null if the JDK has no virtual threads
+    private static boolean warned = false;
+
+    /** A new, unstarted thread named `name` that runs `task`, of the kind `options` asks for. */
+    public static Thread newThread(TransportOptions options, Runnable task, String name){
+        if (options.virtualThreads && VIRTUAL != null) {
+            Thread t = VIRTUAL.newThread(task);
+            t.setName(name);
+            return t;
+        }
+        if (options.virtualThreads) {
+            warnOnce();
+        }
+        return new Thread(task, name);
+    }
+
+    /** Whether virtual threads are available in this JDK. */
+    public static boolean hasVirtualThreads(){
+        return VIRTUAL != null;
+    }
+
+    private static synchronized void warnOnce(){
+        if (!warned) {
+            warned = true;
+            System.err.println("ConnectionThreads: this JDK (" + System.getProperty("java.version") + ") has no virtual threads. Using platform threads.");
+        }
+    }
+
+    /** Thread.ofVirtual().factory(), or null if the JDK has no virtual threads (or only as a preview feature). */
+    private static ThreadFactory virtualThreadFactory(){
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
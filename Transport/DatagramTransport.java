@@ -0,0 +1,275 @@
+package Transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import Packet.HeaderFormat;
+import Packet.Packet;
+
+/**
+ * The UDP endpoint of one TCPSend or TCPRcv. Every datagram of a connection is sent and received here. An 
+ * RcvServer instead shares one unconnected endpoint between all of its connections.
+ *
+ * Built on a DatagramChannel with direct ByteBuffers, so the kernel reads and writes our buffers directly instead
+ * of going through a temporary native copy of a heap array on each syscall. Once connect()ed, send() and
+ * receive() use write()/read() and do not allocate a socket address per datagram.
+ *
+ * Sends are serialized by an internal lock and may come from any thread. Receives are serialized by another lock,
+ * so a send never waits for a blocked receive. Both are ReentrantLocks, so a virtual thread blocked in a receive
+ * does not pin its carrier. With TransportOptions.virtualThreads, receives wait on the shared ReadinessPoller
+ * instead of selectors of their own.
+ */
+public class DatagramTransport {
+    private static final int INITIAL_SEND_BUFFER_LENGTH = 1518; // in byte. Grown if a larger packet comes along.
+    private static final long SEND_RETRY_INTERVAL = 100000; // in nanosecond. Polled mode: wait for SO_SNDBUF to drain
+
+    private final DatagramChannel channel;
+    private final boolean blocking;
+    private final TransportOptions options;
+    private Selector readSelector;  // non-blocking mode only
+    private Selector writeSelector; // non-blocking mode only
+    private ReadinessPoller poller; // polled mode (non-blocking, virtual threads) only. Replaces the selectors
+    private int timeout = 0; // receive timeout in ms. 0 waits forever.
+    private volatile HeaderFormat headerFormat = HeaderFormat.FULL;
+
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private ByteBuffer sendBuffer; // direct. Only touched while holding sendLock.
+
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private DatagramPacket timedReceivePacket; // blocking mode with a timeout only. See TransportOptions.blocking.
+
+    /**
+     * Open a channel bound to localPort.
+     */
+    public DatagramTransport(int localPort, TransportOptions options) throws IOException {
+        this.options = options;
+        channel = DatagramChannel.open();
+        if (options.sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, options.sendBufferSize);
+        }
+        if (options.receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, options.receiveBufferSize);
+        }
+        channel.bind(new InetSocketAddress(localPort));
+
+        blocking = options.blocking;
+        channel.configureBlocking(blocking);
+        if (!blocking && options.virtualThreads) {
+            poller = ReadinessPoller.get();
+        }
+        else if (!blocking) {
+            readSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        sendBuffer = ByteBuffer.allocateDirect(INITIAL_SEND_BUFFER_LENGTH);
+    }
+
+    /**
+     * Only exchange datagrams with remoteIp:remotePort from now on. Must be called before send() and receive().
+     */
+    public void connect(InetAddress remoteIp, int remotePort) throws IOException {
+        channel.connect(new InetSocketAddress(remoteIp, remotePort));
+    }
+
+    public boolean isConnected(){
+        return channel.isConnected();
+    }
+
+    /**
+     * Raise SO_SNDBUF and SO_RCVBUF to at least `size` bytes, except the ones TransportOptions sets explicitly.
+     * Called once the segment size is known, so that a window of (jumbo) datagrams fits in the socket buffers.
+     * The OS may cap the value.
+     */
+    public void ensureSocketBufferSize(int size) throws IOException {
+        if (options.sendBufferSize == 0 && channel.getOption(StandardSocketOptions.SO_SNDBUF) < size) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+        if (options.receiveBufferSize == 0 && channel.getOption(StandardSocketOptions.SO_RCVBUF) < size) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+        }
+    }
+
+    /**
+     * Receive timeout in ms, like DatagramSocket.setSoTimeout(). 0 waits forever.
+     */
+    public void setTimeout(int timeout){
+        this.timeout = timeout;
+    }
+
+    public int getTimeout(){
+        return this.timeout;
+    }
+
+    /**
+     * Header format negotiated at the handshake. send() uses it, and receivers pass it to PacketView.wrap() and
+     * Packet.deserialize() to decode what the peer sends.
+     */
+    public void setHeaderFormat(HeaderFormat headerFormat){
+        this.headerFormat = headerFormat;
+    }
+
+    public HeaderFormat getHeaderFormat(){
+        return this.headerFormat;
+    }
+
+    /**
+     * Serialize pkt into the direct send buffer in getHeaderFormat() and send it to the connected peer.
+     */
+    public void send(Packet pkt) throws IOException {
+        sendLock.lock();
+        try {
+            serialize(pkt, headerFormat);
+            while (channel.write(sendBuffer) == 0) {
+                // non-blocking and SO_SNDBUF is full. Wait until it drains.
+                awaitWritable();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Unconnected channel shared by many peers (see RcvServer): send pkt to `to`, serialized in `format`, since 
+     * every peer negotiates its own.
+     */
+    public void send(Packet pkt, SocketAddress to, HeaderFormat format) throws IOException {
+        sendLock.lock();
+        try {
+            serialize(pkt, format);
+            while (channel.send(sendBuffer, to) == 0) {
+                awaitWritable();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /** Serialize pkt into sendBuffer, ready to be written. Only call while holding sendLock. */
+    private void serialize(Packet pkt, HeaderFormat format){
+        int size = Packet.serializedLength(pkt, format);
+        if (sendBuffer.capacity() < size) {
+            sendBuffer = ByteBuffer.allocateDirect(size);
+        }
+        sendBuffer.clear();
+        Packet.serialize(pkt, sendBuffer, format);
+        sendBuffer.flip();
+    }
+
+    /**
+     * Receive one datagram from the connected peer into dst, which is cleared first. The datagram is between
+     * position 0 and the returned length. Datagrams longer than dst are truncated.
+     * @return length of the datagram
+     * @throws SocketTimeoutException if no datagram arrives within getTimeout() ms
+     */
+    public int receive(ByteBuffer dst) throws IOException {
+        receiveLock.lock();
+        try {
+            dst.clear();
+            if (blocking && timeout > 0) {
+                timedReceive(dst);
+                return dst.position();
+            }
+            long deadline = System.nanoTime() + timeout * 1000000L;
+            int length;
+            while ((length = channel.read(dst)) <= 0) {
+                if (!blocking) awaitReadable(deadline);
+                dst.clear();
+            }
+            return length;
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Same as receive(), but from any peer, and before connect(). Used to learn the peer from its first datagram.
+     * @return the sender of the datagram. The datagram is between position 0 and dst's position.
+     */
+    public InetSocketAddress receiveFrom(ByteBuffer dst) throws IOException {
+        receiveLock.lock();
+        try {
+            dst.clear();
+            if (blocking && timeout > 0) {
+                return (InetSocketAddress) timedReceive(dst);
+            }
+            long deadline = System.nanoTime() + timeout * 1000000L;
+            SocketAddress from;
+            while ((from = channel.receive(dst)) == null) {
+                awaitReadable(deadline);
+            }
+            return (InetSocketAddress) from;
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    /**
+     * Non-blocking mode: wait for SO_SNDBUF to drain. A full send buffer is rare with UDP, so polled mode just
+     * retries shortly instead of giving the poller write interest too.
+     */
+    private void awaitWritable() throws IOException {
+        if (poller != null) {
+            LockSupport.parkNanos(SEND_RETRY_INTERVAL);
+            return;
+        }
+        writeSelector.select();
+        writeSelector.selectedKeys().clear();
+    }
+
+    /** Non-blocking mode: wait until the channel is readable or the deadline (if any) passes. */
+    private void awaitReadable(long deadline) throws IOException {
+        if (poller != null) {
+            if (!poller.awaitReadable(channel, timeout == 0 ? 0 : deadline)) {
+                throw new SocketTimeoutException("Receive timed out");
+            }
+            return;
+        }
+        if (timeout == 0) {
+            readSelector.select();
+        }
+        else {
+            long remain = (deadline - System.nanoTime()) / 1000000; // in ms
+            if (remain <= 0) {
+                throw new SocketTimeoutException("Receive timed out");
+            }
+            readSelector.select(remain);
+        }
+        readSelector.selectedKeys().clear();
+    }
+
+    /** Blocking mode: the channel itself cannot time out, so receive through its socket adaptor and copy. */
+    private SocketAddress timedReceive(ByteBuffer dst) throws IOException {
+        if (timedReceivePacket == null || timedReceivePacket.getData().length < dst.capacity()) {
+            timedReceivePacket = new DatagramPacket(new byte[dst.capacity()], dst.capacity());
+        }
+        timedReceivePacket.setLength(timedReceivePacket.getData().length);
+        channel.socket().setSoTimeout(timeout);
+        channel.socket().receive(timedReceivePacket);
+        dst.put(timedReceivePacket.getData(), 0, Math.min(timedReceivePacket.getLength(), dst.remaining()));
+        return timedReceivePacket.getSocketAddress();
+    }
+
+    public void close(){
+        try {
+            if (readSelector != null) readSelector.close();
+            if (writeSelector != null) writeSelector.close();
+            channel.close();
+            if (poller != null) poller.closed();
+        } catch (IOException e) {
+            System.err.println("DatagramTransport: close(): " + e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package Transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One platform thread and one Selector that wait for readable channels on behalf of every DatagramTransport whose
+ * connection runs on virtual threads (see TransportOptions.virtualThreads). A virtual thread that waited on a
+ * Selector of its own would tie up an OS thread until the select returns. Here it just parks, and the poller unparks
+ * it once its channel is readable. So one OS thread waits for any number of connections.
+ *
+ * Readiness is level-triggered: a datagram that arrives between the caller's last read and its await() is reported
+ * at once.
+ */
+class ReadinessPoller implements Runnable {
+    private static ReadinessPoller instance;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Waiter> pending = new ConcurrentLinkedQueue<Waiter>(); // to be registered by the poller
+
+    private static class Waiter {
+        final SelectableChannel channel;
+        final Thread thread;
+        volatile boolean ready = false;
+
+        Waiter(SelectableChannel channel, Thread thread){
+            this.channel = channel;
+            this.thread = thread;
+        }
+    }
+
+    private ReadinessPoller() throws IOException {
+        selector = Selector.open();
+    }
+
+    /** The poller of this JVM, started on first use. */
+    static synchronized ReadinessPoller get() throws IOException {
+        if (instance == null) {
+            instance = new ReadinessPoller();
+            Thread t = new Thread(instance, "ReadinessPoller");
+            t.setDaemon(true);
+            t.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Park until `channel` (non-blocking) is readable or `deadline` passes.
+     * @param deadline System.nanoTime() to give up at. 0 waits forever
+     * @return false if the deadline passed first
+     */
+    boolean awaitReadable(SelectableChannel channel, long deadline){
+        Waiter w = new Waiter(channel, Thread.currentThread());
+        pending.add(w);
+        selector.wakeup();
+        while (!w.ready) {
+            if (deadline == 0) {
+                LockSupport.park(this);
+            }
+            else {
+                long remain = deadline - System.nanoTime();
+                if (remain <= 0) {
+                    return false; // the registration stays until the channel is readable. A later wait replaces it
+                }
+                LockSupport.parkNanos(this, remain);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A channel waited on here was closed. It stays open until the selector drops its key, which only happens on a
+     * select, so wake the poller for one.
+     */
+    void closed(){
+        selector.wakeup();
+    }
+
+    public void run(){
+        while (true) {
+            try {
+                Waiter w;
+                while ((w = pending.poll()) != null) {
+                    try {
+                        w.channel.register(selector, SelectionKey.OP_READ, w);
+                    } catch (ClosedChannelException | CancelledKeyException e) {
+                        wake(w); // the caller's next read fails or finds the data
+                    }
+                }
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        key.interestOps(0); // until the next wait on the channel
+                    } catch (CancelledKeyException e) {}
+                    wake((Waiter) key.attachment());
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                System.err.println("ReadinessPoller: " + e);
+            }
+        }
+    }
+
+    private static void wake(Waiter w){
+        w.ready = true;
+        LockSupport.unpark(w.thread);
+    }
+}
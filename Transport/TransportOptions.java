@@ -0,0 +1,51 @@
+package Transport;
+
+/**
+ * Settings of a DatagramTransport and of the datagrams sent over it.
+ */
+public class TransportOptions {
+    /** SO_SNDBUF in bytes. 0 keeps the OS default. */
+    public int sendBufferSize = 0;
+
+    /** SO_RCVBUF in bytes. 0 keeps the OS default. */
+    public int receiveBufferSize = 0;
+
+    /**
+     * Blocking mode: untimed receives block in the kernel and timed receives go through the channel's socket
+     * adaptor (one extra copy). Non-blocking mode: every receive waits on a Selector, so timed receives are as
+     * cheap as untimed ones.
+     */
+    public boolean blocking = false;
+
+    /**
+     * Jumbo mode: the largest segment payload in bytes to negotiate at the handshake (at most
+     * Packet.MAX_SEGMENT_SIZE). Both ends must set it. 0 turns jumbo mode off: segments carry at most mtu bytes.
+     */
+    public int jumboSegmentSize = 0;
+
+    /**
+     * Offer (sender) or accept (receiver) the compact header format at the handshake. Both ends must set it. See
+     * Packet.HeaderFormat.
+     */
+    public boolean compactHeader = false;
+
+    /**
+     * Offer (sender) or accept (receiver) compression of the file data at the handshake. Both ends must set it.
+     * See Buffer.SegmentCompressor.
+     */
+    public boolean compression = false;
+
+    /**
+     * Offer (sender) or accept (receiver) CRC32C segment checksums and the whole-file digest at the handshake. Both
+     * ends must set it. See Packet.HeaderFormat and Buffer.FileDigest.
+     */
+    public boolean crc32c = false;
+
+    /**
+     * Run the connection's threads as virtual threads (see ConnectionThreads) when the JDK has them, so that many
+     * connections in one JVM do not need an OS thread each. Needs non-blocking mode: receives then wait on one
+     * ReadinessPoller shared by every connection. In blocking mode a timed receive goes through the socket adaptor,
+     * which pins the virtual thread to its carrier.
+     */
+    public boolean virtualThreads = false;
+}